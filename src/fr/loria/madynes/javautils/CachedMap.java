@@ -0,0 +1,157 @@
+package fr.loria.madynes.javautils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Preferences read from a {@link PreferencesCache}: values are looked up in the mapped cache,
+ * only changes (setPreference, journal replay, reload) are kept on heap.
+ *
+ * Thread safe: reads are lock free (changes and removed keys are concurrent), writes are
+ * synchronized. Null keys and values are not allowed. Views are live, their iterators are
+ * weakly consistent and decode cached keys and values as they go.
+ */
+final class CachedMap extends AbstractMap<String, String> {
+	private final PreferencesCache cache;
+	// keys put since the cache was read (changed or added), ConcurrentHashMap or CompactMap.
+	private final Map<String, String> changes;
+	// keys of the cache removed since it was read.
+	private final Set<String> removed=ConcurrentHashMap.<String>newKeySet();
+	private volatile int added=0; // keys of changes which are not in the cache.
+	private Set<Map.Entry<String, String>> entrySet=null;
+
+	/**
+	 * @param cache values read
+	 * @param changes empty thread safe map to keep changes in
+	 */
+	CachedMap(PreferencesCache cache, Map<String, String> changes){
+		this.cache=cache;
+		this.changes=changes;
+	}
+
+	@Override
+	public String get(Object key){
+		String result=this.changes.get(key);
+		if (result==null && key instanceof String && !this.removed.contains(key)){
+			result=this.cache.get((String)key);
+		}
+		return result;
+	}
+	@Override
+	public boolean containsKey(Object key){
+		return this.get(key)!=null;
+	}
+	// Readers see the new value first: changes are updated before removed keys.
+	@Override
+	public synchronized String put(String key, String value){
+		if (key==null || value==null){
+			throw new NullPointerException();
+		}
+		String old=this.get(key);
+		if (this.changes.put(key, value)==null && this.cache.indexOf(key)<0){
+			this.added++;
+		}
+		this.removed.remove(key);
+		return old;
+	}
+	// Readers see the old value until it is removed from both.
+	@Override
+	public synchronized String remove(Object key){
+		String old=this.get(key);
+		if (old!=null){
+			if (this.cache.indexOf((String)key)>=0){
+				this.removed.add((String)key);
+			}else{
+				this.added--;
+			}
+			this.changes.remove(key);
+		}
+		return old;
+	}
+	@Override
+	public synchronized void clear(){
+		for (int i=0; i<this.cache.size(); i++){
+			this.removed.add(this.cache.key(i));
+		}
+		this.changes.clear();
+		this.added=0;
+	}
+	@Override
+	public int size(){
+		return this.cache.size()-this.removed.size()+this.added;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet(){
+		if (this.entrySet==null){
+			this.entrySet=new AbstractSet<Map.Entry<String, String>>(){
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator(){
+					return new EntryIterator();
+				}
+				@Override
+				public int size(){
+					return CachedMap.this.size();
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+	/** Entries of the cache still there (and not changed), then changes. */
+	private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private int index=0; // next cache entry
+		private final Iterator<Map.Entry<String, String>> changed=CachedMap.this.changes.entrySet().iterator();
+		private Map.Entry<String, String> next=null;
+		private String lastKey=null;
+
+		@Override
+		public boolean hasNext(){
+			PreferencesCache cache=CachedMap.this.cache;
+			while (this.next==null && this.index<cache.size()){
+				String key=cache.key(this.index);
+				if (!CachedMap.this.changes.containsKey(key) && !CachedMap.this.removed.contains(key)){
+					this.next=new SimpleImmutableEntry<String, String>(key, cache.value(this.index));
+				}
+				this.index++;
+			}
+			if (this.next==null && this.changed.hasNext()){
+				Map.Entry<String, String> e=this.changed.next();
+				this.next=new SimpleImmutableEntry<String, String>(e.getKey(), e.getValue());
+			}
+			return this.next!=null;
+		}
+		@Override
+		public Map.Entry<String, String> next(){
+			if (!this.hasNext()){
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> result=this.next;
+			this.next=null;
+			this.lastKey=result.getKey();
+			return result;
+		}
+		@Override
+		public void remove(){
+			if (this.lastKey==null){
+				throw new IllegalStateException();
+			}
+			CachedMap.this.remove(this.lastKey);
+			this.lastKey=null;
+		}
+	}
+
+	/** @return estimated heap used: changes and removed keys (the cache is mapped, off heap). */
+	long footprint(){
+		long result=64+(this.changes instanceof CompactMap?((CompactMap)this.changes).footprint():CompactMap.estimateFootprint(this.changes));
+		for (String key: this.removed){
+			result+=CompactMap.HASH_ENTRY_SIZE+CompactMap.stringSize(key);
+		}
+		return result;
+	}
+}
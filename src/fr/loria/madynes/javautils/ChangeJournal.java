@@ -0,0 +1,84 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import fr.loria.madynes.javautils.Properties.PropertyChangedEvent;
+
+/**
+ * Version and recent changes of a {@link Properties} (see {@link Properties#changesSince(long)}).
+ *
+ * Each change of a resolved value gets the next version and is kept in a bounded ring buffer:
+ * the oldest changes are overwritten, a consumer which is too late must read everything again.
+ * The version is volatile so checking it is one read, without locking.
+ */
+final class ChangeJournal {
+	static final int DEFAULT_CAPACITY=1024;
+
+	private volatile long version=0;
+	// ring buffer, guarded by this: the change of version v is at (v-1)%changes.length.
+	private PropertyChangedEvent[] changes;
+	private long oldestVersion=1; // version of the oldest change still in the buffer.
+
+	ChangeJournal(int capacity){
+		this.changes=new PropertyChangedEvent[capacity];
+	}
+
+	long version(){
+		return this.version;
+	}
+
+	/** @return the version of the next change (to build its event). */
+	synchronized long nextVersion(){
+		return this.version+1;
+	}
+	/** Record evt, its version must be {@link #nextVersion()}. */
+	synchronized void add(PropertyChangedEvent evt){
+		long v=evt.getVersion();
+		assert v==this.version+1:"change recorded out of order";
+		if (this.changes.length>0){
+			this.changes[(int)((v-1)%this.changes.length)]=evt;
+		}
+		if (v-this.oldestVersion>=this.changes.length){
+			this.oldestVersion=v-this.changes.length+1;
+		}
+		this.version=v;
+	}
+	/**
+	 * Forget all changes and bump the version: values may have changed in an unknown way,
+	 * consumers at an older version must read everything again.
+	 */
+	synchronized void reset(){
+		this.version++;
+		this.oldestVersion=this.version+1;
+		Arrays.fill(this.changes, null);
+	}
+	/** Change the capacity, recorded changes are forgotten (see {@link #reset()}). */
+	synchronized void setCapacity(int capacity){
+		this.changes=new PropertyChangedEvent[capacity];
+		this.reset();
+	}
+	synchronized int getCapacity(){
+		return this.changes.length;
+	}
+
+	/**
+	 * @param since a version returned by {@link #version()}
+	 * @return changes after since, coalesced per key (first old value, last new value and version),
+	 * ordered by version, or null if since is unknown or changes have been forgotten.
+	 */
+	synchronized List<PropertyChangedEvent> since(long since){
+		if (since>this.version || since<this.oldestVersion-1){
+			return null;
+		}
+		LinkedHashMap<String, PropertyChangedEvent> result=new LinkedHashMap<String, PropertyChangedEvent>();
+		for (long v=since+1; v<=this.version; v++){
+			PropertyChangedEvent evt=this.changes[(int)((v-1)%this.changes.length)];
+			PropertyChangedEvent previous=result.remove(evt.getKey()); // re-inserted: ordered by last change.
+			result.put(evt.getKey(), previous==null?evt:evt.withOldVal(previous.getOldVal()));
+		}
+		return new ArrayList<PropertyChangedEvent>(result.values());
+	}
+}
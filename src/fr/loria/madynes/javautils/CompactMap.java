@@ -0,0 +1,435 @@
+package fr.loria.madynes.javautils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact String to String map, for large configurations (see {@link Properties#setCompactStorage(boolean)}).
+ *
+ * Keys are split on '.' and stored as a trie of segments: a dotted prefix shared by many keys
+ * ("plugin.editor.color.") is stored once. Segments and values are interned in a pool shared by
+ * all CompactMaps, with reference counts, so a value used by many keys or many Properties is
+ * stored once, and dropped from the pool when no map uses it anymore.
+ *
+ * Thread safe (synchronized): Properties reads mostly go through resolution plans, not here.
+ * Null keys and values are not allowed. keySet(), values() and entrySet() are live views, walking
+ * the trie in segments order: their iterators are weakly consistent (as ConcurrentHashMap ones),
+ * a key present during the whole iteration is returned once.
+ */
+final class CompactMap extends AbstractMap<String, String> {
+	// Estimated sizes, in bytes (64 bits JVM, compressed references).
+	private static final int NODE_SIZE=32; // header + 4 references + int, aligned
+	private static final int ARRAY_HEADER=16;
+	private static final int REFERENCE=4;
+	private static final int POOL_ENTRY_SIZE=32+24; // HashMap node + PooledString
+	static final int HASH_ENTRY_SIZE=32+8; // ConcurrentHashMap node + table slot share
+
+	private static final Node[] NO_CHILDREN=new Node[0];
+
+	private static final class Node {
+		final String segment; // pooled
+		final Node parent;
+		Node[] children=NO_CHILDREN; // sorted by segment, childCount first ones used
+		int childCount;
+		String value; // pooled, null if no key ends here
+		Node(String segment, Node parent){
+			this.segment=segment;
+			this.parent=parent;
+		}
+	}
+
+	/** Interned string and number of uses (by all maps). */
+	private static final class PooledString {
+		final String s;
+		int references;
+		PooledString(String s){
+			this.s=s;
+		}
+	}
+	/** Part of the pool, guarded by itself (always taken after a map lock, one at a time). */
+	private static final class PoolStripe {
+		final HashMap<String, PooledString> strings=new HashMap<String, PooledString>();
+	}
+	// Shared by all maps, striped by hash: maps of different Properties seldom wait for each other.
+	private static final PoolStripe[] POOL=new PoolStripe[16];
+	static {
+		for (int i=0; i<POOL.length; i++){
+			POOL[i]=new PoolStripe();
+		}
+	}
+
+	private final Node root=new Node(null, null);
+	private int size;
+	private Set<Map.Entry<String, String>> entrySet=null;
+
+	CompactMap(){
+	}
+	CompactMap(Map<String, String> values){
+		this.putAll(values);
+	}
+
+	private static PoolStripe stripeOf(String s){
+		int h=s.hashCode();
+		return POOL[(h^(h>>>16))&(POOL.length-1)];
+	}
+	/** @return the pooled instance of s, its reference count is incremented. */
+	private static String acquire(String s){
+		PoolStripe stripe=stripeOf(s);
+		synchronized (stripe){
+			PooledString pooled=stripe.strings.get(s);
+			if (pooled==null){
+				pooled=new PooledString(s);
+				stripe.strings.put(s, pooled);
+			}
+			pooled.references++;
+			return pooled.s;
+		}
+	}
+	private static void release(String s){
+		PoolStripe stripe=stripeOf(s);
+		synchronized (stripe){
+			PooledString pooled=stripe.strings.get(s);
+			if (pooled!=null && --pooled.references==0){
+				stripe.strings.remove(s);
+			}
+		}
+	}
+	// estimated size of s, shared between its users.
+	private static long share(String s){
+		int references;
+		PoolStripe stripe=stripeOf(s);
+		synchronized (stripe){
+			PooledString pooled=stripe.strings.get(s);
+			references=pooled==null?1:pooled.references;
+		}
+		return (stringSize(s)+POOL_ENTRY_SIZE)/references;
+	}
+	/** @return number of strings in the pool (used by all maps). */
+	static int pooledStrings(){
+		int result=0;
+		for (PoolStripe stripe: POOL){
+			synchronized (stripe){
+				result+=stripe.strings.size();
+			}
+		}
+		return result;
+	}
+	// estimated size of a String (and its byte array).
+	static long stringSize(String s){
+		int bytes=s.length();
+		for (int i=0; i<s.length(); i++){
+			if (s.charAt(i)>0xFF){
+				bytes=2*s.length(); // not Latin-1: UTF-16 storage
+				break;
+			}
+		}
+		return 24+((ARRAY_HEADER+bytes+7)&~7);
+	}
+
+	/**
+	 * Estimate the heap used by a plain map of Strings (ConcurrentHashMap, HashMap), for comparison.
+	 */
+	static long estimateFootprint(Map<String, String> values){
+		long result=64; // map itself
+		for (Map.Entry<String, String> e: values.entrySet()){
+			result+=HASH_ENTRY_SIZE+stringSize(e.getKey())+stringSize(e.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Estimate the heap used by this map: trie nodes plus this map share of pooled strings
+	 * (a string used n times counts for 1/n).
+	 */
+	synchronized long footprint(){
+		return 32+this.footprint(this.root);
+	}
+	private long footprint(Node node){
+		long result=NODE_SIZE;
+		if (node.children!=NO_CHILDREN){
+			result+=ARRAY_HEADER+REFERENCE*node.children.length;
+		}
+		if (node.segment!=null){
+			result+=share(node.segment);
+		}
+		if (node.value!=null){
+			result+=share(node.value);
+		}
+		for (int i=0; i<node.childCount; i++){
+			result+=this.footprint(node.children[i]);
+		}
+		return result;
+	}
+
+	// compare key[start, end[ to segment, as String.compareTo.
+	private static int compare(String key, int start, int end, String segment){
+		int len=Math.min(end-start, segment.length());
+		for (int i=0; i<len; i++){
+			int d=key.charAt(start+i)-segment.charAt(i);
+			if (d!=0){
+				return d;
+			}
+		}
+		return (end-start)-segment.length();
+	}
+	// index of child key[start, end[ in node, or -(insertion point)-1.
+	private static int indexOf(Node node, String key, int start, int end){
+		int low=0;
+		int high=node.childCount-1;
+		while (low<=high){
+			int mid=(low+high)>>>1;
+			int c=compare(key, start, end, node.children[mid].segment);
+			if (c>0){
+				low=mid+1;
+			}else if (c<0){
+				high=mid-1;
+			}else{
+				return mid;
+			}
+		}
+		return -(low+1);
+	}
+	// node of key, null if none (and not created).
+	private Node find(String key, boolean create){
+		Node node=this.root;
+		int start=0;
+		while (true){
+			int dot=key.indexOf('.', start);
+			int end=dot<0?key.length():dot;
+			int index=indexOf(node, key, start, end);
+			if (index>=0){
+				node=node.children[index];
+			}else if (!create){
+				return null;
+			}else{
+				node=insertChild(node, -index-1, acquire(key.substring(start, end)));
+			}
+			if (dot<0){
+				return node;
+			}
+			start=dot+1;
+		}
+	}
+	private static Node insertChild(Node parent, int index, String segment){
+		if (parent.childCount==parent.children.length){
+			Node[] larger=new Node[parent.children.length==0?2:parent.children.length*2];
+			System.arraycopy(parent.children, 0, larger, 0, parent.childCount);
+			parent.children=larger;
+		}
+		System.arraycopy(parent.children, index, parent.children, index+1, parent.childCount-index);
+		Node child=new Node(segment, parent);
+		parent.children[index]=child;
+		parent.childCount++;
+		return child;
+	}
+	// remove empty nodes from node up to root.
+	private static void prune(Node node){
+		while (node.parent!=null && node.value==null && node.childCount==0){
+			Node parent=node.parent;
+			int index=indexOf(parent, node.segment, 0, node.segment.length());
+			System.arraycopy(parent.children, index+1, parent.children, index, parent.childCount-index-1);
+			parent.children[--parent.childCount]=null;
+			if (parent.childCount==0){
+				parent.children=NO_CHILDREN;
+			}
+			release(node.segment);
+			node=parent;
+		}
+	}
+
+	@Override
+	public synchronized String get(Object key){
+		if (!(key instanceof String)){
+			return null;
+		}
+		Node node=this.find((String)key, false);
+		return node==null?null:node.value;
+	}
+	@Override
+	public boolean containsKey(Object key){
+		return this.get(key)!=null;
+	}
+	@Override
+	public synchronized String put(String key, String value){
+		if (key==null || value==null){
+			throw new NullPointerException();
+		}
+		Node node=this.find(key, true);
+		String old=node.value;
+		node.value=acquire(value); // before release: old may be value.
+		if (old==null){
+			this.size++;
+		}else{
+			release(old);
+		}
+		return old;
+	}
+	@Override
+	public synchronized String remove(Object key){
+		if (!(key instanceof String)){
+			return null;
+		}
+		Node node=this.find((String)key, false);
+		if (node==null || node.value==null){
+			return null;
+		}
+		String old=node.value;
+		node.value=null;
+		release(old);
+		this.size--;
+		prune(node);
+		return old;
+	}
+	@Override
+	public synchronized int size(){
+		return this.size;
+	}
+	@Override
+	public synchronized void clear(){
+		this.clear(this.root);
+		this.root.children=NO_CHILDREN;
+		this.root.childCount=0;
+		this.size=0;
+	}
+	private void clear(Node node){
+		if (node.value!=null){
+			release(node.value);
+		}
+		if (node.segment!=null){
+			release(node.segment);
+		}
+		for (int i=0; i<node.childCount; i++){
+			this.clear(node.children[i]);
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet(){
+		if (this.entrySet==null){
+			this.entrySet=new AbstractSet<Map.Entry<String, String>>(){
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator(){
+					return new EntryIterator();
+				}
+				@Override
+				public int size(){
+					return CompactMap.this.size();
+				}
+				@Override
+				public void clear(){
+					CompactMap.this.clear();
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+	// first node with a value in the subtree of node, node first (a node without value has children).
+	private static Node first(Node node){
+		while (node.value==null){
+			node=node.children[0];
+		}
+		return node;
+	}
+	// first node with a value after the key of segments path in trie order (null: from the start),
+	// null if none. path may not be in the map anymore.
+	private Node next(String[] path){
+		if (path==null){
+			return this.root.childCount==0?null:first(this.root.children[0]);
+		}
+		Node[] nodes=new Node[path.length+1]; // nodes of path still there
+		nodes[0]=this.root;
+		int depth=0;
+		while (depth<path.length){
+			int index=indexOf(nodes[depth], path[depth], 0, path[depth].length());
+			if (index<0){
+				break;
+			}
+			nodes[depth+1]=nodes[depth].children[index];
+			depth++;
+		}
+		if (depth==path.length && nodes[depth].childCount>0){
+			return first(nodes[depth].children[0]);
+		}
+		for (int level=Math.min(depth, path.length-1); level>=0; level--){
+			Node parent=nodes[level];
+			int index=indexOf(parent, path[level], 0, path[level].length());
+			index=index>=0?index+1:-index-1; // next sibling
+			if (index<parent.childCount){
+				return first(parent.children[index]);
+			}
+		}
+		return null;
+	}
+	private static String[] pathOf(Node node){
+		int depth=0;
+		for (Node n=node; n.parent!=null; n=n.parent){
+			depth++;
+		}
+		String[] result=new String[depth];
+		for (Node n=node; n.parent!=null; n=n.parent){
+			result[--depth]=n.segment;
+		}
+		return result;
+	}
+	private static String keyOf(String[] path){
+		StringBuilder key=new StringBuilder();
+		for (int i=0; i<path.length; i++){
+			if (i>0){
+				key.append('.');
+			}
+			key.append(path[i]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Walks the trie in segments order. Each step looks the successor of the last key up again
+	 * (under the map lock), so changes meanwhile never make it skip nor repeat a key.
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private String[] path=null; // of next (or last returned) entry
+		private Map.Entry<String, String> next=null;
+		private boolean done=false;
+		private String lastKey=null;
+
+		@Override
+		public boolean hasNext(){
+			if (this.next==null && !this.done){
+				synchronized (CompactMap.this){
+					Node node=CompactMap.this.next(this.path);
+					if (node==null){
+						this.done=true;
+					}else{
+						this.path=pathOf(node);
+						this.next=new SimpleImmutableEntry<String, String>(keyOf(this.path), node.value);
+					}
+				}
+			}
+			return this.next!=null;
+		}
+		@Override
+		public Map.Entry<String, String> next(){
+			if (!this.hasNext()){
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> result=this.next;
+			this.next=null;
+			this.lastKey=result.getKey();
+			return result;
+		}
+		@Override
+		public void remove(){
+			if (this.lastKey==null){
+				throw new IllegalStateException();
+			}
+			CompactMap.this.remove(this.lastKey);
+			this.lastKey=null;
+		}
+	}
+}
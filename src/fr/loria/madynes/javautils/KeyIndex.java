@@ -0,0 +1,131 @@
+package fr.loria.madynes.javautils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.ResourceBundle;
+
+/**
+ * One-time index of the keys of a properties bundle, built at {@link Properties} construction.
+ *
+ * Each base key is grouped with its meta properties (key._editable, key._type, key._sysfirst,
+ * key._label, key._tip) in a {@link KeyMeta} record, so meta queries are a single hash look-up
+ * without suffix concatenation. Base keys are also kept sorted for prefix (range) queries.
+ * A bundle is immutable, so is the index.
+ */
+final class KeyIndex {
+	/** Meta properties of one base key. */
+	static final class KeyMeta {
+		final boolean editable;
+		final String type; // null if no key._type
+		final boolean systemFirst;
+		final String label; // null if no key._label
+		final String tip; // null if no key._tip
+		private KeyMeta(boolean editable, String type, boolean systemFirst, String label, String tip){
+			this.editable=editable;
+			this.type=type;
+			this.systemFirst=systemFirst;
+			this.label=label;
+			this.tip=tip;
+		}
+	}
+	/** Meta of keys without any meta property. */
+	static final KeyMeta NO_META=new KeyMeta(false, null, false, null, null);
+
+	private static final String[] META_SUFFIXES={
+		Properties.EDITABLE_KEY_SUFFIX, Properties.TYPE_KEY_SUFFIX, Properties.SYS_PROP_FIRST_KEY_SUFFIX,
+		Properties.LABEL_KEY_SUFFIX, Properties.TIP_KEY_SUFFIX
+	};
+
+	// base key -> meta, only for keys with at least one meta property.
+	private final HashMap<String, KeyMeta> metas=new HashMap<String, KeyMeta>();
+	// all keys but meta ones.
+	private final TreeSet<String> baseKeys=new TreeSet<String>();
+	private final SortedSet<String> editableKeys;
+
+	/**
+	 * @param configuration bundle to index, may be null (empty index).
+	 */
+	KeyIndex(ResourceBundle configuration){
+		TreeSet<String> editable=new TreeSet<String>();
+		if (configuration!=null){
+			HashMap<String, String[]> attributes=new HashMap<String, String[]>(); // base key -> meta values by suffix index
+			for (String key: configuration.keySet()){
+				int suffix=metaSuffixIndex(key);
+				if (suffix<0){
+					this.baseKeys.add(key);
+				}else{
+					String base=key.substring(0, key.length()-META_SUFFIXES[suffix].length());
+					String[] values=attributes.get(base);
+					if (values==null){
+						values=new String[META_SUFFIXES.length];
+						attributes.put(base, values);
+					}
+					values[suffix]=configuration.getString(key);
+				}
+			}
+			for (Map.Entry<String, String[]> e: attributes.entrySet()){
+				String[] v=e.getValue();
+				this.metas.put(e.getKey(), new KeyMeta(v[0]!=null, v[1], v[2]!=null, v[3], v[4]));
+				// as before: key._editable._editable does not make key._editable editable.
+				if (v[0]!=null && this.baseKeys.contains(e.getKey())){
+					editable.add(e.getKey());
+				}
+			}
+		}
+		this.editableKeys=Collections.unmodifiableSortedSet(editable);
+	}
+
+	private static int metaSuffixIndex(String key){
+		for (int i=0; i<META_SUFFIXES.length; i++){
+			if (key.endsWith(META_SUFFIXES[i])){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** @return the bundle instance of key if it is a base key, else key itself (so maps keyed by it share the bundle string). */
+	String canonical(String key){
+		String result=this.baseKeys.floor(key);
+		return key.equals(result)?result:key;
+	}
+
+	/** @return true if key is a base key. */
+	boolean contains(String key){
+		return this.baseKeys.contains(key);
+	}
+
+	/** @return meta of key, never null (see {@link #NO_META}). */
+	KeyMeta get(String key){
+		KeyMeta result=this.metas.get(key);
+		return result==null?NO_META:result;
+	}
+
+	/** @return base key -> type (key._type value), for keys with a type. */
+	Map<String, String> types(){
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (Map.Entry<String, KeyMeta> e: this.metas.entrySet()){
+			if (e.getValue().type!=null){
+				result.put(e.getKey(), e.getValue().type);
+			}
+		}
+		return result;
+	}
+
+	/** @return editable base keys (unmodifiable, shared). */
+	SortedSet<String> editableKeys(){
+		return this.editableKeys;
+	}
+
+	/** @return base keys starting with prefix (unmodifiable view, sorted). */
+	SortedSet<String> keysWithPrefix(String prefix){
+		if (prefix.length()==0){
+			return Collections.unmodifiableSortedSet(this.baseKeys);
+		}
+		// [prefix, prefix+Character.MAX_VALUE[ holds every key starting with prefix.
+		return Collections.unmodifiableSortedSet(this.baseKeys.subSet(prefix, prefix+Character.MAX_VALUE));
+	}
+}
@@ -0,0 +1,47 @@
+package fr.loria.madynes.javautils;
+
+/**
+ * Reusable CharSequence view of a part of a String: one element of a list property
+ * (see {@link Properties#forEachListElement(String, java.util.function.Consumer)}).
+ *
+ * The view is moved from element to element, so no substring is allocated unless
+ * {@link #toString()} is called. It must not be kept after the element has been handled.
+ */
+final class ListSegment implements CharSequence {
+	private final String s;
+	private int start;
+	private int end;
+
+	ListSegment(String s){
+		this.s=s;
+	}
+
+	/** Move the view to s[start, end[. */
+	void set(int start, int end){
+		this.start=start;
+		this.end=end;
+	}
+
+	@Override
+	public int length(){
+		return this.end-this.start;
+	}
+	@Override
+	public char charAt(int index){
+		if (index<0 || index>=this.end-this.start){
+			throw new IndexOutOfBoundsException("index "+index+", length "+(this.end-this.start));
+		}
+		return this.s.charAt(this.start+index);
+	}
+	@Override
+	public CharSequence subSequence(int from, int to){
+		if (from<0 || to>this.end-this.start || from>to){
+			throw new IndexOutOfBoundsException("["+from+", "+to+"[, length "+(this.end-this.start));
+		}
+		return this.s.substring(this.start+from, this.start+to);
+	}
+	@Override
+	public String toString(){
+		return this.s.substring(this.start, this.end);
+	}
+}
@@ -75,8 +75,9 @@ public class LoggerFrame extends JFrame {
 	 */
 	private LoggerText lt=null;
 	private Handler h=null;
-	// See MesssageFormat
-	private String messageFormat;
+	// See MesssageFormat. Compiled once, only used by the EDT.
+	private MessageFormat compiledFormat;
+
 	
 	public LoggerFrame(String windowTitle, Logger pLg, String mf, int r, int c){
 		this(windowTitle, pLg, mf, r, c, null);
@@ -86,7 +87,7 @@ public class LoggerFrame extends JFrame {
 		if (wIcone!=null){
 			setIconImage(wIcone);
 		}
-		this.messageFormat=mf;
+		this.compiledFormat=new MessageFormat(mf); // parsed once, not for each record.
 		this.lg=pLg;
 	    setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
@@ -156,12 +157,11 @@ public class LoggerFrame extends JFrame {
 								Throwable t=r.getThrown();
 								try {
 									doc.insertString(doc.getLength(),
-									MessageFormat.format(
-											messageFormat,
+									compiledFormat.format(new Object[]{
 											(cn!=null?cn:""), // {0}
 											(mn!=null?mn:""), // {1}
 											(m!=null?m:""),   // {2}
-											(t!=null?t.toString():""))+"\n", // {3}
+											(t!=null?t.toString():"")})+"\n", // {3}
 											(r.getLevel().equals(Level.WARNING))?warningSet:infoSet
 											);
 								} catch (BadLocationException e) {
@@ -0,0 +1,129 @@
+package fr.loria.madynes.javautils;
+
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Application messages (see {@link Properties#setMessages(String)}) with cached look-ups.
+ *
+ * Resolved messages are cached per locale in a flat key -> message map, misses included,
+ * so a look-up is one hash look-up and never throws. Patterns are compiled once
+ * into a MessageFormat per (locale, key). Changing the locale only switches the active map:
+ * messages of other locales stay cached, bundles of a new locale are loaded on first need.
+ */
+final class MessageCatalog {
+	// Cached entry of a key: message and its compiled format (built on first format).
+	private static final class Entry {
+		final String message; // null if missing
+		private MessageFormat format; // guarded by this
+		Entry(String message){
+			this.message=message;
+		}
+	}
+	private static final Entry MISSING=new Entry(null);
+
+	/** Messages of one locale. */
+	private static final class LocaleMessages {
+		final Locale locale;
+		final ResourceBundle bundle; // null if it can not be loaded
+		final ConcurrentHashMap<String, Entry> entries=new ConcurrentHashMap<String, Entry>();
+		LocaleMessages(Locale locale, ResourceBundle bundle){
+			this.locale=locale;
+			this.bundle=bundle;
+		}
+	}
+
+	private final String baseName;
+	private final ConcurrentHashMap<Locale, LocaleMessages> locales=new ConcurrentHashMap<Locale, LocaleMessages>();
+	private volatile LocaleMessages current;
+
+	/**
+	 * @throws MissingResourceException if the bundle can not be found for locale
+	 */
+	MessageCatalog(String baseName, Locale locale) throws MissingResourceException {
+		this.baseName=baseName;
+		this.current=this.messagesOf(locale, true);
+	}
+
+	private LocaleMessages messagesOf(Locale locale, boolean mandatory) throws MissingResourceException {
+		LocaleMessages result=this.locales.get(locale);
+		if (result==null){
+			ResourceBundle bundle=null;
+			try{
+				bundle=ResourceBundle.getBundle(this.baseName, locale);
+			}catch(MissingResourceException e){
+				if (mandatory){
+					throw e;
+				}
+			}
+			LocaleMessages messages=new LocaleMessages(locale, bundle);
+			result=this.locales.putIfAbsent(locale, messages);
+			if (result==null){
+				result=messages;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Switch messages to locale (cached messages of the previous locale are kept).
+	 * @return false if no bundle can be found for locale (locale not changed)
+	 */
+	boolean setLocale(Locale locale){
+		LocaleMessages messages=this.messagesOf(locale, false);
+		if (messages.bundle==null){
+			return false;
+		}
+		this.current=messages;
+		return true;
+	}
+	Locale getLocale(){
+		return this.current.locale;
+	}
+	ResourceBundle getBundle(){
+		return this.current.bundle;
+	}
+
+	private static Entry entry(LocaleMessages messages, String key){
+		Entry result=messages.entries.get(key);
+		if (result==null){
+			if (messages.bundle!=null && messages.bundle.containsKey(key)){
+				result=new Entry(messages.bundle.getString(key));
+			}else{
+				result=MISSING;
+			}
+			Entry existing=messages.entries.putIfAbsent(key, result);
+			if (existing!=null){
+				result=existing;
+			}
+		}
+		return result;
+	}
+
+	/** @return message of key or null if missing. */
+	String get(String key){
+		return entry(this.current, key).message;
+	}
+
+	/**
+	 * Format the message of key with args, its MessageFormat is compiled once.
+	 * @return the formatted message or null if key is missing
+	 * @throws IllegalArgumentException if the message is not a valid pattern or args do not fit it
+	 */
+	String format(String key, Object... args) throws IllegalArgumentException {
+		LocaleMessages messages=this.current;
+		Entry entry=entry(messages, key);
+		if (entry.message==null){
+			return null;
+		}
+		synchronized (entry){ // MessageFormat is not thread safe, formats are short.
+			if (entry.format==null){
+				entry.format=new MessageFormat(entry.message, messages.locale);
+			}
+			return entry.format.format(args);
+		}
+	}
+}
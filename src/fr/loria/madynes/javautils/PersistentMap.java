@@ -0,0 +1,277 @@
+package fr.loria.madynes.javautils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable String to String map with structural sharing: a hash array mapped trie
+ * (see {@link Properties#snapshot()}).
+ *
+ * {@link #plus(String, String)} and {@link #minus(String)} return a new map which shares all
+ * nodes but the (at most 7) ones on the path of the key: a change is O(log32 n), whatever the
+ * number of snapshots holding older versions. A node has a 32 bits bitmap of its used hash
+ * slices (5 bits per level) and an array of (key, value) pairs, key null for a child node.
+ * Keys whose hashes are equal end in a collision node (all hash bits used), searched linearly.
+ *
+ * Thread safe (immutable). Null keys and values are not allowed. Iteration order is hash order.
+ */
+final class PersistentMap extends AbstractMap<String, String> {
+	private static final int BITS=5;
+	private static final int MASK=(1<<BITS)-1;
+	static final PersistentMap EMPTY=new PersistentMap(null, 0);
+
+	// bitmap 0 and shift>=32: collision node, array holds (key, value) pairs only.
+	private static final class Node {
+		final int bitmap;
+		final Object[] array;
+		Node(int bitmap, Object[] array){
+			this.bitmap=bitmap;
+			this.array=array;
+		}
+	}
+
+	private final Node root; // null if empty
+	private final int size;
+	private Set<Map.Entry<String, String>> entrySet=null;
+
+	private PersistentMap(Node root, int size){
+		this.root=root;
+		this.size=size;
+	}
+
+	/** @return a map of values (copied). */
+	static PersistentMap of(Map<String, String> values){
+		PersistentMap result=EMPTY;
+		for (Map.Entry<String, String> e: values.entrySet()){
+			result=result.plus(e.getKey(), e.getValue());
+		}
+		return result;
+	}
+
+	@Override
+	public int size(){
+		return this.size;
+	}
+	@Override
+	public String get(Object key){
+		return key instanceof String && this.root!=null?find(this.root, 0, key.hashCode(), (String)key):null;
+	}
+	@Override
+	public boolean containsKey(Object key){
+		return this.get(key)!=null;
+	}
+
+	/** @return this map with key mapped to value (this if it already was). */
+	PersistentMap plus(String key, String value){
+		if (key==null || value==null){
+			throw new NullPointerException();
+		}
+		int hash=key.hashCode();
+		if (this.root==null){
+			return new PersistentMap(new Node(1<<(hash&MASK), new Object[]{key, value}), 1);
+		}
+		boolean[] added=new boolean[1];
+		Node root=put(this.root, 0, hash, key, value, added);
+		return root==this.root?this:new PersistentMap(root, added[0]?this.size+1:this.size);
+	}
+	/** @return this map without key (this if key was absent). */
+	PersistentMap minus(String key){
+		if (this.root==null || key==null){
+			return this;
+		}
+		Node root=remove(this.root, 0, key.hashCode(), key);
+		return root==this.root?this:new PersistentMap(root, this.size-1);
+	}
+
+	// index in node array of the pair of slice bit.
+	private static int index(int bitmap, int bit){
+		return 2*Integer.bitCount(bitmap&(bit-1));
+	}
+
+	private static String find(Node node, int shift, int hash, String key){
+		while (true){
+			if (shift>=32){
+				for (int i=0; i<node.array.length; i+=2){
+					if (key.equals(node.array[i])){
+						return (String)node.array[i+1];
+					}
+				}
+				return null;
+			}
+			int bit=1<<((hash>>>shift)&MASK);
+			if ((node.bitmap&bit)==0){
+				return null;
+			}
+			int i=index(node.bitmap, bit);
+			Object k=node.array[i];
+			if (k!=null){
+				return key.equals(k)?(String)node.array[i+1]:null;
+			}
+			node=(Node)node.array[i+1];
+			shift+=BITS;
+		}
+	}
+
+	// @return node with key put (node itself if unchanged), added[0] set if key is new.
+	private static Node put(Node node, int shift, int hash, String key, String value, boolean[] added){
+		if (shift>=32){
+			for (int i=0; i<node.array.length; i+=2){
+				if (key.equals(node.array[i])){
+					return value.equals(node.array[i+1])?node:new Node(0, with(node.array, i+1, value));
+				}
+			}
+			added[0]=true;
+			return new Node(0, inserted(node.array, node.array.length, key, value));
+		}
+		int bit=1<<((hash>>>shift)&MASK);
+		int i=index(node.bitmap, bit);
+		if ((node.bitmap&bit)==0){
+			added[0]=true;
+			return new Node(node.bitmap|bit, inserted(node.array, i, key, value));
+		}
+		Object k=node.array[i];
+		if (k==null){
+			Node child=(Node)node.array[i+1];
+			Node newChild=put(child, shift+BITS, hash, key, value, added);
+			return newChild==child?node:new Node(node.bitmap, with(node.array, i+1, newChild));
+		}
+		if (key.equals(k)){
+			return value.equals(node.array[i+1])?node:new Node(node.bitmap, with(node.array, i+1, value));
+		}
+		added[0]=true;
+		Node child=pair(shift+BITS, (String)k, (String)node.array[i+1], hash, key, value);
+		Object[] array=with(node.array, i, null);
+		array[i+1]=child;
+		return new Node(node.bitmap, array);
+	}
+	// node of two keys, from shift.
+	private static Node pair(int shift, String key1, String value1, int hash2, String key2, String value2){
+		if (shift>=32){
+			return new Node(0, new Object[]{key1, value1, key2, value2});
+		}
+		int hash1=key1.hashCode();
+		int slice1=(hash1>>>shift)&MASK;
+		int slice2=(hash2>>>shift)&MASK;
+		if (slice1==slice2){
+			return new Node(1<<slice1, new Object[]{null, pair(shift+BITS, key1, value1, hash2, key2, value2)});
+		}
+		return new Node((1<<slice1)|(1<<slice2), slice1<slice2
+				?new Object[]{key1, value1, key2, value2}:new Object[]{key2, value2, key1, value1});
+	}
+
+	// @return node without key (node itself if absent), null if empty.
+	private static Node remove(Node node, int shift, int hash, String key){
+		if (shift>=32){
+			for (int i=0; i<node.array.length; i+=2){
+				if (key.equals(node.array[i])){
+					return node.array.length==2?null:new Node(0, without(node.array, i));
+				}
+			}
+			return node;
+		}
+		int bit=1<<((hash>>>shift)&MASK);
+		if ((node.bitmap&bit)==0){
+			return node;
+		}
+		int i=index(node.bitmap, bit);
+		Object k=node.array[i];
+		if (k==null){
+			Node child=(Node)node.array[i+1];
+			Node newChild=remove(child, shift+BITS, hash, key);
+			if (newChild==child){
+				return node;
+			}
+			if (newChild!=null){
+				return new Node(node.bitmap, with(node.array, i+1, newChild));
+			}
+		}else if (!key.equals(k)){
+			return node;
+		}
+		return node.bitmap==bit?null:new Node(node.bitmap&~bit, without(node.array, i));
+	}
+
+	private static Object[] with(Object[] array, int i, Object o){
+		Object[] result=array.clone();
+		result[i]=o;
+		return result;
+	}
+	private static Object[] inserted(Object[] array, int i, String key, String value){
+		Object[] result=new Object[array.length+2];
+		System.arraycopy(array, 0, result, 0, i);
+		result[i]=key;
+		result[i+1]=value;
+		System.arraycopy(array, i, result, i+2, array.length-i);
+		return result;
+	}
+	private static Object[] without(Object[] array, int i){
+		Object[] result=new Object[array.length-2];
+		System.arraycopy(array, 0, result, 0, i);
+		System.arraycopy(array, i+2, result, i, array.length-i-2);
+		return result;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet(){
+		if (this.entrySet==null){
+			this.entrySet=new AbstractSet<Map.Entry<String, String>>(){
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator(){
+					return new EntryIterator(PersistentMap.this.root);
+				}
+				@Override
+				public int size(){
+					return PersistentMap.this.size;
+				}
+			};
+		}
+		return this.entrySet;
+	}
+
+	/** Depth first walk: one (node, next pair index) per level. */
+	private static final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private final Node[] nodes=new Node[8];
+		private final int[] indexes=new int[8];
+		private int depth;
+
+		EntryIterator(Node root){
+			this.nodes[0]=root;
+			this.depth=root==null?-1:0;
+		}
+		@Override
+		public boolean hasNext(){
+			while (this.depth>=0){
+				Node node=this.nodes[this.depth];
+				int i=this.indexes[this.depth];
+				if (i>=node.array.length){
+					this.depth--;
+				}else if (node.array[i]==null){
+					this.indexes[this.depth]=i+2;
+					this.depth++;
+					this.nodes[this.depth]=(Node)node.array[i+1];
+					this.indexes[this.depth]=0;
+				}else{
+					return true;
+				}
+			}
+			return false;
+		}
+		@Override
+		public Map.Entry<String, String> next(){
+			if (!this.hasNext()){
+				throw new NoSuchElementException();
+			}
+			Node node=this.nodes[this.depth];
+			int i=this.indexes[this.depth];
+			this.indexes[this.depth]=i+2;
+			return new SimpleImmutableEntry<String, String>((String)node.array[i], (String)node.array[i+1]);
+		}
+		@Override
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+}
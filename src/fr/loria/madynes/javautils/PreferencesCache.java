@@ -0,0 +1,293 @@
+package fr.loria.madynes.javautils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary, memory mapped, cache of a preferences file: it saves the text parse at start up
+ * (see {@link Properties#setBinaryCacheEnabled(boolean)}).
+ *
+ * Layout (big endian):
+ * <pre>
+ * int magic, int version, long source last modified, long source length, long source content hash,
+ * long verified time, int entry count, int string count,
+ * entries: (int key string, int value string) * entry count, sorted by key
+ * string offsets: int * string count (from start of file)
+ * strings: (int length, char * length) * string count, each distinct string once
+ * </pre>
+ * Preferences are not copied on heap: {@link #get(String)} binary searches the sorted entries
+ * and decodes the value straight from the mapped buffer (see {@link CachedMap}).
+ *
+ * The cache is valid as long as the preferences file has the same last modified time and length.
+ * Like git does for its index, the content hash (CRC32) is only checked when the source was
+ * "racily clean": modified less than {@link #RACY_WINDOW} before it was known to match the hash
+ * (verified time), so that an edit within the last modified time granularity could keep
+ * both. Otherwise any later edit gets a later last modified time, and the source is not read.
+ * An edit which restores the last modified time by hand is not detected.
+ *
+ * The structure (indexes, offsets and string lengths) is checked by {@link #open(File)}:
+ * a corrupted cache is rejected, a look-up never reads outside the buffer.
+ */
+final class PreferencesCache {
+	private static final int MAGIC=0x4A555043; // "JUPC"
+	private static final int VERSION=3;
+	private static final int HEADER_SIZE=4+4+8+8+8+8+4+4;
+	private static final int VERIFIED_TIME=32; // position in header
+	/** Last modified time granularity (FAT), and more. */
+	static final long RACY_WINDOW=2000;
+	static final String SUFFIX=".cache";
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int stringOffsets; // position of string offsets table
+
+	private PreferencesCache(ByteBuffer buffer, int count){
+		this.buffer=buffer;
+		this.count=count;
+		this.stringOffsets=HEADER_SIZE+count*8;
+	}
+
+	/** @return the cache file of a preferences file. */
+	static File cacheFileOf(File prefFile){
+		return new File(prefFile.getPath()+SUFFIX);
+	}
+
+	/**
+	 * Map the cache of a preferences file.
+	 * @param prefFile preferences (source) file
+	 * @return the cache or null if it does not exist or is out of date.
+	 * @throws IOException if it can not be read or is corrupted
+	 */
+	static PreferencesCache open(File prefFile) throws IOException {
+		File cacheFile=cacheFileOf(prefFile);
+		if (!cacheFile.isFile()){
+			return null;
+		}
+		MappedByteBuffer buffer;
+		FileChannel channel=FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+		try{
+			long size=channel.size();
+			if (size<HEADER_SIZE || size>Integer.MAX_VALUE){
+				throw new IOException("bad size "+size);
+			}
+			buffer=channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // stays valid once channel is closed.
+		}finally{
+			channel.close();
+		}
+		if (buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION){
+			return null; // older format: rewritten by the next parse.
+		}
+		long lastModified=buffer.getLong(8);
+		if (lastModified!=prefFile.lastModified() || buffer.getLong(16)!=prefFile.length()){
+			return null;
+		}
+		int count=buffer.getInt(40);
+		int stringCount=buffer.getInt(44);
+		if (count<0 || stringCount<0 || HEADER_SIZE+(long)count*8+(long)stringCount*4>buffer.limit()){
+			throw new IOException("bad entry count "+count+" or string count "+stringCount);
+		}
+		checkStructure(buffer, count, stringCount);
+		if (buffer.getLong(VERIFIED_TIME)-lastModified<RACY_WINDOW){
+			if (buffer.getLong(24)!=contentHash(prefFile)){
+				return null; // same time and length, but edited.
+			}
+			long now=System.currentTimeMillis();
+			if (now-lastModified>=RACY_WINDOW){
+				markVerified(cacheFile, now); // next starts do not hash the source again.
+			}
+		}
+		return new PreferencesCache(buffer, count);
+	}
+	// Every entry refers to a string, strings follow each other up to the end of the buffer.
+	private static void checkStructure(ByteBuffer buffer, int count, int stringCount) throws IOException {
+		for (int i=0; i<count*2; i++){
+			int index=buffer.getInt(HEADER_SIZE+i*4);
+			if (index<0 || index>=stringCount){
+				throw new IOException("bad string index "+index+" in entry "+i/2);
+			}
+		}
+		long pos=HEADER_SIZE+count*8L+stringCount*4L;
+		for (int i=0; i<stringCount; i++){
+			if (buffer.getInt(HEADER_SIZE+count*8+i*4)!=pos || pos>buffer.limit()-4){
+				throw new IOException("bad string offset "+buffer.getInt(HEADER_SIZE+count*8+i*4)+" of string "+i);
+			}
+			int len=buffer.getInt((int)pos);
+			if (len<0 || pos+4+2L*len>buffer.limit()){
+				throw new IOException("bad string length "+len+" at "+pos);
+			}
+			pos+=4+2L*len;
+		}
+		if (pos!=buffer.limit()){
+			throw new IOException("bad size "+buffer.limit()+", "+pos+" expected");
+		}
+	}
+	// Best effort: a failure only means the source is hashed again next time.
+	private static void markVerified(File cacheFile, long time){
+		try{
+			FileChannel channel=FileChannel.open(cacheFile.toPath(), StandardOpenOption.WRITE);
+			try{
+				ByteBuffer value=ByteBuffer.allocate(8).putLong(0, time);
+				while (value.hasRemaining()){
+					channel.write(value, VERIFIED_TIME+value.position());
+				}
+			}finally{
+				channel.close();
+			}
+		}catch(IOException e){
+			// hashed again.
+		}
+	}
+
+	/** @return number of entries. */
+	int size(){
+		return this.count;
+	}
+	String key(int i){
+		return this.string(this.buffer.getInt(HEADER_SIZE+i*8));
+	}
+	String value(int i){
+		return this.string(this.buffer.getInt(HEADER_SIZE+i*8+4));
+	}
+	/** @return index of the entry of key, or -1. Nothing is decoded nor allocated. */
+	int indexOf(String key){
+		int low=0;
+		int high=this.count-1;
+		while (low<=high){
+			int mid=(low+high)>>>1;
+			int c=this.compare(this.buffer.getInt(HEADER_SIZE+mid*8), key);
+			if (c<0){
+				low=mid+1;
+			}else if (c>0){
+				high=mid-1;
+			}else{
+				return mid;
+			}
+		}
+		return -1;
+	}
+	/** @return value of key or null. */
+	String get(String key){
+		int i=this.indexOf(key);
+		return i<0?null:this.value(i);
+	}
+
+	// compare string index to s, as String.compareTo (order of the entries).
+	private int compare(int index, String s){
+		int pos=this.buffer.getInt(this.stringOffsets+index*4);
+		int len=this.buffer.getInt(pos);
+		int n=Math.min(len, s.length());
+		for (int i=0; i<n; i++){
+			int c=this.buffer.getChar(pos+4+i*2)-s.charAt(i);
+			if (c!=0){
+				return c;
+			}
+		}
+		return len-s.length();
+	}
+	private String string(int index){
+		int pos=this.buffer.getInt(this.stringOffsets+index*4);
+		int len=this.buffer.getInt(pos);
+		char[] chars=new char[len];
+		for (int i=0; i<len; i++){
+			chars[i]=this.buffer.getChar(pos+4+i*2);
+		}
+		return new String(chars);
+	}
+
+	/** @return hash of content, from its position to its limit (position is moved to the limit). */
+	static long contentHash(ByteBuffer content){
+		CRC32 crc=new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+	/** @return hash of the content of file (see {@link #contentHash(ByteBuffer)}). */
+	static long contentHash(File file) throws IOException {
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			return contentHash(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write the cache of a preferences file (to a temporary file, then moved).
+	 * @param prefFile preferences (source) file
+	 * @param lastModified last modified time of prefFile when values have been read
+	 * @param length length of prefFile when values have been read
+	 * @param contentHash hash of the content values have been read from (see {@link #contentHash(ByteBuffer)})
+	 * @param verifiedTime time (before) the content was read
+	 * @param values preferences read from prefFile
+	 * @throws IOException
+	 */
+	static void write(File prefFile, long lastModified, long length, long contentHash, long verifiedTime, Map<String, String> values) throws IOException {
+		TreeMap<String, String> sorted=new TreeMap<String, String>(values);
+		// string table: each distinct string once.
+		HashMap<String, Integer> stringIndexes=new HashMap<String, Integer>();
+		String[] strings=new String[sorted.size()*2];
+		int stringCount=0;
+		int[] entries=new int[sorted.size()*2];
+		int e=0;
+		long stringsSize=0;
+		for (Map.Entry<String, String> entry: sorted.entrySet()){
+			for (String s: new String[]{entry.getKey(), entry.getValue()}){
+				Integer index=stringIndexes.get(s);
+				if (index==null){
+					index=Integer.valueOf(stringCount);
+					stringIndexes.put(s, index);
+					strings[stringCount++]=s;
+					stringsSize+=4+2L*s.length();
+				}
+				entries[e++]=index.intValue();
+			}
+		}
+		long size=HEADER_SIZE+4L*entries.length+4L*stringCount+stringsSize;
+		if (size>Integer.MAX_VALUE){
+			throw new IOException("preferences too large for cache");
+		}
+		ByteBuffer buffer=ByteBuffer.allocate((int)size);
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(lastModified).putLong(length).putLong(contentHash).putLong(verifiedTime);
+		buffer.putInt(sorted.size()).putInt(stringCount);
+		for (int entry: entries){
+			buffer.putInt(entry);
+		}
+		int offset=HEADER_SIZE+4*entries.length+4*stringCount;
+		for (int i=0; i<stringCount; i++){
+			buffer.putInt(offset);
+			offset+=4+2*strings[i].length();
+		}
+		for (int i=0; i<stringCount; i++){
+			buffer.putInt(strings[i].length());
+			for (int j=0; j<strings[i].length(); j++){
+				buffer.putChar(strings[i].charAt(j));
+			}
+		}
+		buffer.flip();
+		Path target=cacheFileOf(prefFile).toPath();
+		Path tmp=Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+		try{
+			FileChannel channel=FileChannel.open(tmp, StandardOpenOption.WRITE);
+			try{
+				while (buffer.hasRemaining()){
+					channel.write(buffer);
+				}
+			}finally{
+				channel.close();
+			}
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package fr.loria.madynes.javautils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser of preferences files (.properties format, as java.util.Properties.load).
+ *
+ * Bytes are decoded on the fly, as UTF-8 or, if the content is not valid UTF-8, as ISO 8859-1
+ * (same rule as PropertyResourceBundle). Keys and values are unescaped in a reusable char
+ * buffer and put directly in the target map: only the key and value Strings are allocated.
+ * Supported grammar: comment lines (# or !), key/value separators ('=', ':' or white spaces),
+ * line continuations (odd number of '\' at end of line), \t \n \r \f and \\uXXXX escapes.
+ * A malformed \\uXXXX escape only drops its entry, it is reported with its line and column.
+ */
+final class PreferencesParser {
+	// invalid UTF-8 sequence: parse again in ISO 8859-1.
+	@SuppressWarnings("serial")
+	private static final class MalformedInputException extends Exception {
+		MalformedInputException(){
+			super(null, null, false, false);
+		}
+	}
+	private static final int EOF=-1;
+	private static final int NONE=-2;
+
+	private final ByteBuffer in;
+	private final boolean utf8;
+	private final List<String> errors;
+	private char[] buffer=new char[128];
+	private int length;
+	private final int[] pushedBack=new int[2]; // chars read ahead (stack)
+	private int pushedBackCount=0;
+	private int lowSurrogate=NONE; // second half of a supplementary UTF-8 char
+	private int line=1;
+	private int column=0;
+	private boolean afterCR=false;
+	private boolean badEntry;
+	private boolean continuationAtEOF; // line end of last continuation was the last char
+
+	private PreferencesParser(ByteBuffer in, boolean utf8, List<String> errors){
+		this.in=in;
+		this.utf8=utf8;
+		this.errors=errors;
+	}
+
+	/**
+	 * Parse preferences and put them in target.
+	 * @param in preferences file content (from its position to its limit, left unchanged)
+	 * @param target where to put key/values
+	 * @param errors where to add errors messages ("line l, column c: message"), may be null
+	 * @return number of entries read
+	 */
+	static int parse(ByteBuffer in, Map<String, String> target, List<String> errors){
+		ArrayList<String> keys=new ArrayList<String>();
+		ArrayList<String> utf8Errors=new ArrayList<String>();
+		try {
+			return new PreferencesParser(in.duplicate(), true, utf8Errors).parse(target, keys, errors, utf8Errors);
+		} catch (MalformedInputException e) {
+			for (String key: keys){
+				target.remove(key); // read with the wrong charset.
+			}
+			try {
+				return new PreferencesParser(in.duplicate(), false, errors).parse(target, null, null, null);
+			} catch (MalformedInputException cannotHappen) {
+				throw new IllegalStateException(cannotHappen);
+			}
+		}
+	}
+
+	private int parse(Map<String, String> target, List<String> keys, List<String> errors, List<String> localErrors) throws MalformedInputException {
+		int count=0;
+		int c;
+		while ((c=this.skipWhiteSpaces(true))!=EOF){
+			if (c=='#' || c=='!'){
+				this.skipLine();
+				continue;
+			}
+			if (c=='\\'){
+				int next=this.read();
+				this.unread(next);
+				if (isLineEnd(next)){
+					this.escape(); // continuation of an empty line: still at a logical line start.
+					if (!this.continuationAtEOF){
+						continue;
+					}
+					c=EOF; // as java.util.Properties: an empty entry.
+				}
+			}
+			this.badEntry=false;
+			// key
+			this.length=0;
+			boolean hasSeparator=false;
+			while (c!=EOF && !isLineEnd(c)){
+				if (c=='\\'){
+					if (!this.escape()){
+						c=this.read();
+						continue;
+					}
+				}else if (c=='=' || c==':'){
+					hasSeparator=true;
+					break;
+				}else if (isWhiteSpace(c)){
+					break;
+				}else{
+					this.append((char)c);
+				}
+				c=this.read();
+			}
+			String key=new String(this.buffer, 0, this.length);
+			// separator
+			if (c!=EOF && !isLineEnd(c)){
+				c=this.skipWhiteSpaces(false);
+				if (!hasSeparator && (c=='=' || c==':')){
+					c=this.skipWhiteSpaces(false);
+				}
+			}
+			// value
+			this.length=0;
+			while (c!=EOF && !isLineEnd(c)){
+				if (c=='\\'){
+					if (!this.escape()){
+						c=this.read();
+						continue;
+					}
+				}else{
+					this.append((char)c);
+				}
+				c=this.read();
+			}
+			if (!this.badEntry){
+				target.put(key, new String(this.buffer, 0, this.length));
+				if (keys!=null){
+					keys.add(key);
+				}
+				count++;
+			}
+		}
+		if (errors!=null && localErrors!=null){
+			errors.addAll(localErrors);
+		}
+		return count;
+	}
+
+	/**
+	 * Handle the char(s) after a '\': line continuation or escaped char (appended to buffer).
+	 * @return false for a line continuation (nothing appended)
+	 */
+	private boolean escape() throws MalformedInputException {
+		int escapeLine=this.line;
+		int escapeColumn=this.column-this.pushedBackCount; // column of the '\\' (read ahead chars are counted)
+		int c=this.read();
+		switch (c){
+		case EOF:
+			return false;
+		case '\r':
+		case '\n':
+			// continuation: skip \r\n and leading white spaces of next line.
+			int next=this.read();
+			this.continuationAtEOF=next==EOF;
+			if (c!='\r' || next!='\n'){
+				this.unread(next);
+			}
+			int first=this.skipWhiteSpaces(false);
+			this.unread(first);
+			return false;
+		case 't': this.append('\t'); break;
+		case 'n': this.append('\n'); break;
+		case 'r': this.append('\r'); break;
+		case 'f': this.append('\f'); break;
+		case 'u':
+			int value=0;
+			for (int i=0; i<4; i++){
+				c=this.read();
+				if (c=='\\'){
+					int afterBackslash=this.read();
+					this.unread(afterBackslash);
+					if (isLineEnd(afterBackslash)){
+						this.escape(); // continuation within the escape (as java.util.Properties).
+						i--;
+						continue;
+					}
+				}
+				int digit=c>=0 && c<0x80?Character.digit(c, 16):-1;
+				if (digit<0){
+					this.error(escapeLine, escapeColumn, "malformed \\uxxxx encoding");
+					this.badEntry=true;
+					if (c!=EOF){
+						this.unread(c); // may end the line.
+					}
+					return true;
+				}
+				value=(value<<4)|digit;
+			}
+			this.append((char)value);
+			break;
+		default:
+			this.append((char)c);
+		}
+		return true;
+	}
+
+	private void error(int errorLine, int errorColumn, String message){
+		if (this.errors!=null){
+			this.errors.add("line "+errorLine+", column "+errorColumn+": "+message);
+		}
+	}
+
+	/**
+	 * Skip spaces, tabs and form feeds (and line ends if lineEnds, and line continuations if not).
+	 * @return next char
+	 */
+	private int skipWhiteSpaces(boolean lineEnds) throws MalformedInputException {
+		while (true){
+			int c=this.read();
+			if (isWhiteSpace(c) || (lineEnds && isLineEnd(c))){
+				continue;
+			}
+			if (c=='\\' && !lineEnds){
+				int next=this.read();
+				if (isLineEnd(next)){
+					this.unread(next);
+					this.escape(); // continuation
+					continue;
+				}
+				this.unread(next);
+			}
+			return c;
+		}
+	}
+	private void skipLine() throws MalformedInputException {
+		int c;
+		do{
+			c=this.read();
+		}while (c!=EOF && !isLineEnd(c));
+	}
+
+	private static boolean isWhiteSpace(int c){
+		return c==' ' || c=='\t' || c=='\f';
+	}
+	private static boolean isLineEnd(int c){
+		return c=='\n' || c=='\r';
+	}
+
+	private void append(char c){
+		if (this.length==this.buffer.length){
+			char[] larger=new char[this.buffer.length*2];
+			System.arraycopy(this.buffer, 0, larger, 0, this.length);
+			this.buffer=larger;
+		}
+		this.buffer[this.length++]=c;
+	}
+
+	private void unread(int c){
+		this.pushedBack[this.pushedBackCount++]=c;
+	}
+
+	/** @return next char or EOF. Tracks line and column. */
+	private int read() throws MalformedInputException {
+		int c;
+		if (this.pushedBackCount>0){
+			return this.pushedBack[--this.pushedBackCount]; // already counted.
+		}
+		if (this.lowSurrogate!=NONE){
+			c=this.lowSurrogate;
+			this.lowSurrogate=NONE;
+		}else if (!this.in.hasRemaining()){
+			return EOF;
+		}else{
+			c=this.in.get()&0xFF;
+			if (c>=0x80 && this.utf8){
+				c=this.decodeUTF8(c);
+			}
+		}
+		if (c=='\n'){
+			if (!this.afterCR){
+				this.line++;
+			}
+			this.column=0;
+		}else if (c=='\r'){
+			this.line++;
+			this.column=0;
+		}else{
+			this.column++;
+		}
+		this.afterCR=c=='\r';
+		return c;
+	}
+
+	private int decodeUTF8(int first) throws MalformedInputException {
+		int n;
+		int c;
+		if ((first&0xE0)==0xC0){
+			n=1;
+			c=first&0x1F;
+		}else if ((first&0xF0)==0xE0){
+			n=2;
+			c=first&0x0F;
+		}else if ((first&0xF8)==0xF0){
+			n=3;
+			c=first&0x07;
+		}else{
+			throw new MalformedInputException();
+		}
+		for (int i=0; i<n; i++){
+			if (!this.in.hasRemaining()){
+				throw new MalformedInputException();
+			}
+			int b=this.in.get()&0xFF;
+			if ((b&0xC0)!=0x80){
+				throw new MalformedInputException();
+			}
+			c=(c<<6)|(b&0x3F);
+		}
+		if ((n==1 && c<0x80) || (n==2 && c<0x800) || (n==3 && (c<0x10000 || c>0x10FFFF)) || (c>=0xD800 && c<=0xDFFF)){
+			throw new MalformedInputException(); // overlong, out of range or surrogate
+		}
+		if (c>=0x10000){
+			this.lowSurrogate=Character.lowSurrogate(c);
+			return Character.highSurrogate(c);
+		}
+		return c;
+	}
+}
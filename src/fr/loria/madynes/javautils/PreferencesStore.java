@@ -0,0 +1,324 @@
+package fr.loria.madynes.javautils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Writing of preferences files, in java.util.Properties format.
+ *
+ * Full saves write a temporary file (one buffered write) which is then atomically moved
+ * onto the preferences file: a crash never leaves a truncated file. The temporary file gets
+ * the permissions, owner and group of the preferences file (POSIX file systems), and the
+ * directory is forced to disk after the move, where supported.
+ * Incremental saves append changes to a journal file (preferences file name + ".journal"):
+ * <pre>
+ * +key=value   key set to value
+ * -key         key removed
+ * </pre>
+ * The journal is replayed when preferences are read and removed by the next full save.
+ * An incomplete last line (crash while appending) is ignored, and dropped by the next append
+ * (else the next entry would be glued to it).
+ */
+final class PreferencesStore {
+	static final String JOURNAL_SUFFIX=".journal";
+	private static final char[] HEX_DIGITS={'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+	private static final Random TEMP_NAMES=new Random();
+
+	private PreferencesStore(){
+	}
+
+	static File journalFileOf(File prefFile){
+		return new File(prefFile.getPath()+JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Escape s as java.util.Properties.store does (ISO 8859-1 output: other chars as \\uXXXX).
+	 * @param isKey keys also escape every space, values only a leading one.
+	 */
+	static void escape(StringBuilder out, String s, boolean isKey){
+		int len=s.length();
+		for (int i=0; i<len; i++){
+			char c=s.charAt(i);
+			switch (c){
+			case ' ':
+				if (i==0 || isKey){
+					out.append('\\');
+				}
+				out.append(' ');
+				break;
+			case '\t': out.append("\\t"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\f': out.append("\\f"); break;
+			case '=': case ':': case '#': case '!': case '\\':
+				out.append('\\').append(c);
+				break;
+			default:
+				if (c<0x0020 || c>0x007e){
+					out.append("\\u").append(HEX_DIGITS[(c>>12)&0xF]).append(HEX_DIGITS[(c>>8)&0xF])
+					   .append(HEX_DIGITS[(c>>4)&0xF]).append(HEX_DIGITS[c&0xF]);
+				}else{
+					out.append(c);
+				}
+			}
+		}
+	}
+
+	/** Reverse of {@link #escape(StringBuilder, String, boolean)} for s[start, end[. */
+	static String unescape(String s, int start, int end){
+		StringBuilder out=new StringBuilder(end-start);
+		int i=start;
+		while (i<end){
+			char c=s.charAt(i++);
+			if (c=='\\' && i<end){
+				c=s.charAt(i++);
+				switch (c){
+				case 't': c='\t'; break;
+				case 'n': c='\n'; break;
+				case 'r': c='\r'; break;
+				case 'f': c='\f'; break;
+				case 'u':
+					if (i+4<=end){
+						c=(char)Integer.parseInt(s.substring(i, i+4), 16);
+						i+=4;
+					}
+					break;
+				default:
+					break; // escaped char itself.
+				}
+			}
+			out.append(c);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Write all preferences to prefFile: temporary file then atomic move.
+	 * @param prefFile preferences file
+	 * @param values preferences (written sorted by key)
+	 * @return number of bytes written
+	 * @throws IOException prefFile is then unchanged
+	 */
+	static int write(File prefFile, Map<String, String> values) throws IOException {
+		StringBuilder content=new StringBuilder(64*values.size()+16);
+		for (Map.Entry<String, String> e: new TreeMap<String, String>(values).entrySet()){
+			escape(content, e.getKey(), true);
+			content.append('=');
+			escape(content, e.getValue(), false);
+			content.append('\n');
+		}
+		Path target=prefFile.toPath().toAbsolutePath();
+		Path tmp=createTempFile(target);
+		try{
+			int written=writeFully(tmp, content, StandardOpenOption.WRITE);
+			copyAttributes(target, tmp); // after the write: target may be read only.
+			try{
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}catch(AtomicMoveNotSupportedException e){
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			forceDirectory(target.getParent());
+			return written;
+		}finally{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	// Files.createTempFile would make it private (0600): created as any file instead (umask).
+	private static Path createTempFile(Path target) throws IOException {
+		while (true){
+			Path tmp=target.resolveSibling(target.getFileName()+"."+Long.toHexString(TEMP_NAMES.nextLong()&Long.MAX_VALUE)+".tmp");
+			try{
+				return Files.createFile(tmp);
+			}catch(FileAlreadyExistsException e){
+				// another name.
+			}
+		}
+	}
+	// Permissions, owner and group of target (if it exists, POSIX only) given to tmp, which replaces it.
+	private static void copyAttributes(Path target, Path tmp) throws IOException {
+		PosixFileAttributeView targetView=Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		PosixFileAttributeView tmpView=Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+		if (targetView==null || tmpView==null || !Files.exists(target)){
+			return;
+		}
+		PosixFileAttributes attributes=targetView.readAttributes();
+		tmpView.setPermissions(attributes.permissions());
+		// not allowed (target of another user, group this user is not in): tmp keeps the ones of this process.
+		try{
+			tmpView.setGroup(attributes.group());
+		}catch(IOException e){
+			// kept.
+		}
+		try{
+			tmpView.setOwner(attributes.owner());
+		}catch(IOException e){
+			// kept.
+		}
+	}
+	/** Force a directory to disk (an entry created, moved or removed in it), where supported. */
+	static void forceDirectory(Path directory){
+		try{
+			FileChannel channel=FileChannel.open(directory, StandardOpenOption.READ);
+			try{
+				channel.force(true);
+			}finally{
+				channel.close();
+			}
+		}catch(IOException e){
+			// a directory can not be opened (Windows) or forced: nothing to do.
+		}
+	}
+
+	/**
+	 * Append changes to the journal of prefFile, after dropping an incomplete last line if any.
+	 * @param changes key -> new value, null value for a removed key
+	 * @return number of bytes written
+	 */
+	static int appendJournal(File prefFile, Map<String, String> changes) throws IOException {
+		StringBuilder content=new StringBuilder(64*changes.size());
+		for (Map.Entry<String, String> e: changes.entrySet()){
+			if (e.getValue()==null){
+				content.append('-');
+				escape(content, e.getKey(), true);
+			}else{
+				content.append('+');
+				escape(content, e.getKey(), true);
+				content.append('=');
+				escape(content, e.getValue(), false);
+			}
+			content.append('\n');
+		}
+		Path journal=journalFileOf(prefFile).toPath().toAbsolutePath();
+		boolean created=!Files.exists(journal);
+		FileChannel channel=FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			channel.position(dropIncompleteLine(channel));
+			int written=writeFully(channel, content);
+			if (created){
+				forceDirectory(journal.getParent()); // else the journal itself could be lost.
+			}
+			return written;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Truncate the journal after its last '\n': a line without it has been cut by a crash
+	 * (and is ignored by replay), the next entry must not be appended to it.
+	 * @return new size of the journal
+	 */
+	private static long dropIncompleteLine(FileChannel channel) throws IOException {
+		long size=channel.size();
+		ByteBuffer buffer=ByteBuffer.allocate(256);
+		long end=size;
+		while (end>0){ // read backward, a chunk at a time.
+			long start=Math.max(0, end-buffer.capacity());
+			buffer.clear();
+			buffer.limit((int)(end-start));
+			while (buffer.hasRemaining() && channel.read(buffer, start+buffer.position())>=0){
+			}
+			for (int i=buffer.position()-1; i>=0; i--){
+				if (buffer.get(i)=='\n'){
+					end=start+i+1;
+					if (end<size){
+						channel.truncate(end);
+					}
+					return end;
+				}
+			}
+			end=start;
+		}
+		if (size>0){
+			channel.truncate(0);
+		}
+		return 0;
+	}
+
+	/**
+	 * Apply the journal of prefFile (if any) to values.
+	 * @return number of applied changes
+	 */
+	static int replayJournal(File prefFile, Map<String, String> values) throws IOException {
+		File journal=journalFileOf(prefFile);
+		if (!journal.isFile()){
+			return 0;
+		}
+		String content=new String(Files.readAllBytes(journal.toPath()), StandardCharsets.ISO_8859_1);
+		int count=0;
+		int start=0;
+		int eol;
+		while ((eol=content.indexOf('\n', start))>=0){ // no '\n' after last line: incomplete, ignored.
+			if (eol>start){
+				char op=content.charAt(start);
+				try{
+					if (op=='-'){
+						values.remove(unescape(content, start+1, eol));
+						count++;
+					}else if (op=='+'){
+						int sep=keyEnd(content, start+1, eol);
+						if (sep<eol){
+							values.put(unescape(content, start+1, sep), unescape(content, sep+1, eol));
+							count++;
+						}
+					}
+				}catch(NumberFormatException nfe){
+					// bad unicode escape: skip line.
+				}
+			}
+			start=eol+1;
+		}
+		return count;
+	}
+
+	static void deleteJournal(File prefFile) throws IOException {
+		Files.deleteIfExists(journalFileOf(prefFile).toPath());
+	}
+
+	// index of first not escaped '=' in s[start, end[ or end.
+	private static int keyEnd(String s, int start, int end){
+		for (int i=start; i<end; i++){
+			char c=s.charAt(i);
+			if (c=='\\'){
+				i++;
+			}else if (c=='='){
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static int writeFully(Path path, CharSequence content, StandardOpenOption... options) throws IOException {
+		FileChannel channel=FileChannel.open(path, options);
+		try{
+			return writeFully(channel, content);
+		}finally{
+			channel.close();
+		}
+	}
+	// write content at the position of channel, then force it to disk.
+	private static int writeFully(FileChannel channel, CharSequence content) throws IOException {
+		ByteBuffer buffer=StandardCharsets.ISO_8859_1.encode(content.toString()); // only ASCII, see escape.
+		int size=buffer.remaining();
+		while (buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		channel.force(false);
+		return size;
+	}
+}
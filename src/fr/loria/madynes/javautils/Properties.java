@@ -5,27 +5,49 @@
  * Utility  class  to handle resources in concrete packages
  * - "typed" configuration data with a hierarchical mechanism (userpref, application level config file, and system properties (todo)).
  * - Static mechanism to access the "application" resources bundle for various texts and messages which are internationalized...
- * - Observable/Observer for any key.  
+ * - Observable/Observer (or PropertyChangeListener) for any key or key prefix.  
  */
 package fr.loria.madynes.javautils;
 
 import java.util.Enumeration;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
-import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Point;
@@ -33,8 +55,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import javax.swing.SwingUtilities;
 
 /**
  * Utility  class  to handle resources in concrete packages
@@ -42,6 +77,13 @@ import java.io.PrintStream;
  * @author andrey
  * 
  * 
+ * Thread safety: getters can be called from any thread without locking, preferences changes
+ * (and observers registrations) are serialized. Observers are notified in the thread
+ * changing the preference, unless a notification executor is set (see {@link #setNotificationExecutor(Executor)}).
+ * 
+ * Values come from a stack of layers (System properties for "._sysfirst" keys, preferences, bundle
+ * and any added layer: environment, command line...), see {@link #getLayerNames()}.
+ * 
  * TODO: 
  * - use hierarchical properties files  and load/store method (which only apply to last file) to handle default/preferences
  * mechanism. 
@@ -53,11 +95,17 @@ public  class Properties {
 		private String key;
 		private String newVal;
 		private String oldVal;
-		private PropertyChangedEvent(Properties source, String k, String nv, String ov){
+		private long version;
+		private PropertyChangedEvent(Properties source, String k, String nv, String ov, long version){
 			this.setSource(source);
 			this.setKey(k);
 			this.setNewVal(nv);
 			this.setOldVal(ov);
+			this.version=version;
+		}
+		// same change, from another old value (coalescing).
+		PropertyChangedEvent withOldVal(String ov){
+			return new PropertyChangedEvent(this.source, this.key, this.newVal, ov, this.version);
 		}
 		private void setKey(String key) {
 			this.key = key;
@@ -83,14 +131,237 @@ public  class Properties {
 		public Properties getSource() {
 			return source;
 		}	
+		/** @return version of the source after this change (see {@link Properties#version()}) */
+		public long getVersion() {
+			return version;
+		}
 	}
 	
-	static private class PropertyObservable extends Observable {
-		void setChangedAndNotifyObservers(PropertyChangedEvent e){
-				this.setChanged();
-				this.notifyObservers(e);
+	/**
+	 * An immutable view of all resolved values (system first, preferences, bundle) of a
+	 * Properties object at a point in time. See {@link Properties#snapshot()}.
+	 *
+	 * A snapshot is cheap (taking one does not copy anything) and can be shared and read
+	 * by any thread without locking. Values read from a snapshot are always consistent with each
+	 * other, whatever preferences changes happen meanwhile.
+	 */
+	static public final class Snapshot {
+		private final Properties source;
+		private final Map<String, String> values;
+		private final boolean cssColorNames;
+		private final long version;
+		private Snapshot(Properties source, Map<String, String> values, boolean cssColorNames, long version){
+			this.source=source;
+			this.values=Collections.unmodifiableMap(values);
+			this.cssColorNames=cssColorNames;
+			this.version=version;
+		}
+		public Properties getSource() {
+			return source;
+		}
+		/** @return version of the source at snapshot time, to catch up later with {@link Properties#changesSince(long)} */
+		public long getVersion() {
+			return version;
+		}
+		/** @return all keys with a value in this snapshot */
+		public Set<String> keySet(){
+			return this.values.keySet();
+		}
+		/** @return an unmodifiable key to value map */
+		public Map<String, String> asMap(){
+			return this.values;
+		}
+		public boolean containsKey(String key){
+			return this.values.containsKey(key);
+		}
+		/** @return value of key or null if absent */
+		public String getString(String key){
+			return this.values.get(key);
+		}
+		public String getOptionalProperty(String key, String byDefault){
+			String result=this.values.get(key);
+			return result==null?byDefault:result;
+		}
+		public int getOptionalIntProperty(String key, int byDefault){
+			Object value=this.getParsedValue(key, Integer.class);
+			return value==null?byDefault:((Integer)value).intValue();
+		}
+		public boolean getOptinalBooleanProperty(String key, boolean byDefault){
+			String value=this.values.get(key);
+			return value==null?byDefault:Boolean.parseBoolean(value);
+		}
+		public Color getOptinalColorProperty(String key, Color byDefault){
+			Object value=this.getParsedValue(key, Color.class);
+			return value==null?byDefault:(Color)value;
+		}
+		public Dimension getOptionalDimensionProperty(String key, Dimension byDefault){
+			Object value=this.getParsedValue(key, Dimension.class);
+			return value==null?byDefault:new Dimension((Dimension)value); // never give the cached one.
+		}
+		public Point getOptionalIntPointProperty(String key, Point byDefault){
+			Object value=this.getParsedValue(key, Point.class);
+			return value==null?byDefault:new Point((Point)value);
+		}
+		// As typed getters of Properties (schema converter, typed cache) but silent: null if missing or bad.
+		private Object getParsedValue(String key, Class<?> type){
+			String value=this.values.get(key);
+			if (value==null){
+				return null;
+			}
+			Object result=this.source.getParsedValue(key, value, type, this.cssColorNames);
+			return result==BAD_TYPED_VALUE?null:result;
+		}
+	}
+
+	/**
+	 * Changes delivered at once to batch listeners (see {@link Properties#addBatchListener(PropertiesBatchListener)}).
+	 */
+	static public class PropertiesChangedBatch {
+		private final Properties source;
+		private final List<PropertyChangedEvent> changes;
+		private PropertiesChangedBatch(Properties source, List<PropertyChangedEvent> changes){
+			this.source=source;
+			this.changes=Collections.unmodifiableList(changes);
+		}
+		public Properties getSource() {
+			return source;
+		}
+		/** @return changes, one per key, in first change order. */
+		public List<PropertyChangedEvent> getChanges() {
+			return changes;
+		}
+	}
+
+	/**
+	 * Listener of property changes.
+	 * @see Properties#addPropertyChangeListener(String, PropertyChangeListener)
+	 * @see Properties#addPrefixChangeListener(String, PropertyChangeListener)
+	 */
+	public static interface PropertyChangeListener {
+		void propertyChanged(PropertyChangedEvent evt);
+	}
+	/**
+	 * Listener of changes delivered as batches.
+	 * @see Properties#addBatchListener(PropertiesBatchListener)
+	 */
+	public static interface PropertiesBatchListener {
+		void propertiesChanged(PropertiesChangedBatch batch);
+	}
+
+	/**
+	 * Converter (and validator) of the values of a property type.
+	 * @see Properties#registerConverter(String, PropertyConverterFactory)
+	 */
+	public static interface PropertyConverter {
+		/** @return class of converted values. Typed getters of this class reuse them (ex: Integer for getIntProperty). */
+		Class<?> getValueType();
+		/**
+		 * @return the converted value, never null
+		 * @throws IllegalArgumentException if value is not valid, its message tells why
+		 */
+		Object convert(String value) throws IllegalArgumentException;
+	}
+	/**
+	 * Builds the converter of a type (key._type=name or name:parameters), once per Properties and type.
+	 */
+	public static interface PropertyConverterFactory {
+		/**
+		 * @param properties the Properties which values will be converted
+		 * @param parameters text after ':' in the type, null if none
+		 * @throws IllegalArgumentException if parameters are not valid
+		 */
+		PropertyConverter create(Properties properties, String parameters) throws IllegalArgumentException;
+	}
+
+	/**
+	 * Observer seen as a listener (see addKeyObserver, addGlobalObserver). Equal if they adapt equal observers.
+	 * The Observable given to Observer.update() is the one of the observed key (or the global one).
+	 */
+	@SuppressWarnings("deprecation")
+	static private final class ObserverAdapter implements PropertyChangeListener {
+		private final Observable source;
+		private final Observer observer;
+		ObserverAdapter(Observable source, Observer observer){
+			this.source=source;
+			this.observer=observer;
+		}
+		@Override
+		public void propertyChanged(PropertyChangedEvent evt) {
+			this.observer.update(this.source, evt);
+		}
+		@Override
+		public boolean equals(Object o){
+			return o instanceof ObserverAdapter && ((ObserverAdapter)o).observer.equals(this.observer);
+		}
+		@Override
+		public int hashCode(){
+			return this.observer.hashCode();
+		}
+	}
+
+	// Plan of keys without any value, never has typed values.
+	private static final ResolutionPlan MISSING_PLAN=new ResolutionPlan(null, null, null);
+
+	static private final class ListenerSubscriptions {
+		final HashSet<String> keys=new HashSet<String>();
+		final HashSet<String> prefixes=new HashSet<String>();
+	}
+
+	private static final PropertyChangeListener[] NO_LISTENER=new PropertyChangeListener[0];
+
+	/**
+	 * Immutable result of the resolution of one key: the layer that actually provided
+	 * the value and the value itself.
+	 *
+	 * Plans are built once per key (see {@link Properties#getResolutionPlan(String)}) and
+	 * replaced when a layer change the key, so a hot getString is a single map look-up
+	 * whatever the number of layers.
+	 */
+	static private final class ResolutionPlan {
+		private final PropertiesLayer source; // null if missing
+		private final String value; // null iff missing
+		private final PropertyConverter converter; // of key type (schema), may be null
+		// Parsed values of this.value, by type (Color, Dimension...). Dropped with the plan.
+		private volatile ConcurrentHashMap<Class<?>, Object> typedValues=null;
+
+		private ResolutionPlan(PropertiesLayer source, String value, PropertyConverter converter){
+			this.source=source;
+			this.value=value;
+			this.converter=converter;
+		}
+
+		/** @return estimated heap size of this plan and its typed values (value is shared with its source). */
+		private long footprint(){
+			long result=32; // header + 4 references
+			ConcurrentHashMap<Class<?>, Object> values=this.typedValues;
+			if (values!=null){
+				result+=64+values.size()*(CompactMap.HASH_ENTRY_SIZE+16L); // + boxed or small parsed value
+			}
+			return result;
+		}
+
+		/** @return the cached value for type, BAD_TYPED_VALUE if value can not be parsed as type or null if not yet parsed. */
+		private Object getTypedValue(Class<?> type){
+			ConcurrentHashMap<Class<?>, Object> values=this.typedValues;
+			return values==null?null:values.get(type);
+		}
+
+		private void putTypedValue(Class<?> type, Object typedValue){
+			ConcurrentHashMap<Class<?>, Object> values=this.typedValues;
+			if (values==null){
+				synchronized (this){
+					values=this.typedValues;
+					if (values==null){
+						values=new ConcurrentHashMap<Class<?>, Object>(4);
+						this.typedValues=values;
+					}
+				}
+			}
+			values.put(type, typedValue==null?BAD_TYPED_VALUE:typedValue);
 		}
 	}
+	// Marker for values which can not be parsed in a given type (see ResolutionPlan.typedValues).
+	private static final Object BAD_TYPED_VALUE=new Object();
 
 	// additional special suffix in PROPERTIES file property names.
 	// For edit mechanism.
@@ -102,14 +373,48 @@ public  class Properties {
 		public static final String STRING_TYPE_STR="S";
 		public static final String INT_TYPE_STR="I";
 		public static final String LOG_LEVEL_TYPE_STR="LL";
+		public static final String DIMENSION_TYPE_STR="DIM";
+		public static final String POINT_TYPE_STR="PT";
+		public static final String PATH_TYPE_STR="PATH";
+		public static final String DURATION_TYPE_STR="DUR";
+		public static final String ENUM_TYPE_STR="E"; // E:value1,value2...
+		// other types: see registerConverter, parameters: see PropertiesSchema.
 	// Take system property first if exists. (-D option)
 	public static final String SYS_PROP_FIRST_KEY_SUFFIX = "._sysfirst";	
+	// For preferences editor: label and tool tip of a property.
+	public static final String LABEL_KEY_SUFFIX="._label";
+	public static final String TIP_KEY_SUFFIX="._tip";
 	public static final char STRING_LIST_SEPARATOR=';';
+	// Built-in layers names (see getLayerNames()).
+	public static final String SYSTEM_LAYER="system";
+	public static final String PREFERENCES_LAYER="preferences";
+	public static final String BUNDLE_LAYER="bundle";
+	// name of overlay values (see getValueLayer, createOverlay), not in the layer stack.
+	public static final String OVERLAY_LAYER="overlay";
+	/** Executor delivering changes on the Swing event dispatch thread. See {@link #setNotificationExecutor(Executor)}. */
+	public static final Executor EDT_EXECUTOR=new Executor(){
+		@Override
+		public void execute(Runnable command) {
+			SwingUtilities.invokeLater(command);
+		}
+	};
 	//private static final String dimensionWidthSuffix = ".width";
 	//private static final String dimensionHeightSuffix = ".height";
 	
-	private static Properties defaultProperties;
-	private static ResourceBundle messages;
+	private static final String CLASS_NAME=Properties.class.getName();
+	// Not the root logger: applications can tune Properties diagnostics on their own.
+	private static final Logger logger=Logger.getLogger(CLASS_NAME);
+
+	private static volatile Properties defaultProperties;
+	private static volatile MessageCatalog messages;
+	private static volatile boolean binaryCacheEnabled=false;
+	private static volatile boolean compactStorage=false;
+	// journal larger than this: next save is a full one.
+	private static final long JOURNAL_MAX_SIZE=64*1024;
+	// one thread for all autosaves and reloads, created on first need.
+	private static ScheduledExecutorService backgroundScheduler=null;
+	private static ExecutorService preloadExecutor=null; // see getPreloadExecutor
+	private static boolean autosaveShutdownHookRegistered=false;
 	
 	/*
 	 * Set application texts and messages (localized bundle)
@@ -117,31 +422,64 @@ public  class Properties {
 	 */
 	public static void setMessages(String ressourceBundleName){
 		try {
-			messages = ResourceBundle.getBundle(ressourceBundleName); 
+			messages = new MessageCatalog(ressourceBundleName, Locale.getDefault());
 		} catch (MissingResourceException mre) {
-			Logger
-					.getLogger("")
-					.logp(
-							Level.SEVERE,
-							"fr.loria.madynes.javautils.Properties",
-							"setMessages",
-							"Can not load  MessagesBundles (messages properties ressource file in package): "+ressourceBundleName,
-							mre);
+			logThrown(Level.SEVERE, "setMessages", "Can not load MessagesBundles (messages properties ressource file in package): {0}", mre, ressourceBundleName);
 		}
 	}
 	/**
 	 * get  application level messages.
 	 */
 	public static ResourceBundle getMessages(){
-		return messages;
+		MessageCatalog catalog=messages;
+		return catalog==null?null:catalog.getBundle();
+	}
+
+	/**
+	 * Switch application messages to another locale, at run time.
+	 * Messages already read for other locales stay cached.
+	 * @param locale
+	 * @return false if no messages are set or can be found for locale (locale unchanged)
+	 */
+	public static boolean setMessagesLocale(Locale locale){
+		MessageCatalog catalog=messages;
+		if (catalog==null || !catalog.setLocale(locale)){
+			log(Level.WARNING, "setMessagesLocale", "no messages for locale {0}", locale);
+			return false;
+		}
+		return true;
+	}
+	/** @return locale of application messages or null if no messages are set. */
+	public static Locale getMessagesLocale(){
+		MessageCatalog catalog=messages;
+		return catalog==null?null:catalog.getLocale();
 	}
 	
 	/**
 	 * get an application level messages.
 	 * @param key a name in the global messages bundle.
+	 * @throws MissingResourceException if key is missing
 	 */
 	public static String getMessage(String key){
-		return messages.getString(key);
+		String result=messages.get(key);
+		if (result==null){
+			throw new MissingResourceException("", CLASS_NAME, key); // as ResourceBundle.getString
+		}
+		return result;
+	}
+	/**
+	 * Format an application level message (a java.text.MessageFormat pattern), compiled once.
+	 * @param key a name in the global messages bundle.
+	 * @param args pattern arguments ({0}, {1}...)
+	 * @throws MissingResourceException if key is missing
+	 * @throws IllegalArgumentException if the message is not a valid pattern
+	 */
+	public static String formatMessage(String key, Object... args){
+		String result=messages.format(key, args);
+		if (result==null){
+			throw new MissingResourceException("", CLASS_NAME, key);
+		}
+		return result;
 	}
 	
 	/**
@@ -150,11 +488,7 @@ public  class Properties {
 	 * @return message associated to key or null if not found
 	 */
 	public static String getOptionalMessage(String key){
-		try{
-			return messages.getString(key);
-		}catch(MissingResourceException mre){
-			return null;
-		}
+		return getOptionalMessage(key, null);
 	}
 	
 	/**
@@ -164,21 +498,16 @@ public  class Properties {
 	 * @return message associated to key or null if not found
 	 */
 	public static String getOptionalMessage(String key, String defaultValue){
-		try{
-			return messages.getString(key);
-		}catch(MissingResourceException mre){
-			return defaultValue;
-		}
+		MessageCatalog catalog=messages;
+		String result=catalog==null?null:catalog.get(key);
+		return result==null?defaultValue:result;
 	}
 	/**
 	 * Static mechanism to have a per application default "Properties" file.
 	 */
 	public static void setDefaultProperties(String baseName){
 		if (defaultProperties!=null){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 "fr.loria.madynes.javautil.Properties",
-					 "setDefaultProperties",
-					 "try to reset default properties");
+			log(Level.WARNING, "setDefaultProperties", "try to reset default properties");
 		}
 		defaultProperties=getProperties(baseName);
 	}
@@ -197,11 +526,102 @@ public  class Properties {
 	public static Properties getProperties(String baseName){
 		Properties result=builtProperties.get(baseName);
 		if (result==null){
-			result=new Properties(baseName);
-			builtProperties.put(baseName, result); // keep the ref to the new bundle, and so ensure uniqueness. 
+			// Built out of the map (no map lock held while converters run, they may get other Properties).
+			// Threads racing for baseName may build one each: only the first published is kept, so it is unique.
+			Properties built=new Properties(baseName);
+			result=builtProperties.putIfAbsent(baseName, built);
+			if (result==null){
+				result=built;
+				result.convertTypedValues(); // once published: a converter may get this Properties.
+			}
 		}
 		return result;
 	}
+
+	/**
+	 * Build (see {@link #getProperties(String)}) and warm up several Properties concurrently,
+	 * in background: bundles and preferences files are read, every key is resolved and typed
+	 * values are converted. Meant to be called early at start up, so that first accesses
+	 * (often from the EDT) do not wait for I/O.
+	 * @param baseNames resource names in dotted notation
+	 * @return a future of baseName -> Properties (in baseNames order), completed when all are ready
+	 */
+	public static CompletableFuture<Map<String, Properties>> preload(Collection<String> baseNames){
+		final String[] names=baseNames.toArray(new String[baseNames.size()]);
+		final List<CompletableFuture<Properties>> futures=new ArrayList<CompletableFuture<Properties>>(names.length);
+		Executor executor=getPreloadExecutor();
+		for (int i=0; i<names.length; i++){
+			final String baseName=names[i];
+			futures.add(CompletableFuture.supplyAsync(new Supplier<Properties>(){
+				@Override
+				public Properties get() {
+					Properties properties=getProperties(baseName);
+					properties.warmUp();
+					return properties;
+				}
+			}, executor));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[names.length])).thenApply(new Function<Void, Map<String, Properties>>(){
+			@Override
+			public Map<String, Properties> apply(Void done) {
+				LinkedHashMap<String, Properties> result=new LinkedHashMap<String, Properties>();
+				for (int i=0; i<names.length; i++){
+					result.put(names[i], futures.get(i).join());
+				}
+				return Collections.unmodifiableMap(result);
+			}
+		});
+	}
+	/**
+	 * Preload a manifest bundle, then the bundles it lists (see {@link #preload(Collection)}).
+	 * @param manifestBaseName resource name of the manifest
+	 * @param listKey key of the list of base names in the manifest (separated by STRING_LIST_SEPARATOR)
+	 * @return a future of baseName -> Properties, manifest included (first)
+	 */
+	public static CompletableFuture<Map<String, Properties>> preloadFromManifest(final String manifestBaseName, final String listKey){
+		return preload(Collections.singletonList(manifestBaseName)).thenCompose(new Function<Map<String, Properties>, CompletionStage<Map<String, Properties>>>(){
+			@Override
+			public CompletionStage<Map<String, Properties>> apply(Map<String, Properties> manifest) {
+				LinkedHashSet<String> names=new LinkedHashSet<String>();
+				names.add(manifestBaseName);
+				for (String name: manifest.get(manifestBaseName).getOptionalStringList(listKey, new String[0], STRING_LIST_SEPARATOR)){
+					if (name.trim().length()>0){
+						names.add(name.trim());
+					}
+				}
+				return preload(names);
+			}
+		});
+	}
+	// preload: resolve every known key, typed ones have been converted by getProperties.
+	private void warmUp(){
+		HashSet<String> keys=new HashSet<String>();
+		for (PropertiesLayer layer: this.layers){
+			keys.addAll(layer.keys());
+		}
+		for (String key: keys){
+			this.getSharedResolutionPlan(key);
+		}
+	}
+	// Bounded pool of preload, one thread per processor, threads die when idle.
+	private static synchronized ExecutorService getPreloadExecutor(){
+		if (preloadExecutor==null){
+			int threads=Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor=new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+				private int count=0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t=new Thread(r, "Properties preload "+(++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			preloadExecutor=executor;
+		}
+		return preloadExecutor;
+	}
 	private Properties(String baseName){
 		this.baseName=baseName;
 		this.prefFilePath=null;
@@ -209,23 +629,28 @@ public  class Properties {
 			this.configuration = ResourceBundle.getBundle(baseName);
 		}catch (java.util.MissingResourceException e){
 			// For Logger messages we have a chicken-eggs problem 
-				LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-													 this.getClass().getName(),
-													 "Constructor",
-													 "No "+baseName+" file has not been found");
+				log(Level.SEVERE, "Constructor", "No {0} file has not been found", baseName);
+		}
+		this.keyIndex=new KeyIndex(this.configuration);
+		ArrayList<String> schemaErrors=new ArrayList<String>();
+		this.schema=new PropertiesSchema(this, this.keyIndex.types(), schemaErrors);
+		for (String error: schemaErrors){
+			log(Level.SEVERE, "Constructor", "{0}: bad type of {1}", baseName, error);
 		}
-		prefs=new HashMap<String, String>();
+		prefs=newValueMap(Collections.<String, String>emptyMap());
+		this.layers=new PropertiesLayer[]{
+			this.systemLayer,
+			new PropertiesLayer.MapLayer(PREFERENCES_LAYER, this.prefs, false), // changed by setPreference...
+			new PropertiesLayer.BundleLayer(BUNDLE_LAYER, this.configuration)
+		};
 		String prefFilePath=this.getOptionalProperty("preferenceFile", "."+baseName+"."+"prefs");
 		File prefFile= new File(prefFilePath);
-		InputStream prefIs=null;
+		FileInputStream prefIs=null;
 		if (prefFile.canRead()&&prefFile.isFile()){
 			try {
 				prefIs=new FileInputStream(prefFile);
 			} catch (FileNotFoundException e) {
-				LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-						 this.getClass().getName(),
-						 "Constructor",
-						 "preference file from properties file (or default): "+prefFilePath+"  has not been found or not readable");
+				log(Level.WARNING, "Constructor", "preference file from properties file (or default): {0} has not been found or not readable", prefFilePath);
 			}
 		}
 		if (prefIs==null){
@@ -235,94 +660,272 @@ public  class Properties {
 			try {
 				prefIs=new FileInputStream(prefFile);
 			} catch (FileNotFoundException e) {
-				LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-						 this.getClass().getName(),
-						 "Constructor",
-						 "preference file from HOME: "+prefFilePath+"  has not been found");
+				log(Level.WARNING, "Constructor", "preference file from HOME: {0} has not been found", prefFilePath);
 			}
 		}
 		if (prefIs==null){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "Constructor",
-					 "no preference file found....");
+			log(Level.WARNING, "Constructor", "no preference file found....");
 			this.prefFilePath=null;
 		}else{
-			LogManager.getLogManager().getLogger("").logp(Level.INFO, 
-					 this.getClass().getName(),
-					 "Constructor",
-					 "read preferences from file:"+prefFile.getAbsolutePath());
-			// suck prefBundle  from pref...
-			PropertyResourceBundle prefBundle;
+			log(Level.INFO, "Constructor", "read preferences from file:{0}", prefFile.getAbsolutePath());
 			this.prefFilePath=prefFilePath;
+			if (binaryCacheEnabled && this.readPreferencesCache(prefFile)){
+				try {
+					prefIs.close(); // not parsed
+				} catch (IOException e) {
+					// nothing to do.
+				}
+				prefIs=null;
+			}
+		}
+		if (prefIs!=null){
+			// parse the mapped file straight into prefs.
+			long prefReadTime=System.currentTimeMillis(); // before reading, for the cache.
+			long prefLastModified=prefFile.lastModified();
+			long prefLength=prefFile.length();
 			try {
-				prefBundle = new PropertyResourceBundle(prefIs);
-				String k=null;
-				for(Enumeration<String> ek=prefBundle.getKeys(); ek.hasMoreElements(); ){
-					k=ek.nextElement();
-					try{
-						prefs.put(k, prefBundle.getString(k));
-					}catch(Exception e){
-						LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-								this.getClass().getName(),
-								"Constructor",
-							 	"internal error, can not access known key "+e);
-					}
+				FileChannel channel=prefIs.getChannel();
+				ArrayList<String> errors=new ArrayList<String>();
+				ByteBuffer content=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				long prefHash=binaryCacheEnabled?PreferencesCache.contentHash(content.duplicate()):0; // of what is parsed.
+				PreferencesParser.parse(content, this.prefs, errors);
+				for (String error: errors){
+					log(Level.WARNING, "Constructor", "{0}: {1}, entry ignored", prefFilePath, error);
+				}
+				if (binaryCacheEnabled && errors.isEmpty()){
+					this.writePreferencesCache(prefFile, prefLastModified, prefLength, prefHash, prefReadTime);
 				}
 			} catch (IOException ioe) {
-				LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-						 this.getClass().getName(),
-						 "Constructor",
-						 "IO when reading "+prefFilePath+" preferences file. "+ioe);
+				log(Level.WARNING, "Constructor", "IO when reading {0} preferences file. {1}", prefFilePath, ioe);
 				this.prefFilePath=null;
+			} finally {
+				try {
+					prefIs.close();
+				} catch (IOException e) {
+					// nothing to do.
+				}
+			}
+		}
+		if (this.prefFilePath!=null){
+			try {
+				int changes=PreferencesStore.replayJournal(prefFile, this.prefs);
+				if (changes>0){
+					log(Level.INFO, "Constructor", "{0} preferences changes read from journal", changes);
+				}
+			} catch (IOException ioe) {
+				log(Level.WARNING, "Constructor", "IO when reading {0} preferences journal. {1}", prefFilePath, ioe);
 			}
 		}
+		// "preferenceFile" has been resolved before preferences were read.
+		this.invalidateResolutionPlans();
 	}
 	
+	/**
+	 * Enable (or disable) the binary cache of preferences files, for Properties built afterward.
+	 *
+	 * When enabled, a memory mapped binary copy of the preferences file is kept next to it
+	 * (same name + ".cache") and used instead of parsing the text file, as long as the
+	 * preferences file is not modified: preferences are looked up in the mapped file (binary
+	 * search), only their changes are kept on heap. Useful for applications started many times.
+	 * Only preferences are cached: bundles are parsed (and cached) by ResourceBundle.
+	 * @param enabled
+	 */
+	public static void setBinaryCacheEnabled(boolean enabled){
+		binaryCacheEnabled=enabled;
+	}
+	public static boolean isBinaryCacheEnabled(){
+		return binaryCacheEnabled;
+	}
+
+	/**
+	 * Use (or not) compact storage for preferences and added layers of Properties built afterward.
+	 *
+	 * Keys are then stored as a trie of their dotted segments and values are shared by all
+	 * Properties (see CompactMap): less memory for large configurations (many keys with
+	 * common prefixes, same values in many bundles' preferences), slightly slower first reads.
+	 * Bundles are not concerned: they are owned (and cached) by ResourceBundle.
+	 * Default is false.
+	 * @param compact
+	 */
+	public static void setCompactStorage(boolean compact){
+		compactStorage=compact;
+	}
+	public static boolean isCompactStorage(){
+		return compactStorage;
+	}
+	// map for a layer, according to compactStorage.
+	private static Map<String, String> newValueMap(Map<String, String> values){
+		if (compactStorage){
+			return new CompactMap(values);
+		}
+		return new ConcurrentHashMap<String, String>(values);
+	}
+
+	/**
+	 * Estimate the heap used by the values stored by this Properties: preferences and added layers
+	 * (with compact storage, shared strings count for their share only), plus the resolved-value
+	 * cache (one resolution plan and its parsed values per key read or preloaded, resolved values of snapshots).
+	 * Bundles are not counted, nor are overlay values.
+	 * @return estimated size in bytes
+	 */
+	public long getStorageFootprint(){
+		long result=0;
+		for (PropertiesLayer layer: this.layers){
+			if (layer instanceof PropertiesLayer.MapLayer){
+				result+=((PropertiesLayer.MapLayer)layer).footprint();
+			}
+		}
+		result+=64; // resolutionPlans map itself
+		for (Map.Entry<String, ResolutionPlan> e: this.resolutionPlans.entrySet()){
+			result+=CompactMap.HASH_ENTRY_SIZE+e.getValue().footprint();
+			if (this.keyIndex.canonical(e.getKey())!=e.getKey()){
+				result+=CompactMap.stringSize(e.getKey()); // key not shared with the bundle.
+			}
+		}
+		synchronized (this.writeLock){
+			if (this.resolvedValues!=null){
+				result+=64; // values are shared with plans.
+				for (String key: this.resolvedValues.keySet()){
+					result+=CompactMap.HASH_ENTRY_SIZE;
+					if (this.keyIndex.canonical(key)!=key){
+						result+=CompactMap.stringSize(key);
+					}
+				}
+			}
+		}
+		return result;
+	}
+	// Constructor: look preferences up in the cache of prefFile (see CachedMap), prefs must be empty.
+	// false if cache is missing, out of date or corrupted.
+	private boolean readPreferencesCache(File prefFile){
+		try{
+			PreferencesCache cache=PreferencesCache.open(prefFile);
+			if (cache==null){
+				return false;
+			}
+			this.prefs=new CachedMap(cache, this.prefs);
+			this.layers=new PropertiesLayer[]{
+				this.layers[0], new PropertiesLayer.MapLayer(PREFERENCES_LAYER, this.prefs, false), this.layers[2]
+			};
+			log(Level.FINE, "Constructor", "read preferences from cache of {0}", prefFile.getPath());
+			return true;
+		}catch(IOException e){ // a miss, the text file is parsed.
+			log(Level.WARNING, "Constructor", "bad preferences cache {0}: {1}", PreferencesCache.cacheFileOf(prefFile).getPath(), e.getMessage());
+			return false;
+		}
+	}
+	// Constructor: cache preferences just read from prefFile.
+	private void writePreferencesCache(File prefFile, long lastModified, long length, long contentHash, long readTime){
+		try {
+			PreferencesCache.write(prefFile, lastModified, length, contentHash, readTime, this.prefs);
+		} catch (IOException e) {
+			log(Level.WARNING, "Constructor", "can not write preferences cache of {0}: {1}", prefFile.getPath(), e);
+		}
+	}
+	// savePreferences: cache values just written to prefFile.
+	private void writePreferencesCache(File prefFile, Map<String, String> values){
+		try {
+			long readTime=System.currentTimeMillis();
+			PreferencesCache.write(prefFile, prefFile.lastModified(), prefFile.length(), PreferencesCache.contentHash(prefFile), readTime, values);
+		} catch (IOException e) {
+			log(Level.WARNING, "savePreferences", "can not write preferences cache of {0}: {1}", prefFile.getPath(), e);
+		}
+	}
+
+	/**
+	 * Save preferences, if changed.
+	 *
+	 * When only a few keys have changed since the last save, they are appended to a journal
+	 * next to the preferences file, compacted by the next full save (see {@link #compactPreferences()}).
+	 * Full saves replace the preferences file atomically: a crash never truncates it.
+	 * @throws FileNotFoundException if preferences file can not be written (IO errors included)
+	 */
 	public void savePreferences() throws FileNotFoundException{
-		if (this.isPreferencesChanged()){
-			String prefFilePath=this.getOptionalProperty("preferenceFile", "."+baseName+"."+"prefs");
-			File prefFile= new File(prefFilePath);
-			PrintStream prefPs=null;
-			LogManager.getLogManager().getLogger("").logp(Level.INFO, 
-					 this.getClass().getName(),
-					 "savePreferences",
-					 "save preferences to: "+prefFilePath);
-			if (prefFile.canWrite()){
-				try {
-					prefPs=new PrintStream(prefFile);
-				} catch (Exception e) {
-					LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-							 this.getClass().getName(),
-							 "savePreferences",
-							 "preferences file from properties file (or default): "+prefFilePath+"  is not writable: "+e);
-				}
-			}
-			if (prefPs==null){
-				// try base pref in user home... 
-				//We also have user.dir=/home/andreylocal/workspace/Test and java.class.path=/home/andreylocal/workspace/Test/bin
-				prefFilePath=System.getProperty("user.home", "~")+System.getProperty("file.separator")+prefFile.getName();
-				prefFile=new File(prefFilePath);
-				try {
-					prefPs=new PrintStream(prefFile);
-				} catch (FileNotFoundException fnfe) {
-					LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-							 this.getClass().getName(),
-							 "Constructor",
-							 "preference file in HOME: "+prefFilePath+"  is not writable: "+fnfe);
-					// giveUp
-					throw fnfe;
-				}catch(SecurityException se){
-					LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-							 this.getClass().getName(),
-							 "Constructor",
-							 "preference file in HOME: "+prefFilePath+"  is not writable: "+se);
-					// giveUp
-					throw se;
+		this.savePreferences(false);
+	}
+	/**
+	 * Save all preferences in the preferences file (and remove its journal).
+	 * @throws FileNotFoundException if preferences file can not be written (IO errors included)
+	 */
+	public void compactPreferences() throws FileNotFoundException{
+		this.savePreferences(true);
+	}
+	// File preferences are saved to.
+	private File preferencesTargetFile(){
+		File prefFile= new File(this.getOptionalProperty("preferenceFile", "."+baseName+"."+"prefs"));
+		if (!prefFile.canWrite()){
+			// try base pref in user home... 
+			//We also have user.dir=/home/andreylocal/workspace/Test and java.class.path=/home/andreylocal/workspace/Test/bin
+			prefFile=new File(System.getProperty("user.home", "~")+System.getProperty("file.separator")+prefFile.getName());
+		}
+		return prefFile;
+	}
+	// Preferences are copied under writeLock, then written without it: writers (ex: setPreference
+	// on the EDT) never wait for the disk. Saves are serialized by saveLock (taken first).
+	private void savePreferences(boolean full) throws FileNotFoundException{
+		synchronized (this.saveLock){
+			File prefFile;
+			boolean readFrom;
+			HashMap<String, String> values;
+			HashMap<String, String> changes=new HashMap<String, String>();
+			synchronized (this.writeLock){
+				if (!this.isPreferencesChanged() && !full){
+					return;
+				}
+				prefFile=this.preferencesTargetFile();
+				readFrom=prefFile.getPath().equals(this.prefFilePath);
+				values=new HashMap<String, String>(this.prefs);
+				for (String key: this.dirtyKeys){
+					changes.put(key, this.prefs.get(key)); // null: removed
+				}
+			}
+			String prefFilePath=prefFile.getPath();
+			// journal only on the file preferences have been read from (and so its journal replayed).
+			boolean incremental=!full && !changes.isEmpty() && readFrom && prefFile.isFile()
+					&& PreferencesStore.journalFileOf(prefFile).length()<JOURNAL_MAX_SIZE;
+			log(Level.INFO, "savePreferences", "save preferences to: {0}{1}", prefFilePath, incremental?" (journal)":"");
+			long start=System.nanoTime();
+			int written;
+			try {
+				if (incremental){
+					written=PreferencesStore.appendJournal(prefFile, changes);
+				}else{
+					written=PreferencesStore.write(prefFile, values);
+					PreferencesStore.deleteJournal(prefFile); // after the write: replaying it again is harmless.
+					if (binaryCacheEnabled){
+						this.writePreferencesCache(prefFile, values);
+					}
+				}
+			} catch (IOException ioe) {
+				synchronized (this.writeLock){
+					this.failedSaveCount++;
 				}
+				log(Level.SEVERE, "savePreferences", "preference file: {0} is not writable: {1}", prefFilePath, ioe);
+				// giveUp
+				FileNotFoundException fnfe=new FileNotFoundException(prefFilePath);
+				fnfe.initCause(ioe);
+				throw fnfe;
 			}
-			for (String key:this.prefs.keySet()){
-				prefPs.println(key+"="+this.prefs.get(key));
+			long latency=System.nanoTime()-start;
+			synchronized (this.writeLock){
+				if (!incremental){
+					this.prefFilePath=prefFilePath;
+				}
+				this.saveCount++;
+				this.saveNanos+=latency;
+				this.maxSaveNanos=Math.max(this.maxSaveNanos, latency);
+				this.lastSaveNanos=latency;
+				this.savedBytes+=written;
+				// keys changed again while being written stay dirty (and so preferences changed).
+				for (Map.Entry<String, String> e: changes.entrySet()){
+					String current=this.prefs.get(e.getKey());
+					if (current==null?e.getValue()==null:current.equals(e.getValue())){
+						this.dirtyKeys.remove(e.getKey());
+					}
+				}
+				if (this.dirtyKeys.isEmpty()){
+					this.setPreferencesChanged(false);
+				}
 			}
 		}
 	}
@@ -339,18 +942,21 @@ public  class Properties {
 	 * "key._editable" properties key are not return even if a "key._editable._editable" exits. 
 	 * So key._editable, are not editable.
 	 * 
-	 * @return a sorted set of preferences keys
+	 * @return a sorted set of preferences keys (unmodifiable, computed once)
 	 */
 	public SortedSet<String> editablePropertiesKeySet(){
-		SortedSet<String> result=new TreeSet<String>();
-		Set<String> propKeys=this.propertiesKeySet(); // =this.configuration.keySet()
-		// take all key prefixes  with  EDITABLE_KEY_SUFFIX as a suffix 
-		for (String key: propKeys){
-			if (!key.endsWith(EDITABLE_KEY_SUFFIX) && propKeys.contains(key+EDITABLE_KEY_SUFFIX)){ // or this.getOptinalBooleanProperty(key+editableSuffix, false) ?
-				result.add(key);
-			}
-		}
-		return result;
+		return this.keyIndex.editableKeys();
+	}
+	/**
+	 * Get properties keys starting with a given prefix (ex: all keys under "app.view.").
+	 * 
+	 * Meta properties keys (key._editable, key._type...) are not returned.
+	 * @param prefix key prefix, "" for all keys
+	 * @return sorted keys (unmodifiable)
+	 */
+	public SortedSet<String> keysWithPrefix(String prefix){
+		assert prefix!=null:"null prefix";
+		return this.keyIndex.keysWithPrefix(prefix);
 	}
 	/** Check if property is editable (= a key._editable property exists)
 	 * 
@@ -361,7 +967,7 @@ public  class Properties {
 	 */
 	public boolean isEditable(String key){
 		// check in properties only not in preferences
-		return this.configuration.containsKey(key+EDITABLE_KEY_SUFFIX);
+		return this.keyIndex.get(key).editable;
 	}
 	
 	/**
@@ -371,12 +977,87 @@ public  class Properties {
 	 */
 	public String getPropertyType(String key){
 		// get only from properties not preferences.
-		String result=STRING_TYPE_STR;
+		String type=this.keyIndex.get(key).type;
+		return type==null?STRING_TYPE_STR:PropertiesSchema.typeName(type.trim());
+	}
+	/**
+	 * @param key the property key
+	 * @return class of the converted values of key (see {@link PropertyConverter#getValueType()}), String if key has no type
+	 */
+	public Class<?> getPropertyValueType(String key){
+		PropertyConverter converter=this.schema.get(key);
+		return converter==null?String.class:converter.getValueType();
+	}
+
+	/**
+	 * Check a value against the type of a key (key._type).
+	 * @param key the property key
+	 * @param value candidate value
+	 * @return null if value is valid (or key has no type), else a message telling why it is not
+	 */
+	public String validate(String key, String value){
+		PropertyConverter converter=this.schema.get(key);
+		if (converter==null){
+			return null;
+		}
 		try{
-			result=this.configuration.getString(key+TYPE_KEY_SUFFIX);
-		}catch(Exception e){
+			converter.convert(value);
+			return null;
+		}catch(IllegalArgumentException e){
+			return e.getMessage()==null?e.toString():e.getMessage();
 		}
-		return result;
+	}
+
+	/**
+	 * Register a converter for a property type name, used by key._type=name (or name:parameters)
+	 * in Properties built afterward. Replaces a converter of the same name (built-in ones are
+	 * listed in PropertiesSchema: S B I LL C DIM PT PATH DUR E).
+	 * @param name type name, without ':'
+	 * @param factory builds the converter of a type and its parameters
+	 */
+	public static void registerConverter(String name, PropertyConverterFactory factory){
+		assert name!=null && name.indexOf(PropertiesSchema.PARAMETERS_SEPARATOR)<0:"bad type name "+name;
+		PropertiesSchema.register(name, factory);
+	}
+
+	// getProperties, once the new Properties is published: convert all typed values now, in parallel.
+	// Bad values are reported at once and getters find converted values in resolution plans
+	// (a getter called meanwhile converts its value itself).
+	private void convertTypedValues(){
+		final Set<String> keys=this.schema.keys();
+		if (keys.isEmpty()){
+			return;
+		}
+		keys.parallelStream().forEach(new Consumer<String>(){
+			@Override
+			public void accept(String key){
+				ResolutionPlan plan=Properties.this.getSharedResolutionPlan(key);
+				if (plan.value==null){
+					return;
+				}
+				Object value=null;
+				try{
+					value=plan.converter.convert(plan.value);
+				}catch(IllegalArgumentException e){
+					log(Level.WARNING, "getProperties", "{0}: invalid value for {1}: {2}", Properties.this.baseName, key, e.getMessage());
+				}
+				plan.putTypedValue(plan.converter.getValueType(), value); // null: BAD_TYPED_VALUE
+			}
+		});
+	}
+	/**
+	 * @param key the property key
+	 * @return the value of key._label in properties or null
+	 */
+	public String getPropertyLabel(String key){
+		return this.keyIndex.get(key).label;
+	}
+	/**
+	 * @param key the property key
+	 * @return the value of key._tip in properties or null
+	 */
+	public String getPropertyTip(String key){
+		return this.keyIndex.get(key).tip;
 	}
 	
 	/**
@@ -391,22 +1072,33 @@ public  class Properties {
 		String oldValue=null;
 		boolean result=false;
 		if (isEditable(key)){ // ._editable property are not supposed to have a ._editable...
-			try{
-				oldValue=this.getString(key);// Get in prefs then properties
-			}catch(Exception e){
+			String error=this.validate(key, value);
+			if (error!=null){
+				if (this.shouldLogKey(Level.SEVERE, key)){
+					log(Level.SEVERE, "setPreference", "{0}: value rejected, {1}", key, error);
+				}
+				return false;
 			}
-			// value is not null (see assertion) so let us test this way:
-			if (!value.equals(oldValue)){ 
-				result=true;
-				this.prefs.put(key, value);
-				this.setPreferencesChanged(true);
-				this.notifyChange(key, value, oldValue); // update observer.
+			try{
+				synchronized (this.writeLock){
+					oldValue=this.sharedLookup(key);// Get in prefs then properties
+					// value is not null (see assertion) so let us test this way:
+					if (!value.equals(oldValue)){ 
+						this.prefs.put(key, value);
+						this.dirtyKeys.add(key);
+						this.setPreferencesChanged(true);
+						result=true;
+						// refresh and update observer, unless a layer above preferences hides it.
+						this.layerValueChanged(key, oldValue);
+					}
+				}
+			}finally{
+				this.deliverHeldChanges();
 			}
 		}else{
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "setPreference",
-					 key+" is not an editable property");
+			if (this.shouldLogKey(Level.SEVERE, key)){
+				log(Level.SEVERE, "setPreference", "{0} is not an editable property", key);
+			}
 		}
 		return result;
 	}
@@ -421,34 +1113,40 @@ public  class Properties {
 		assert key!=null;
 		boolean result=false;
 		if (isEditable(key)){ // ._editable property are not supposed to have a ._editable...
-			if (this.prefs.containsKey(key)){
-				String inPrefValue=this.prefs.get(key);
-				try{
-					String inProValue=this.configuration.getString(key);
-					this.prefs.remove(key);
-					if (!(inPrefValue==null||inPrefValue.equals(inProValue))){
-						result=true;
-						this.setPreferencesChanged(true);
-						this.notifyChange(key, inProValue, inPrefValue); // update observer.
+			try{
+				synchronized (this.writeLock){
+					String inPrefValue=this.prefs.get(key);
+					if (inPrefValue!=null){
+						String oldValue=this.sharedLookup(key);
+						this.prefs.remove(key);
+						this.dirtyKeys.add(key);
+						if (this.buildResolutionPlan(key).value==null){
+							this.prefs.put(key, inPrefValue); // keep it: no default value.
+							this.dirtyKeys.remove(key);
+							if (this.shouldLogKey(Level.SEVERE, key)){
+								log(Level.SEVERE, "removePreference", "{0} default value in properties can not be found", key);
+							}
+						}else{
+							// update observer if value really changed, else only the source has changed.
+							result=this.layerValueChanged(key, oldValue);
+							if (result){
+								this.setPreferencesChanged(true);
+							}
+						}
+					}else{
+						// Nothing to do. Not in preferences...
+						if (this.shouldLogKey(Level.INFO, key)){
+							log(Level.INFO, "removePreference", "{0} is in not in preferences.", key);
+						}
 					}
-				}catch(Exception e){
-					LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-							 this.getClass().getName(),
-							 "removePreference",
-							 key+" default value in properties can not be found", e);
 				}
-			}else{
-				// Nothing to do. Not in preferences...
-				LogManager.getLogManager().getLogger("").logp(Level.INFO, 
-						 this.getClass().getName(),
-						 "removePreference",
-						 key+" is in not in preferences.");
+			}finally{
+				this.deliverHeldChanges();
 			}
 		}else{
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "removePreference",
-					 key+" is not an editable property");
+			if (this.shouldLogKey(Level.SEVERE, key)){
+				log(Level.SEVERE, "removePreference", "{0} is not an editable property", key);
+			}
 		}
 		return result;
 	}
@@ -464,7 +1162,7 @@ public  class Properties {
 	 */
 	public boolean takeSystemPropertyFirst(String key){
 		// check in properties only not in preferences
-		return this.configuration.containsKey(key+SYS_PROP_FIRST_KEY_SUFFIX);
+		return this.keyIndex.get(key).systemFirst;
 	}
 	
 	/** Check if property actually comes from System properties.
@@ -474,8 +1172,7 @@ public  class Properties {
 	 * 		   AND exists in System properties.
 	 */
 	public boolean comesFromSystem(String key){
-		return this.configuration.containsKey(key+SYS_PROP_FIRST_KEY_SUFFIX) &&
-			System.getProperties().containsKey(key);
+		return this.getResolutionPlan(key).source==this.systemLayer;
 	}
 	/**
 	 * Get a (string) Property
@@ -485,27 +1182,22 @@ public  class Properties {
 	 * @see #getString(String) same with exceptions
 	 */
 	public String getProperty(String property) {
-		try {
-			return this.getString(property);
-		} catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "getProperty",
-					 this.baseName+ ": Mandatory String property "+property+" is missing");
-			return null;
+		String result=this.lookup(property);
+		if (result==null){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getProperty", "{0}: Mandatory String property {1} is missing", this.baseName, property);
+			}
 		}
+		return result;
 	}
 	
 	public String getOptionalProperty(String property, String byDefault) {
-		try {
-			return this.getString(property);
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "getOptionalProperty",
-					 this.baseName+": Optional String property "+property+" not present");
-			return byDefault;
+		String result=this.lookup(property);
+		if (result==null){
+			this.reportMissingOptional("getOptionalProperty", "String", property);
+			result=byDefault;
 		}
+		return result;
 	}
 	public String getOptionalProperty(String property) {
 		return getOptionalProperty(property, null);
@@ -519,96 +1211,103 @@ public  class Properties {
 	 * @return
 	 */
 	public int getIntPropertyRe(String property){
-		return Integer.parseInt(this.getString(property));
-	}
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			throw new MissingResourceException("", this.getClass().getName(), property);
+		}
+		Object value=this.getParsedValue(plan, Integer.class);
+		if (value==BAD_TYPED_VALUE){
+			return Integer.parseInt(plan.value); // raise the NumberFormatException.
+		}
+		return ((Integer)value).intValue();
+	}
 	
 	public int getIntProperty(String property){
-		try{ 
-			return  this.getIntPropertyRe(property);
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "getIntProperty",
-					 this.baseName+": Mandatory integer property "+property+" as a bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "getIntProperty",
-					 this.baseName+": Mandatory integer property "+property+" is missing");
-		}
-		return 0;
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getIntProperty", "{0}: Mandatory integer property {1} is missing", this.baseName, property);
+			}
+			return 0;
+		}
+		Object value=this.getParsedValue(plan, Integer.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getIntProperty", "{0}: Mandatory integer property {1} as a bad format", this.baseName, property);
+			}
+			return 0;
+		}
+		return ((Integer)value).intValue();
 	}
 	public int getOptionalIntProperty(String property, int byDefault){
-		try{ 
-			return Integer.parseInt(this.getString(property));
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "getOptionalIntIntProperty",
-					 this.baseName+": Optional integer property "+property+" as a bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "getOptionalIntProperty",
-					 this.baseName+": Option integer property "+property+" not present");
-		}
-		return byDefault;
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			this.reportMissingOptional("getOptionalIntProperty", "integer", property);
+			return byDefault;
+		}
+		Object value=this.getParsedValue(plan, Integer.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getOptionalIntIntProperty", "{0}: Optional integer property {1} as a bad format", this.baseName, property);
+			}
+			return byDefault;
+		}
+		return ((Integer)value).intValue();
 	}
+	/**
+	 * @return true if the value of property is "true" (any case), else false (see Boolean.parseBoolean).
+	 * A key typed B only accepts true or false: another value is reported when the Properties is built
+	 * and rejected by setPreference, but read as false here, as for untyped keys.
+	 */
 	public boolean getBooleanProperty(String property){
-		try{ 
-			return Boolean.parseBoolean(this.getString(property));
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					 this.getClass().getName(),
-					 "getBooleanProperty",
-					 this.baseName+": Mandatory boolean property "+property+" is missing");
+		String value=this.lookup(property);
+		if (value==null){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getBooleanProperty", "{0}: Mandatory boolean property {1} is missing", this.baseName, property);
+			}
+			return false;
 		}
-		return false;
+		return Boolean.parseBoolean(value);
 	}
 	public boolean getOptinalBooleanProperty(String property, boolean byDefault){
-		try{ 
-			return Boolean.parseBoolean(this.getString(property));
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "getOptionalBooleanProperty",
-					 this.baseName+": Optional boolean property "+property+" not present");
+		String value=this.lookup(property);
+		if (value==null){
+			this.reportMissingOptional("getOptionalBooleanProperty", "boolean", property);
+			return byDefault;
 		}
-		return byDefault;
+		return Boolean.parseBoolean(value);
 	}
 	
 	public Level getLogLevelProperty(String property){
-			try{	
-				return Level.parse(this.getString(property));
-			}catch (Exception e){
-				LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-						 this.getClass().getName(),
-						 "getLogLevel",
-						 this.baseName+": Mandatory (log) Level property "+property+" is missing");
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		Object value=plan.value==null?BAD_TYPED_VALUE:this.getParsedValue(plan, Level.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getLogLevel", "{0}: Mandatory (log) Level property {1}{2}", this.baseName, property, plan.value==null?" is missing":" has a bad format");
 			}
 			return null;
+		}
+		return (Level)value;
 	}
 	public Level getOptionalLogLevelProperty(String property, Level byDefault){
-		try{	
-			return Level.parse(this.getString(property));
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "getLogLevel",
-					 this.baseName+": Optional (log) Level property "+property+"  not present");
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			this.reportMissingOptional("getLogLevel", "(log) Level", property);
+			return byDefault;
+		}
+		Object value=this.getParsedValue(plan, Level.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.WARNING, property)){
+				log(Level.WARNING, "getLogLevel", "{0}: Optional (log) Level property {1} has a bad format", this.baseName, property);
+			}
+			return byDefault;
 		}
-		return byDefault;
+		return (Level)value;
 	}
 	
 	// A basic color name in a properties files  is a name matching the  static FIELD name in Color class
-	// Ex: black, white...
-	private static Pattern colorByNamePattern=Pattern.compile("\\p{Alpha}+");
-	// Read R G B **Saturation** color properties from a properties  file.
-	private static String unitaryPattern="(0*(?:2[0-5]\\p{Digit})|(?:1?\\p{Digit}{1,2}))";
-	private static Pattern sRGBpattern = Pattern.compile(unitaryPattern+"\\p{Blank}+"+
-														 unitaryPattern+"\\p{Blank}+"+
-														 unitaryPattern+"\\p{Blank}+"+
-														 unitaryPattern+"(\\p{Space}*)");
+	// Ex: black, white... (see ValueScanner.isColorName and NamedColors)
+	// R G B **Saturation** color properties are read by ValueScanner.parseRGBA.
 	/**
 	 * Build a Color object from a RGB alpha String.
 	 * 
@@ -617,70 +1316,41 @@ public  class Properties {
 	 * @throws Exception if r g b s values are in a bad interval  (not in [0-255])
 	 */
 	private Color getSRGBColorFromString(String rgbsString) throws NumberFormatException, IllegalArgumentException {
-		Color result=null;
-		Matcher m = sRGBpattern.matcher(rgbsString);
-		if (m.matches()){
-			// sRGBpattern has 5 groups. Group 0 is the overall match, but last group (extra space) 
-			// is *never* returned by m.group(..) ! Bug ?
-			// That is why we add this extra group (\\p{Space}*) to be able to get last (4th) byte group.
-			result=new Color(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), 
-					Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+		return ValueScanner.parseRGBA(rgbsString);
+	}
+	/**
+	 * Build a Color from a basic color name or a R G B A string.
+	 *
+	 * @return a color or null if colorString is neither a known color name nor a R G B A string.
+	 * @throws IllegalArgumentException if r g b a values are in a bad interval
+	 */
+	Color getColorFromString(String colorString) throws IllegalArgumentException {
+		return this.getColorFromString(colorString, this.cssColorNames);
+	}
+	private Color getColorFromString(String colorString, boolean cssColorNames) throws IllegalArgumentException {
+		if (ValueScanner.isColorName(colorString)){
+			return NamedColors.get(colorString, cssColorNames);
 		}
-		return result;
+		return this.getSRGBColorFromString(colorString);
 	}
 	
 	public Color getOptinalColorProperty(String property, Color byDefault){
-		Color result=null;
-		String propStr;
-		try{ 
-			propStr=this.getString(property);
-			if (colorByNamePattern.matcher(propStr).matches()){
-				try {
-					result=(Color)Color.class.getField(propStr).get(Color.class);
-				}catch(Throwable all){
-					LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-							this.getClass().getName(),
-							"getOptionalColorProperty",
-							this.baseName+": Optional Color property "+property+"="+propStr+" not basic color name format nor rgbs)");
-				}
-			}else{
-				try{
-					result=getSRGBColorFromString(propStr);
-				}catch(NumberFormatException nfe){
-					LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-							this.getClass().getName(),
-							"getOptionalColorProperty",
-							this.baseName+": Optional Color property "+property+" bad R G B S format (not bytes ?)");
-				}catch(IllegalArgumentException iae){
-					LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-							this.getClass().getName(),
-							"getOptionalColorProperty",
-							this.baseName+": Optional Color property "+property+" bad R G B S format (not bytes ?)");
-				}catch (Exception e){
-					LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-							this.getClass().getName(),
-							"getOptionalColorProperty",
-							this.baseName+": Optional Color property "+property+" other error (internal ?)");
-				}
-			}
-		}catch (MissingResourceException mre){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					this.getClass().getName(),
-					"getOptionalColorProperty",
-					this.baseName+": Optional Color property "+property+" not present");
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			this.reportMissingOptional("getOptionalColorProperty", "Color", property);
+			return byDefault;
 		}
-		if (result==null){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-					 this.getClass().getName(),
-					 "getOptionalColorProperty",
-					 this.baseName+": Optional Color property "+property+" really bad color format (not a basic name or rgbs? see java.awt.Color)");
-			result=byDefault;
+		Object value=this.getParsedValue(plan, Color.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.WARNING, property)){
+				log(Level.WARNING, "getOptionalColorProperty", "{0}: Optional Color property {1}={2} really bad color format (not a basic name or rgbs? see java.awt.Color)", this.baseName, property, plan.value);
+			}
+			return byDefault;
 		}
-		return result;
+		return (Color)value;
 	}
 	
-	private static Pattern dimensionPattern = Pattern.compile(
- 		"(\\d+)\\p{Blank}+(\\d+)(\\p{Space}*)"); 
+	// width height (or x y) properties are read by ValueScanner.parseIntPair: "(\\d+)\\p{Blank}+(\\d+)(\\p{Space}*)"
 	/**
 	 * Build a Dimension object for an width height string 
 	 * 
@@ -691,17 +1361,8 @@ public  class Properties {
 	 * Remark: usable for a display point given as a couple of integers: x y
 	 */
 	private Dimension getDimensionFromString(String dimString) throws NumberFormatException, IllegalArgumentException {
-		Dimension result=null;
-		Matcher m = dimensionPattern.matcher(dimString);
-		if (m.matches()){
-			// dimensionPattern has 3 groups. Group 0 is the overall match, but last group (3, extra spaces) is never 
-			// returned by m.group(..) ! Bug ?
-			// That is why we add this extra 3rd  group (\\p{Space}*) to be able to get last (2nd)  group... Simple no ?
-			result=new Dimension(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
-		}else{
-			throw new IllegalArgumentException();
-		}
-		return result;
+		long wh=ValueScanner.parseIntPair(dimString);
+		return new Dimension(ValueScanner.first(wh), ValueScanner.second(wh));
 	}
 	/** Find a dimension (width, height)  from a property key prefix.
 	 * 
@@ -710,64 +1371,38 @@ public  class Properties {
 	 * @return a dimension.
 	 */
 	public Dimension getOptionalDimensionProperty(String property, Dimension def){
-		Dimension res=null;
-		try{
-			res=this.getDimensionFromString(this.getString(property));
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getOptionalDimensionProperty",
-					this.baseName+": Optional Dimension property "+property+" has integer with bad format");
-		}catch(IllegalArgumentException iae){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getOptionalDimensionProperty",
-					this.baseName+": Optional Dimension property "+property+" has a really bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-				 this.getClass().getName(),
-				 "getOptionalDimensionProperty",
-				 this.baseName+": Optional Dimension property "+property+" is missing");
-		}
-		if(res==null){
-			res=def;
-		}
-		return res;
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			this.reportMissingOptional("getOptionalDimensionProperty", "Dimension", property);
+			return def;
+		}
+		Object value=this.getParsedValue(plan, Dimension.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getOptionalDimensionProperty", "{0}: Optional Dimension property {1} has a really bad format", this.baseName, property);
+			}
+			return def;
+		}
+		return new Dimension((Dimension)value); // Dimension is mutable, never give the cached one.
 	}
 	
 	/**
 	 *  Find a dimension (width, height)  from a property.
 	 * 
-	 * No exception are caught..... NumberFormatException and some other runtime exception might be raised. 
 	 * @param property. A responding width  height string will be parsed. 
-	 * @return a dimension or null (very bad dimension value)
+	 * @return a dimension or null (missing or very bad dimension value)
 	 */
 	public Dimension getDimensionProperty(String property){
-		try{
-			return getDimensionFromString(this.getString(property));
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getDimensionProperty",
-					this.baseName+": Mandatory Dimension property "+property+" has integer with bad format");
-		}catch(IllegalArgumentException iae){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getDimensionProperty",
-					this.baseName+": Mandatory Dimension property "+property+" has a really bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-				 this.getClass().getName(),
-				 "getDimensionProperty",
-				 this.baseName+": Mandatory Dimension property "+property+" is missing");
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		Object value=plan.value==null?BAD_TYPED_VALUE:this.getParsedValue(plan, Dimension.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getDimensionProperty", "{0}: Mandatory Dimension property {1}{2}", this.baseName, property, plan.value==null?" is missing":" has a really bad format");
+			}
+			return null;
 		}
-		return null;
+		return new Dimension((Dimension)value);
 	}
-	/*
-	private static Pattern intPointPattern = Pattern.compile(
-		"(\\d+)\\p{Blank}+(\\d+)\\p{Blank}+(\\d+)\\p{Blank}+(\\p{Space}*)"); 
-	*/
-	private static Pattern intPointPattern=dimensionPattern;
 	/**
 	 * Build a integer Point  object for an x y  string 
 	 * 
@@ -778,17 +1413,8 @@ public  class Properties {
 	 * Remark: usable for a display point given as a couple of integers: x y
 	 */
 	private Point getIntPointFromString(String pointString) throws NumberFormatException, IllegalArgumentException {
-		Point result=null;
-		Matcher m = intPointPattern.matcher(pointString);
-		if (m.matches()){
-			// intPointPattern has 3 groups. Group 0 is the overall match, but last group (3, extra spaces) is never 
-			// returned by m.group(..) ! Bug ?
-			// That is why we add this extra 3rd  group (\\p{Space}*) to be able to get last (2nd)  group... Simple no ?
-			result=new Point(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
-		}else{
-			throw new IllegalArgumentException();
-		}
-		return result;
+		long xy=ValueScanner.parseIntPair(pointString);
+		return new Point(ValueScanner.first(xy), ValueScanner.second(xy));
 	}
 	/** Find an optional integer point  (x, y)  from a property.
 	 * 
@@ -797,58 +1423,157 @@ public  class Properties {
 	 * @return a dimension.
 	 */
 	public Point getOptionalIntPointProperty(String property, Point def){
-		Point res=null;
-		try{
-			res=this.getIntPointFromString(this.getString(property));
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getOptionalIntPointProperty",
-					this.baseName+": Optional integer Point property "+property+" has integer with bad format");
-		}catch(IllegalArgumentException iae){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getOptionalIntPointProperty",
-					this.baseName+": Optional integer Point property "+property+" has a really bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.WARNING, 
-				 this.getClass().getName(),
-				 "getOptionalIntPointProperty",
-				 this.baseName+": Optional integer Point property "+property+" is missing");
-		}
-		if(res==null){
-			res=def;
-		}
-		return res;
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		if (plan.value==null){
+			this.reportMissingOptional("getOptionalIntPointProperty", "integer Point", property);
+			return def;
+		}
+		Object value=this.getParsedValue(plan, Point.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getOptionalIntPointProperty", "{0}: Optional integer Point property {1} has a really bad format", this.baseName, property);
+			}
+			return def;
+		}
+		return new Point((Point)value); // Point is mutable, never give the cached one.
 	}
 	
 	/**
 	 *  Find a integer point  (x, y)  from a property.
 	 * 
-	 * No exception are caught..... NumberFormatException and some other runtime exception might be raised. 
 	 * @param property. A x y string will be parsed from the corresponding string.
-	 * @return a dimension or null (very bad dimension value)
+	 * @return a dimension or null (missing or very bad dimension value)
 	 */
 	public Point getIntPointProperty(String property){
+		ResolutionPlan plan=this.getResolutionPlan(property);
+		Object value=plan.value==null?BAD_TYPED_VALUE:this.getParsedValue(plan, Point.class);
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.SEVERE, property)){
+				log(Level.SEVERE, "getIntPointProperty", "{0}: Mandatory integer Point property {1}{2}", this.baseName, property, plan.value==null?" is missing":" has a really bad format");
+			}
+			return null;
+		}
+		return new Point((Point)value);
+	}
+
+	/**
+	 * Get the value of a present property parsed as type, using (and filling) the typed value cache.
+	 *
+	 * @param plan a plan which source is not MISSING
+	 * @param type one of Integer, Long, Double, Level, Color, Dimension, Point
+	 * @return the value or BAD_TYPED_VALUE if it can not be parsed as type. Never throws.
+	 */
+	private Object getParsedValue(ResolutionPlan plan, Class<?> type){
+		Object result=plan.getTypedValue(type);
+		if (result==null){
+			result=this.parseValue(plan.value, plan.converter, type, this.cssColorNames);
+			plan.putTypedValue(type, result);
+		}
+		return result;
+	}
+	/**
+	 * Get a value of a {@link Snapshot} parsed as type: from the typed value cache if the plan of key
+	 * still has this value, else parsed as {@link #getParsedValue(ResolutionPlan, Class)} does.
+	 *
+	 * @param cssColorNames color names allowed when the snapshot was taken
+	 * @return the value or BAD_TYPED_VALUE if it can not be parsed as type. Never throws.
+	 */
+	private Object getParsedValue(String key, String value, Class<?> type, boolean cssColorNames){
+		ResolutionPlan plan=this.resolutionPlans.get(key);
+		if (plan!=null && value.equals(plan.value) && cssColorNames==this.cssColorNames){
+			return this.getParsedValue(plan, type);
+		}
+		return this.parseValue(value, this.schema.get(key), type, cssColorNames);
+	}
+	// value parsed as type, by converter if it gives this type (checked as the schema says), BAD_TYPED_VALUE if invalid.
+	private Object parseValue(String value, PropertyConverter converter, Class<?> type, boolean cssColorNames){
+		Object result=null;
 		try{
-			return getIntPointFromString(this.getString(property));
-		}catch (NumberFormatException nfe){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getIntPointProperty",
-					this.baseName+": Mandatory integer Point property "+property+" has integer with bad format");
-		}catch(IllegalArgumentException iae){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-					this.getClass().getName(),
-					"getIntPointProperty",
-					this.baseName+": Mandatory integer Point property "+property+" has a really bad format");
-		}catch (Exception e){
-			LogManager.getLogManager().getLogger("").logp(Level.SEVERE, 
-				 this.getClass().getName(),
-				 "getIntPointProperty",
-				 this.baseName+": Mandatory integer Point property "+property+" is missing");
+			if (converter!=null && converter.getValueType()==type){
+				result=converter.convert(value);
+			}else if (type==Integer.class){
+				result=Integer.valueOf(Integer.parseInt(value));
+			}else if (type==Long.class){
+				result=Long.valueOf(Long.parseLong(value));
+			}else if (type==Double.class){
+				result=Double.valueOf(Double.parseDouble(value));
+			}else if (type==Level.class){
+				result=Level.parse(value);
+			}else if (type==Color.class){
+				result=this.getColorFromString(value, cssColorNames);
+			}else if (type==Dimension.class){
+				result=this.getDimensionFromString(value);
+			}else if (type==Point.class){
+				result=this.getIntPointFromString(value);
+			}
+		}catch(IllegalArgumentException iae){ // NumberFormatException too.
+			result=null;
+		}
+		return result==null?BAD_TYPED_VALUE:result;
+	}
+
+	/** Value of a property from system properties, preferences or bundle.
+	 *
+	 * @param key property key
+	 * @return the value or null if the property is absent. Never throws.
+	 */
+	private String lookup(String key){
+		return this.getResolutionPlan(key).value;
+	}
+	// Value seen by writers (and other threads): without overlays of the current thread.
+	private String sharedLookup(String key){
+		return this.getSharedResolutionPlan(key).value;
+	}
+
+	/**
+	 * Log a missing optional property, only once per key: probing optional keys is a common case.
+	 */
+	private void reportMissingOptional(String method, String kind, String property){
+		if (logger.isLoggable(Level.WARNING) && this.reportedMissingKeys.add(property)){
+			log(Level.WARNING, method, "{0}: Optional {1} property {2} not present (reported once)", this.baseName, kind, property);
+		}
+	}
+
+	/**
+	 * Check if a diagnostic about a key must be logged: level is loggable and, in "log once per key"
+	 * mode, nothing has already been logged for this key.
+	 */
+	private boolean shouldLogKey(Level level, String key){
+		return logger.isLoggable(level) && (!this.logOncePerKey || this.reportedKeys.add(key));
+	}
+
+	// Diagnostics go through a dedicated logger with parameterized (MessageFormat) records,
+	// so that nothing is built when the level is not loggable.
+	private static void log(Level level, String method, String msg){
+		if (logger.isLoggable(level)){
+			logger.logp(level, CLASS_NAME, method, msg);
+		}
+	}
+	private static void log(Level level, String method, String msg, Object p0){
+		if (logger.isLoggable(level)){
+			logger.logp(level, CLASS_NAME, method, msg, p0);
+		}
+	}
+	private static void log(Level level, String method, String msg, Object p0, Object p1){
+		if (logger.isLoggable(level)){
+			logger.logp(level, CLASS_NAME, method, msg, new Object[]{p0, p1});
+		}
+	}
+	private static void log(Level level, String method, String msg, Object p0, Object p1, Object p2){
+		if (logger.isLoggable(level)){
+			logger.logp(level, CLASS_NAME, method, msg, new Object[]{p0, p1, p2});
+		}
+	}
+	private static void logThrown(Level level, String method, String msg, Throwable thrown, Object p0){
+		if (logger.isLoggable(level)){
+			LogRecord lr=new LogRecord(level, msg);
+			lr.setSourceClassName(CLASS_NAME);
+			lr.setSourceMethodName(method);
+			lr.setParameters(new Object[]{p0});
+			lr.setThrown(thrown);
+			lr.setLoggerName(logger.getName());
+			logger.log(lr);
 		}
-		return null;
 	}
 	
 	public String dump(){
@@ -869,204 +1594,1869 @@ public  class Properties {
 	 */
 	public String getString(String key) throws NullPointerException, 
 		MissingResourceException, ClassCastException{
-		//if (!key.endsWith(EDITABLE_KEY_SUFFIX) && propKeys.contains(key+EDITABLE_KEY_SUFFIX)){
-			String result=null;
-			if (this.takeSystemPropertyFirst(key)){
-				result=System.getProperty(key);
-				if (result!=null){
-					Logger.getLogger("").logp(Level.INFO,
-							this.getClass().getName(), "getString", "get property "+key+" from System properties"); //TODO externalize message.
-					return result;
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			throw new MissingResourceException("", this.getClass().getName(), key);
+		}
+		return plan.value;
+	}
+
+	/** Get (build if needed) the resolution plan of a key, as seen by the current thread.
+	 *
+	 * @param key property key, must not be null
+	 * @return the plan, never null (source is MISSING if no value can be found)
+	 */
+	private ResolutionPlan getResolutionPlan(String key){
+		if (this.activeOverlays.get()!=0){ // only a volatile read when no overlay is used.
+			for (OverlayFrame frame=this.overlayFrames.get(); frame!=null; frame=frame.parent){
+				ResolutionPlan plan=frame.overlay.getResolutionPlan(key);
+				if (plan!=null){
+					return plan;
 				}
 			}
-			result=prefs.get(key);
-			if (result==null){
-				result=this.configuration.getString(key);
-			}
-			if (result==null){
-				throw new MissingResourceException("", this.getClass().getName(), key);
-			}
-			return result;
+		}
+		return this.getSharedResolutionPlan(key);
 	}
-	
-	/** Get a list of string for a simple property string.
-	 * 
-	 * @param key string key in properties file
+	/** Get (build if needed) the resolution plan of a key, overlays not considered.
+	 *
+	 * The missing plan of a key which is not a base key is not kept: probing arbitrary keys
+	 * (getOptionalProperty with computed keys...) must not grow resolutionPlans without bound.
+	 * Such a key is looked up in every layer each time, until a writer sets it.
 	 */
-	public String[] getStringList(String key){
-		return getStringList(key, this.getStringListSeparator());
+	private ResolutionPlan getSharedResolutionPlan(String key){
+		ResolutionPlan plan=this.resolutionPlans.get(key);
+		if (plan==null){
+			plan=this.buildResolutionPlan(key);
+			if (plan.value==null && !this.keyIndex.contains(key)){
+				return plan;
+			}
+			// A writer may have installed a fresher plan meanwhile (see refreshResolutionPlan), keep it.
+			ResolutionPlan existing=this.resolutionPlans.putIfAbsent(this.keyIndex.canonical(key), plan);
+			if (existing!=null){
+				plan=existing;
+			}
+		}
+		return plan;
 	}
-	/** Get a list of string for a simple property string using default list separator.
-	 * 
-	 * @param key string key in properties file
-	 * @param defaultList a default string list as a String array. 
-	 */
-	public String[] getOptionalStringList(String key, String[] defaultValue){
-		try {
-			return getStringList(key);
-		}catch(Throwable thr){
-			return defaultValue;
+
+	private ResolutionPlan buildResolutionPlan(String key){
+		for (PropertiesLayer layer: this.layers){
+			if (layer==this.systemLayer && !this.takeSystemPropertyFirst(key)){
+				continue; // System properties only for "._sysfirst" keys.
+			}
+			String value=layer.get(key);
+			if (value!=null){
+				if (layer==this.systemLayer && this.shouldLogKey(Level.INFO, key)){
+					log(Level.INFO, "getString", "get property {0} from System properties", key); //TODO externalize message.
+				}
+				return new ResolutionPlan(layer, value, this.schema.get(key));
+			}
 		}
+		return MISSING_PLAN;
 	}
-	/** Get a list of strings for a simple property string.
-	 * 
-	 * @param key string key in properties file
-	 * @param stringListSeparator2 list separator to use.
+
+	/** Replace the resolution plan of a key (and so drop its typed values) after a change of its sources.
+	 *
+	 * The plan is rebuilt and replaced rather than just removed: a reader which has built
+	 * a plan from the old sources can not install it anymore (see getResolutionPlan).
+	 * Must be called by writers (writeLock held).
+	 * @param key property key
+	 * @return the new plan
 	 */
-	public String[] getStringList(String key, char stringListSeparator2) {
-		Vector<String> result=new Vector<String>();
-		String listString=this.getString(key);
-		int startIdx=0; 
-		int endIdx=0;
-		while (startIdx>=0){
-			endIdx=listString.indexOf(stringListSeparator2, startIdx);
-			if (endIdx>=0){
-				result.add(listString.substring(startIdx, endIdx));
-				startIdx=endIdx+1;// skip separator !
+	private ResolutionPlan refreshResolutionPlan(String key){
+		ResolutionPlan plan=this.buildResolutionPlan(key);
+		this.resolutionPlans.put(this.keyIndex.canonical(key), plan);
+		if (this.resolvedValues!=null){ // snapshots keep the former map.
+			if (plan.value==null){
+				this.resolvedValues=this.resolvedValues.minus(key);
 			}else{
-				result.add(listString.substring(startIdx)); // take all remaining chars from string.
-				startIdx=endIdx; // we are done.
+				this.resolvedValues=this.resolvedValues.plus(this.keyIndex.canonical(key), plan.value);
 			}
-			
 		}
-		return result.toArray(new String[result.size()]);
+		return plan;
 	}
-	
-	/** Get a list of string for a simple property string using default list separator.
-	 * 
-	 * @param key string key in properties file
-	 * @param defaultList a default string list as a String array. 
-	 * @param stringListSeparator2 list separator to use.
+
+	/**
+	 * Refresh the plan of key after a change in a layer and notify if its resolved value changed
+	 * (writeLock held).
+	 * @param key changed key
+	 * @param oldValue resolved value before the change
+	 * @return true if resolved value has changed
 	 */
-	public String[] getOptionalStringList(String key, String[] defaultValue, char stringListSeparator2){
-		try {
-			return getStringList(key, stringListSeparator2);
-		}catch(Throwable thr){
-			return defaultValue;
+	private boolean layerValueChanged(String key, String oldValue){
+		String newValue=this.refreshResolutionPlan(key).value;
+		if (newValue==null?oldValue==null:newValue.equals(oldValue)){
+			return false;
 		}
+		this.notifyChange(key, newValue, oldValue);
+		return true;
 	}
-	public void setPreferencesChanged(boolean preferencesChanged) {
-		this.preferencesChanged = preferencesChanged;
+
+	/**
+	 * Get an immutable, consistent, view of all resolved values at this point in time.
+	 *
+	 * Taking a snapshot is O(1) (but the first one which resolves all keys): resolved values
+	 * are kept in a persistent map, a change copies the path of its key only (O(log n)) and
+	 * shares the rest with the snapshots.
+	 * Inside an {@link Overlay}, the snapshot holds the values seen by the current thread
+	 * (overlay values included): it is a copy, O(n).
+	 * @return a snapshot which can be read from any thread without locking.
+	 */
+	public Snapshot snapshot(){
+		synchronized (this.writeLock){
+			if (this.resolvedValues==null){
+				HashMap<String, String> values=new HashMap<String, String>();
+				for (PropertiesLayer layer: this.layers){
+					for (String key: layer.keys()){
+						this.putResolvedValue(values, key);
+					}
+				}
+				this.resolvedValues=PersistentMap.of(values);
+			}
+			OverlayFrame frame=this.activeOverlays.get()!=0?this.overlayFrames.get():null;
+			if (frame==null){
+				return new Snapshot(this, this.resolvedValues, this.cssColorNames, this.journal.version());
+			}
+			// inside overlays: a private copy, resolvedValues is shared by all threads.
+			HashMap<String, String> values=new HashMap<String, String>(this.resolvedValues);
+			this.putOverlayValues(values, frame);
+			return new Snapshot(this, values, this.cssColorNames, this.journal.version());
+		}
 	}
-	public boolean isPreferencesChanged() {
-		return preferencesChanged;
+	// Put values of frame and its parents, the innermost overlay wins.
+	private void putOverlayValues(Map<String, String> values, OverlayFrame frame){
+		if (frame.parent!=null){
+			this.putOverlayValues(values, frame.parent);
+		}
+		PropertiesLayer.MapLayer layer=frame.overlay.layer;
+		for (String key: layer.keys()){
+			values.put(key, layer.get(key));
+		}
 	}
 
-	public void setStringListSeparator(char stringListSeparator) {
-		this.stringListSeparator = stringListSeparator;
+	/**
+	 * Get the current version: it is incremented by each change of a resolved value
+	 * (preferences, layers, reload...). A cache can check it is up to date with one volatile read.
+	 * @return current version
+	 */
+	public long version(){
+		return this.journal.version();
 	}
-	public char getStringListSeparator() {
-		return stringListSeparator;
+	/**
+	 * Get the changes of resolved values since a version, to catch up incrementally
+	 * (ex: from {@link Snapshot#getVersion()}) instead of reading everything again.
+	 *
+	 * Changes are coalesced per key (first old value, last new value) and ordered by version:
+	 * the version of the last one is the version caught up. The last changes only are kept
+	 * (see {@link #setJournalCapacity(int)}).
+	 * @param version a version previously returned by {@link #version()}
+	 * @return changes since version (empty if none) or null if they are not known anymore
+	 * (too old version or {@link #invalidateResolutionPlans()}): all values must be read again.
+	 */
+	public List<PropertyChangedEvent> changesSince(long version){
+		List<PropertyChangedEvent> result=this.journal.since(version);
+		if (result==null){
+			log(Level.FINE, "changesSince", "{0}: changes since version {1} are not known (current version {2})", this.baseName, version, this.journal.version());
+		}
+		return result;
 	}
 	/**
-	 * A an observer for a given key
-	 * @param k the property (preference) key to observe for changes
-	 * @param observer the observer
+	 * Set how many changes are kept for {@link #changesSince(long)} (default 1024).
+	 * Kept changes are forgotten: consumers will have to read all values again.
+	 * @param capacity number of changes kept (0 to keep none)
 	 */
-	public void addKeyObserver(String k, Observer observer){
-		PropertyObservable observable=this.keyToObservable.get(k);
-		if (observable==null){
-			observable=new PropertyObservable();
-			observable.addObserver(observer);
-			this.keyToObservable.put(k, observable);
-		}else{
-			observable.addObserver(observer); // see Observable.addObserver comment: double are filtered.
+	public void setJournalCapacity(int capacity){
+		if (capacity<0){
+			log(Level.SEVERE, "setJournalCapacity", "{0}: bad journal capacity {1}", this.baseName, capacity);
+			return;
+		}
+		synchronized (this.writeLock){
+			this.journal.setCapacity(capacity);
+		}
+	}
+	public int getJournalCapacity(){
+		return this.journal.getCapacity();
+	}
+	private void putResolvedValue(Map<String, String> values, String key){
+		String value=this.sharedLookup(key); // not lookup: values are shared by all threads, overlays excluded.
+		if (value!=null){
+			values.put(this.keyIndex.canonical(key), value);
 		}
 	}
+
 	/**
-	 * Add an observer which will be informed of any change on any property (or preferences).
-	 * 
-	 * @param observer
+	 * Forget all resolution plans.
+	 *
+	 * Plans are only invalidated by preferences changes, use this method if System properties
+	 * used by "._sysfirst" keys have been changed at run time.
 	 */
-	public void addGlobalObserver(Observer observer){
-		assert observer!=null:"null observer, Observable.addObserver() does not like it";
-		if (this.globalObservable==null){
-			this.globalObservable=new PropertyObservable();
+	public void invalidateResolutionPlans(){
+		synchronized (this.writeLock){
+			this.resolutionPlans.clear();
+			this.resolvedValues=null; // rebuilt by next snapshot.
+			this.journal.reset(); // changed values are unknown.
 		}
-		this.globalObservable.addObserver(observer); // care of doubles...
 	}
 	
 	/**
-	 * Remove an observer from any observed key
-	 * 
-	 * Remark: does not remove parameter from global observers.
-	 * 
-	 * @param observer observer to remove.
+	 * Get layers names, highest precedence first.
+	 *
+	 * Built-in layers are {@link #SYSTEM_LAYER} (only looked at for "._sysfirst" keys),
+	 * {@link #PREFERENCES_LAYER} and {@link #BUNDLE_LAYER}, in this order by default.
+	 * @return layer names
 	 */
-	public void removeObserverFromAllKeys(Observer observer){
-		//We use explicite Iterator loop has we may delete some entry with
-		// no more observer in keysWithNotObserver
-		// Java documentation seems clear: .values() is backed by the Map and iterator.remove should do the Job... 
-		for (Iterator<PropertyObservable> observablesIterator=this.keyToObservable.values().iterator();
-			 observablesIterator.hasNext();){
-			PropertyObservable observable=observablesIterator.next();
-			observable.deleteObserver(observer);
-			if (observable.countObservers()<=0){
-				observablesIterator.remove();
-			}
+	public List<String> getLayerNames(){
+		PropertiesLayer[] current=this.layers;
+		ArrayList<String> result=new ArrayList<String>(current.length);
+		for (PropertiesLayer layer: current){
+			result.add(layer.getName());
 		}
-		//TODO: remove globalObserver ?
+		return result;
 	}
 	/**
-	 * Remove observer for a given key.
-	 * @param key
-	 * @param observer
+	 * Get the name of the layer which provides the value of a key.
+	 * @param key property key
+	 * @return a layer name or null if key is missing
 	 */
-	public void removeObserver(String key, Observer observer){
-		assert key!=null:"null property key";
-		PropertyObservable observable=this.keyToObservable.get(key);
-		if (observable!=null){
-			observable.deleteObserver(observer);
-			if (observable.countObservers()<=0){
-				this.keyToObservable.remove(key);
+	public String getValueLayer(String key){
+		PropertiesLayer source=this.getResolutionPlan(key).source;
+		return source==null?null:source.getName();
+	}
+	/**
+	 * Create an overlay of values, for code running in it (see {@link Overlay#run(Runnable)}).
+	 * @param values values shadowing current ones (copied)
+	 * @return the overlay, cheap: plans of its keys are built on first access
+	 */
+	public Overlay createOverlay(Map<String, String> values){
+		return new Overlay(this, values);
+	}
+
+	/**
+	 * Values of some keys which shadow the ones of a Properties for code running inside the overlay
+	 * (ex: a few overridden keys for one analysis session), in its thread only. Other threads, and
+	 * code outside the overlay, are not concerned: observers are not notified, and nothing is saved.
+	 *
+	 * Overlays can be nested, the innermost one wins. Use {@link #wrap(Runnable)} to carry an overlay
+	 * to tasks run by other threads. Look-ups outside any overlay cost a volatile read.
+	 */
+	public static final class Overlay {
+		private final Properties properties;
+		private final PropertiesLayer.MapLayer layer;
+		// typed values of overlay keys are cached here, as in Properties.resolutionPlans.
+		private final ConcurrentHashMap<String, ResolutionPlan> resolutionPlans=new ConcurrentHashMap<String, ResolutionPlan>();
+
+		private Overlay(Properties properties, Map<String, String> values){
+			this.properties=properties;
+			this.layer=new PropertiesLayer.MapLayer(OVERLAY_LAYER, new HashMap<String, String>(values), false);
+		}
+		// null if key is not in this overlay.
+		private ResolutionPlan getResolutionPlan(String key){
+			ResolutionPlan plan=this.resolutionPlans.get(key);
+			if (plan==null){
+				String value=this.layer.get(key);
+				if (value==null){
+					return null;
+				}
+				plan=new ResolutionPlan(this.layer, value, this.properties.schema.get(key));
+				ResolutionPlan existing=this.resolutionPlans.putIfAbsent(key, plan);
+				if (existing!=null){
+					plan=existing;
+				}
 			}
-		}else{
-			Logger.getLogger("").logp(Level.WARNING,
-					this.getClass().getName(), "removeObserver", key+" has no observer"); //TODO externalise message.
+			return plan;
+		}
+		/** @return overlay values (unmodifiable). */
+		public Map<String, String> getValues(){
+			HashMap<String, String> result=new HashMap<String, String>();
+			for (String key: this.layer.keys()){
+				result.put(key, this.layer.get(key));
+			}
+			return Collections.unmodifiableMap(result);
+		}
+		/** Run task in the current thread, inside this overlay. */
+		public void run(Runnable task){
+			OverlayFrame previous=this.enter();
+			try{
+				task.run();
+			}finally{
+				this.exit(previous);
+			}
+		}
+		/** Call task in the current thread, inside this overlay. */
+		public <V> V call(Callable<V> task) throws Exception {
+			OverlayFrame previous=this.enter();
+			try{
+				return task.call();
+			}finally{
+				this.exit(previous);
+			}
+		}
+		/** @return a task which runs task inside this overlay, in whatever thread (for executors). */
+		public Runnable wrap(final Runnable task){
+			return new Runnable(){
+				@Override
+				public void run() {
+					Overlay.this.run(task);
+				}
+			};
+		}
+		private OverlayFrame enter(){
+			OverlayFrame previous=this.properties.overlayFrames.get();
+			this.properties.overlayFrames.set(new OverlayFrame(this, previous));
+			this.properties.activeOverlays.incrementAndGet();
+			return previous;
+		}
+		private void exit(OverlayFrame previous){
+			this.properties.activeOverlays.decrementAndGet();
+			if (previous==null){
+				this.properties.overlayFrames.remove();
+			}else{
+				this.properties.overlayFrames.set(previous);
+			}
+		}
+	}
+	/** An overlay entered by a thread, and the one it was in. */
+	private static final class OverlayFrame {
+		final Overlay overlay;
+		final OverlayFrame parent;
+		OverlayFrame(Overlay overlay, OverlayFrame parent){
+			this.overlay=overlay;
+			this.parent=parent;
 		}
 	}
+
 	/**
-	 * Remove one global observer
-	 * @see #addGlobalObserver(Observer)
-	 * @param observer
+	 * Add an in memory layer (ex: site config, environment, command line, runtime values)
+	 * with the highest precedence. Use {@link #setLayerOrder(String...)} to place it elsewhere.
+	 *
+	 * Observers are notified of the values it changes.
+	 * @param name layer name, must not be used yet
+	 * @param values initial values (copied)
+	 * @return true if layer has been added
+	 * @see #environmentValues(String)
+	 * @see #commandLineValues(String[])
 	 */
-	public void removeGlobalObserver(Observer observer){
-		assert observer!=null:"null observer, Observable.addObserver() does not like it";
-		if (this.globalObservable!=null){
-			this.globalObservable.deleteObserver(observer);
-			if (this.globalObservable.countObservers()<0){
-				this.globalObservable=null;
+	public boolean addLayer(String name, Map<String, String> values){
+		assert name!=null:"null layer name";
+		try{
+			synchronized (this.writeLock){
+				if (this.findLayer(name)!=null){
+					log(Level.SEVERE, "addLayer", "{0}: layer {1} already exists", this.baseName, name);
+					return false;
+				}
+				PropertiesLayer[] current=this.layers;
+				PropertiesLayer[] newLayers=new PropertiesLayer[current.length+1];
+				newLayers[0]=new PropertiesLayer.MapLayer(name, newValueMap(values), true);
+				System.arraycopy(current, 0, newLayers, 1, current.length);
+				this.changeLayers(newLayers, values.keySet());
+				return true;
 			}
+		}finally{
+			this.deliverHeldChanges();
 		}
 	}
-	
-	private void notifyChange(String k, String newValue, String oldValue){
-		PropertyObservable observable=this.keyToObservable.get(k);
-		PropertyChangedEvent evt=null; //PropertyChangedEvent is unmutable => can be shared by several observables...
-		if (observable!=null){
-			evt=new PropertyChangedEvent(this, k, newValue, oldValue);
-			observable.setChangedAndNotifyObservers(evt);
+	/**
+	 * Remove a layer added by {@link #addLayer(String, Map)}.
+	 * @param name layer name
+	 * @return true if layer has been removed
+	 */
+	public boolean removeLayer(String name){
+		try{
+			synchronized (this.writeLock){
+				PropertiesLayer layer=this.findWritableLayer("removeLayer", name);
+				if (layer==null){
+					return false;
+				}
+				PropertiesLayer[] current=this.layers;
+				PropertiesLayer[] newLayers=new PropertiesLayer[current.length-1];
+				int j=0;
+				for (PropertiesLayer l: current){
+					if (l!=layer){
+						newLayers[j++]=l;
+					}
+				}
+				this.changeLayers(newLayers, new HashSet<String>(layer.keys()));
+				return true;
+			}
+		}finally{
+			this.deliverHeldChanges();
 		}
-		if (this.globalObservable!=null){
-			if (evt==null){
-				evt=new PropertyChangedEvent(this, k, newValue, oldValue);
+	}
+	/**
+	 * Set layers precedence.
+	 * @param names all layers names (see {@link #getLayerNames()}), highest precedence first
+	 * @return true if order has been changed, false if names is not a permutation of current layers names
+	 */
+	public boolean setLayerOrder(String... names){
+		try{
+			synchronized (this.writeLock){
+				PropertiesLayer[] current=this.layers;
+				PropertiesLayer[] newLayers=new PropertiesLayer[names.length];
+				HashSet<PropertiesLayer> seen=new HashSet<PropertiesLayer>();
+				for (int i=0; i<names.length; i++){
+					newLayers[i]=this.findLayer(names[i]);
+					if (newLayers[i]==null || !seen.add(newLayers[i])){
+						break;
+					}
+				}
+				if (seen.size()!=current.length || names.length!=current.length){
+					log(Level.SEVERE, "setLayerOrder", "{0}: {1} is not an order of layers {2}", this.baseName, Arrays.toString(names), this.getLayerNames());
+					return false;
+				}
+				// any key may change: the ones of the layers and the ones already resolved (ex: _sysfirst keys)
+				HashSet<String> keys=new HashSet<String>(this.resolutionPlans.keySet());
+				for (PropertiesLayer layer: current){
+					keys.addAll(layer.keys());
+				}
+				this.changeLayers(newLayers, keys);
+				return true;
 			}
-			this.globalObservable.setChangedAndNotifyObservers(evt);
+		}finally{
+			this.deliverHeldChanges();
 		}
 	}
-	
-	private ResourceBundle configuration = null;
+	/**
+	 * Set (or remove) a value in a layer added by {@link #addLayer(String, Map)}.
+	 * @param layerName layer name
+	 * @param key property key
+	 * @param value new value, null to remove key from layer
+	 * @return true if the resolved value of key has changed (and observers notified)
+	 */
+	public boolean setLayerValue(String layerName, String key, String value){
+		assert key!=null:"null property key";
+		try{
+			synchronized (this.writeLock){
+				PropertiesLayer layer=this.findWritableLayer("setLayerValue", layerName);
+				if (layer==null){
+					return false;
+				}
+				String oldValue=this.sharedLookup(key);
+				if (value==null){
+					layer.remove(key);
+				}else{
+					layer.put(key, value);
+				}
+				return this.layerValueChanged(key, oldValue);
+			}
+		}finally{
+			this.deliverHeldChanges();
+		}
+	}
+	/**
+	 * Replace all values of a layer added by {@link #addLayer(String, Map)}.
+	 *
+	 * Only the keys whose resolved value changes are refreshed and notified.
+	 * @param layerName layer name
+	 * @param values new values (copied)
+	 * @return true if layer exists and is writable
+	 */
+	public boolean setLayerValues(String layerName, Map<String, String> values){
+		try{
+			synchronized (this.writeLock){
+				PropertiesLayer layer=this.findWritableLayer("setLayerValues", layerName);
+				if (layer==null){
+					return false;
+				}
+				HashMap<String, String> oldValues=new HashMap<String, String>();
+				for (String key: layer.keys()){
+					String v=values.get(key);
+					if (v==null || !v.equals(layer.get(key))){
+						oldValues.put(key, this.sharedLookup(key));
+					}
+				}
+				for (Map.Entry<String, String> e: values.entrySet()){
+					if (!e.getValue().equals(layer.get(e.getKey()))){
+						oldValues.put(e.getKey(), this.sharedLookup(e.getKey()));
+					}
+				}
+				((PropertiesLayer.MapLayer)layer).replaceAll(values);
+				for (Map.Entry<String, String> e: oldValues.entrySet()){
+					this.layerValueChanged(e.getKey(), e.getValue());
+				}
+				return true;
+			}
+		}finally{
+			this.deliverHeldChanges();
+		}
+	}
+	// writeLock held. Install newLayers and refresh keys which may have changed.
+	private void changeLayers(PropertiesLayer[] newLayers, Set<String> keys){
+		HashMap<String, String> oldValues=new HashMap<String, String>();
+		for (String key: keys){
+			oldValues.put(key, this.sharedLookup(key));
+		}
+		this.layers=newLayers;
+		for (Map.Entry<String, String> e: oldValues.entrySet()){
+			this.layerValueChanged(e.getKey(), e.getValue());
+		}
+	}
+	private PropertiesLayer findLayer(String name){
+		for (PropertiesLayer layer: this.layers){
+			if (layer.getName().equals(name)){
+				return layer;
+			}
+		}
+		return null;
+	}
+	private PropertiesLayer findWritableLayer(String method, String name){
+		PropertiesLayer layer=this.findLayer(name);
+		if (layer==null || !layer.isWritable()){
+			log(Level.SEVERE, method, "{0}: {1} is not an added layer", this.baseName, name);
+			return null;
+		}
+		return layer;
+	}
+
+	/**
+	 * Get environment variables as properties, for a layer (see {@link #addLayer(String, Map)}).
+	 *
+	 * Variable PREFIX_APP_VIEW_WIDTH gives property app.view.width: prefix is removed,
+	 * name is lower cased and '_' are replaced by '.'.
+	 * @param prefix prefix of variables to take (ex: "MYAPP_"), "" for all
+	 * @return properties from environment
+	 */
+	public static Map<String, String> environmentValues(String prefix){
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (Map.Entry<String, String> e: System.getenv().entrySet()){
+			String name=e.getKey();
+			if (name.startsWith(prefix) && name.length()>prefix.length()){
+				result.put(name.substring(prefix.length()).toLowerCase().replace('_', '.'), e.getValue());
+			}
+		}
+		return result;
+	}
+	/**
+	 * Get command line "--key=value" options as properties, for a layer (see {@link #addLayer(String, Map)}).
+	 * Other arguments are ignored.
+	 * @param args command line arguments
+	 * @return properties from command line
+	 */
+	public static Map<String, String> commandLineValues(String[] args){
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (String arg: args){
+			int eq=arg.indexOf('=');
+			if (arg.startsWith("--") && eq>2){
+				result.put(arg.substring(2, eq), arg.substring(eq+1));
+			}
+		}
+		return result;
+	}
+
+	/** Get a list of string for a simple property string.
+	 * 
+	 * @param key string key in properties file
+	 */
+	public String[] getStringList(String key){
+		return getStringList(key, this.getStringListSeparator());
+	}
+	/** Get a list of string for a simple property string using default list separator.
+	 * 
+	 * @param key string key in properties file
+	 * @param defaultList a default string list as a String array. 
+	 */
+	public String[] getOptionalStringList(String key, String[] defaultValue){
+		return getOptionalStringList(key, defaultValue, this.getStringListSeparator());
+	}
+	/** Get a list of strings for a simple property string.
+	 * 
+	 * @param key string key in properties file
+	 * @param stringListSeparator2 list separator to use.
+	 */
+	public String[] getStringList(String key, char stringListSeparator2) {
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			throw new MissingResourceException("", this.getClass().getName(), key); // as getString
+		}
+		List<String> list=this.getCachedStringList(plan, stringListSeparator2);
+		return list.toArray(new String[list.size()]); // arrays are mutable, never give a shared one.
+	}
+	private static String[] splitStringList(String listString, char stringListSeparator2) {
+		int count=1;
+		for (int i=listString.indexOf(stringListSeparator2); i>=0; i=listString.indexOf(stringListSeparator2, i+1)){
+			count++;
+		}
+		String[] result=new String[count];
+		int startIdx=0;
+		for (int i=0; i<count-1; i++){
+			int endIdx=listString.indexOf(stringListSeparator2, startIdx);
+			result[i]=listString.substring(startIdx, endIdx);
+			startIdx=endIdx+1; // skip separator !
+		}
+		result[count-1]=listString.substring(startIdx); // take all remaining chars from string.
+		return result;
+	}
+	
+	/** Get a list of string for a simple property string using default list separator.
+	 * 
+	 * @param key string key in properties file
+	 * @param defaultList a default string list as a String array. 
+	 * @param stringListSeparator2 list separator to use.
+	 */
+	public String[] getOptionalStringList(String key, String[] defaultValue, char stringListSeparator2){
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			return defaultValue;
+		}
+		List<String> list=this.getCachedStringList(plan, stringListSeparator2);
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Get a list property as an immutable list, split once and shared until the property changes.
+	 * Cheaper than {@link #getStringList(String)} for keys read often.
+	 * @param key property key
+	 * @return the list or null if the property is missing
+	 */
+	public List<String> getStringListView(String key){
+		return this.getStringListView(key, this.getStringListSeparator());
+	}
+	/**
+	 * @see #getStringListView(String)
+	 * @param stringListSeparator2 list separator to use.
+	 */
+	public List<String> getStringListView(String key, char stringListSeparator2){
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			if (this.shouldLogKey(Level.SEVERE, key)){
+				log(Level.SEVERE, "getStringListView", "{0}: Mandatory String list property {1} is missing", this.baseName, key);
+			}
+			return null;
+		}
+		return this.getCachedStringList(plan, stringListSeparator2);
+	}
+	/**
+	 * @see #getStringListView(String)
+	 * @param defaultValue returned if the property is missing.
+	 */
+	public List<String> getOptionalStringListView(String key, List<String> defaultValue){
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			this.reportMissingOptional("getOptionalStringListView", "String list", key);
+			return defaultValue;
+		}
+		return this.getCachedStringList(plan, this.getStringListSeparator());
+	}
+
+	// Typed lists: elements (trimmed) are parsed once, then the cached array is copied on each call.
+	// An empty (or blank) value is an empty list. A list with a bad element is a bad value.
+	/** @return integers of a list property or null if missing or bad. */
+	public int[] getIntList(String key){
+		int[] result=(int[])this.getList(key, int[].class, false, "getIntList", "integer list");
+		return result==null?null:result.clone();
+	}
+	public int[] getOptionalIntList(String key, int[] defaultValue){
+		int[] result=(int[])this.getList(key, int[].class, true, "getOptionalIntList", "integer list");
+		return result==null?defaultValue:result.clone();
+	}
+	/** @return doubles of a list property or null if missing or bad. */
+	public double[] getDoubleList(String key){
+		double[] result=(double[])this.getList(key, double[].class, false, "getDoubleList", "double list");
+		return result==null?null:result.clone();
+	}
+	public double[] getOptionalDoubleList(String key, double[] defaultValue){
+		double[] result=(double[])this.getList(key, double[].class, true, "getOptionalDoubleList", "double list");
+		return result==null?defaultValue:result.clone();
+	}
+	/** @return colors (names or R G B A, see getOptinalColorProperty) of a list property or null if missing or bad. */
+	public Color[] getColorList(String key){
+		Color[] result=(Color[])this.getList(key, Color[].class, false, "getColorList", "Color list");
+		return result==null?null:result.clone();
+	}
+	public Color[] getOptionalColorList(String key, Color[] defaultValue){
+		Color[] result=(Color[])this.getList(key, Color[].class, true, "getOptionalColorList", "Color list");
+		return result==null?defaultValue:result.clone();
+	}
+	/** @return paths of a list property (ex: plugin directories) or null if missing or bad. */
+	public Path[] getPathList(String key){
+		Path[] result=(Path[])this.getList(key, Path[].class, false, "getPathList", "Path list");
+		return result==null?null:result.clone();
+	}
+	public Path[] getOptionalPathList(String key, Path[] defaultValue){
+		Path[] result=(Path[])this.getList(key, Path[].class, true, "getOptionalPathList", "Path list");
+		return result==null?defaultValue:result.clone();
+	}
+
+	/**
+	 * Iterate over the elements of a list property without allocating them: consumer gets
+	 * a view of each element, valid only during its call (use toString() to keep it).
+	 * @param key property key
+	 * @param consumer called for each element, in order
+	 * @return false if the property is missing (consumer not called)
+	 */
+	public boolean forEachListElement(String key, Consumer<? super CharSequence> consumer){
+		return this.forEachListElement(key, this.getStringListSeparator(), consumer);
+	}
+	/**
+	 * @see #forEachListElement(String, Consumer)
+	 * @param stringListSeparator2 list separator to use.
+	 */
+	public boolean forEachListElement(String key, char stringListSeparator2, Consumer<? super CharSequence> consumer){
+		String value=this.lookup(key);
+		if (value==null){
+			return false;
+		}
+		ListSegment segment=new ListSegment(value);
+		int startIdx=0;
+		int endIdx;
+		while ((endIdx=value.indexOf(stringListSeparator2, startIdx))>=0){
+			segment.set(startIdx, endIdx);
+			consumer.accept(segment);
+			startIdx=endIdx+1;
+		}
+		segment.set(startIdx, value.length());
+		consumer.accept(segment);
+		return true;
+	}
+
+	// Value of a list property as type (see parseList), diagnostics logged as other typed getters.
+	// null if missing or bad, else the cached (shared) array.
+	private Object getList(String key, Class<?> type, boolean optional, String method, String kind){
+		ResolutionPlan plan=this.getResolutionPlan(key);
+		if (plan.value==null){
+			if (optional){
+				this.reportMissingOptional(method, kind, key);
+			}else if (this.shouldLogKey(Level.SEVERE, key)){
+				log(Level.SEVERE, method, "{0}: Mandatory {1} property {2} is missing", this.baseName, kind, key);
+			}
+			return null;
+		}
+		Object value=this.getParsedList(plan, type, this.getStringListSeparator());
+		if (value==BAD_TYPED_VALUE){
+			Level level=optional?Level.WARNING:Level.SEVERE;
+			if (this.shouldLogKey(level, key)){
+				log(level, method, "{0}: {1} property {2} has a bad format", this.baseName, (optional?"Optional ":"Mandatory ")+kind, key);
+			}
+			return null;
+		}
+		return value;
+	}
+	@SuppressWarnings("unchecked")
+	private List<String> getCachedStringList(ResolutionPlan plan, char separator){
+		return (List<String>)this.getParsedList(plan, List.class, separator); // never bad.
+	}
+
+	/** A parsed list and the separator used to split it (cached in ResolutionPlan.typedValues). */
+	private static final class ParsedList {
+		final char separator;
+		final Object value; // or BAD_TYPED_VALUE
+		ParsedList(char separator, Object value){
+			this.separator=separator;
+			this.value=value;
+		}
+	}
+	/**
+	 * Get the value of a present list property parsed as type, using (and filling) the typed value cache.
+	 * @param type List (immutable List of String), int[], double[], Color[] or Path[]
+	 * @return the value or BAD_TYPED_VALUE
+	 */
+	private Object getParsedList(ResolutionPlan plan, Class<?> type, char separator){
+		Object cached=plan.getTypedValue(type);
+		if (cached instanceof ParsedList && ((ParsedList)cached).separator==separator){
+			return ((ParsedList)cached).value;
+		}
+		Object result;
+		try{
+			result=this.parseList(plan.value, type, separator);
+		}catch(IllegalArgumentException iae){ // NumberFormatException, InvalidPathException too.
+			result=BAD_TYPED_VALUE;
+		}
+		plan.putTypedValue(type, new ParsedList(separator, result));
+		return result;
+	}
+	private Object parseList(String value, Class<?> type, char separator) throws IllegalArgumentException {
+		if (type==List.class){
+			return Collections.unmodifiableList(Arrays.asList(splitStringList(value, separator)));
+		}
+		String[] elements=value.trim().length()==0?new String[0]:splitStringList(value, separator);
+		if (type==int[].class){
+			int[] result=new int[elements.length];
+			for (int i=0; i<elements.length; i++){
+				result[i]=Integer.parseInt(elements[i].trim());
+			}
+			return result;
+		}else if (type==double[].class){
+			double[] result=new double[elements.length];
+			for (int i=0; i<elements.length; i++){
+				result[i]=Double.parseDouble(elements[i]); // trims.
+			}
+			return result;
+		}else if (type==Color[].class){
+			Color[] result=new Color[elements.length];
+			for (int i=0; i<elements.length; i++){
+				result[i]=this.getColorFromString(elements[i].trim());
+				if (result[i]==null){
+					return BAD_TYPED_VALUE;
+				}
+			}
+			return result;
+		}else if (type==Path[].class){
+			Path[] result=new Path[elements.length];
+			for (int i=0; i<elements.length; i++){
+				result[i]=Paths.get(elements[i].trim());
+			}
+			return result;
+		}
+		throw new IllegalArgumentException("unknown list type "+type);
+	}
+	public void setPreferencesChanged(boolean preferencesChanged) {
+		this.preferencesChanged = preferencesChanged;
+		if (preferencesChanged && this.autosaveDelay>0){
+			this.scheduleAutosave();
+		}
+	}
+
+	/**
+	 * Save preferences automatically, in background, once changes stop for a while.
+	 *
+	 * A burst of changes (ex: setPreference called at each mouse drag) gives a single save,
+	 * delayMillis after the last change. Saves are done by one daemon thread shared by all
+	 * Properties (never the event dispatch thread) and pending changes are saved at JVM shutdown.
+	 * @param delayMillis delay after last change, 0 (or negative) to disable autosave
+	 * @see #getSaveStatistics()
+	 */
+	public void setAutosave(long delayMillis){
+		synchronized (this.writeLock){
+			this.autosaveDelay=delayMillis;
+			if (delayMillis>0){
+				registerAutosaveShutdownHook();
+				if (this.isPreferencesChanged()){
+					this.scheduleAutosave();
+				}
+			}else if (this.autosaveFuture!=null){
+				this.autosaveFuture.cancel(false);
+				this.autosaveFuture=null;
+			}
+		}
+	}
+	public long getAutosaveDelay(){
+		return this.autosaveDelay;
+	}
+	// (re)start the autosave delay: debounce.
+	private void scheduleAutosave(){
+		synchronized (this.writeLock){
+			if (this.autosaveFuture!=null){
+				this.autosaveFuture.cancel(false);
+			}
+			this.autosaveFuture=getBackgroundScheduler().schedule(this.autosaveTask, this.autosaveDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+	private final Runnable autosaveTask=new Runnable(){
+		@Override
+		public void run() {
+			autosave("autosave");
+		}
+	};
+	private void autosave(String method){
+		try {
+			this.savePreferences();
+		} catch (FileNotFoundException e) {
+			// already logged by savePreferences, keep changes for next try.
+		} catch (RuntimeException e) {
+			logThrown(Level.SEVERE, method, "{0}: preferences autosave failed", e, this.baseName);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getBackgroundScheduler(){
+		if (backgroundScheduler==null){
+			ScheduledThreadPoolExecutor scheduler=new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t=new Thread(r, "Properties background");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.setRemoveOnCancelPolicy(true);
+			backgroundScheduler=scheduler;
+		}
+		return backgroundScheduler;
+	}
+	private static synchronized void registerAutosaveShutdownHook(){
+		if (!autosaveShutdownHookRegistered){
+			autosaveShutdownHookRegistered=true;
+			Runtime.getRuntime().addShutdownHook(new Thread("Properties autosave flush"){
+				@Override
+				public void run() {
+					for (Properties properties: builtProperties.values()){
+						if (properties.autosaveDelay>0 && properties.isPreferencesChanged()){
+							properties.autosave("shutdownHook");
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Statistics of preferences saves (manual or automatic).
+	 * @see Properties#getSaveStatistics()
+	 */
+	public static final class SaveStatistics {
+		private final long saveCount;
+		private final long failedSaveCount;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long lastNanos;
+		private final long bytesWritten;
+		private SaveStatistics(long saveCount, long failedSaveCount, long totalNanos, long maxNanos, long lastNanos, long bytesWritten){
+			this.saveCount=saveCount;
+			this.failedSaveCount=failedSaveCount;
+			this.totalNanos=totalNanos;
+			this.maxNanos=maxNanos;
+			this.lastNanos=lastNanos;
+			this.bytesWritten=bytesWritten;
+		}
+		/** @return number of successful saves (full or journal) */
+		public long getSaveCount() {
+			return saveCount;
+		}
+		public long getFailedSaveCount() {
+			return failedSaveCount;
+		}
+		/** @return cumulated latency of successful saves, in nanoseconds */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+		public long getLastNanos() {
+			return lastNanos;
+		}
+		/** @return bytes written to preferences files and journals */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+		@Override
+		public String toString(){
+			return "saves="+saveCount+" failed="+failedSaveCount+" totalNanos="+totalNanos+" maxNanos="+maxNanos+
+					" lastNanos="+lastNanos+" bytes="+bytesWritten;
+		}
+	}
+	public SaveStatistics getSaveStatistics(){
+		synchronized (this.writeLock){
+			return new SaveStatistics(this.saveCount, this.failedSaveCount, this.saveNanos, this.maxSaveNanos, this.lastSaveNanos, this.savedBytes);
+		}
+	}
+
+	/**
+	 * Watch the preferences file (and its journal) and reload it when it is modified by someone else
+	 * (ex: an operator editing it on a live box).
+	 *
+	 * Modifications bursts are debounced, the file is read by a background thread, and
+	 * observers are notified only for keys whose value actually changed: by the notification executor
+	 * if any (see {@link #setNotificationExecutor(Executor)}), else on the event dispatch thread
+	 * (never the background thread). A file which is still being written (changing while read,
+	 * or unreadable) is read again later.
+	 * Preferences changed here and not saved yet are kept.
+	 * @param debounceMillis delay after last modification before reading the file
+	 * @return true if watching, false if preferences file directory can not be watched
+	 */
+	public boolean startWatchingPreferences(long debounceMillis){
+		synchronized (this.writeLock){
+			if (this.watcher!=null){
+				return true;
+			}
+			File prefFile=this.prefFilePath!=null?new File(this.prefFilePath):this.preferencesTargetFile();
+			try {
+				this.watcher=new PreferencesWatcher(prefFile.getAbsoluteFile(), debounceMillis);
+			} catch (IOException e) {
+				log(Level.WARNING, "startWatchingPreferences", "can not watch {0}: {1}", prefFile.getPath(), e);
+				return false;
+			}
+			Thread t=new Thread(this.watcher, "Properties watcher "+this.baseName);
+			t.setDaemon(true);
+			t.start();
+			return true;
+		}
+	}
+	public void stopWatchingPreferences(){
+		synchronized (this.writeLock){
+			if (this.watcher!=null){
+				this.watcher.stop();
+				this.watcher=null;
+			}
+		}
+	}
+
+	// max number of tries to read a file being written.
+	private static final int RELOAD_MAX_TRIES=5;
+
+	private final class PreferencesWatcher implements Runnable {
+		private final File prefFile;
+		private final long debounceMillis;
+		private final WatchService service;
+		private ScheduledFuture<?> reloadFuture=null; // writeLock held
+		private int tries=0; // background thread only
+
+		PreferencesWatcher(File prefFile, long debounceMillis) throws IOException {
+			this.prefFile=prefFile;
+			this.debounceMillis=debounceMillis;
+			this.service=FileSystems.getDefault().newWatchService();
+			try{
+				prefFile.getParentFile().toPath().register(this.service,
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}catch(IOException e){
+				this.service.close();
+				throw e;
+			}
+		}
+		void stop(){
+			try {
+				this.service.close(); // ends run()
+			} catch (IOException e) {
+				// nothing to do.
+			}
+			if (this.reloadFuture!=null){
+				this.reloadFuture.cancel(false);
+			}
+		}
+		@Override
+		public void run() {
+			String name=this.prefFile.getName();
+			String journalName=PreferencesStore.journalFileOf(this.prefFile).getName();
+			try{
+				while (true){
+					WatchKey key=this.service.take();
+					boolean changed=false;
+					for (WatchEvent<?> event: key.pollEvents()){
+						Object context=event.context();
+						if (context instanceof Path){
+							String changedName=((Path)context).getFileName().toString();
+							changed|=changedName.equals(name) || changedName.equals(journalName);
+						}else{
+							changed=true; // OVERFLOW
+						}
+					}
+					key.reset();
+					if (changed){
+						this.scheduleReload();
+					}
+				}
+			}catch(InterruptedException e){
+				// stop.
+			}catch(ClosedWatchServiceException e){
+				// stopped.
+			}
+		}
+		// (re)start the debounce delay.
+		private void scheduleReload(){
+			synchronized (writeLock){
+				if (watcher!=this){
+					return;
+				}
+				if (this.reloadFuture!=null){
+					this.reloadFuture.cancel(false);
+				}
+				this.reloadFuture=getBackgroundScheduler().schedule(this.reloadTask, this.debounceMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		private final Runnable reloadTask=new Runnable(){
+			@Override
+			public void run() {
+				HashMap<String, String> values=readPreferencesFile(prefFile);
+				if (values==null){
+					if (++tries<RELOAD_MAX_TRIES){
+						scheduleReload(); // still being written ?
+					}else{
+						tries=0;
+						log(Level.WARNING, "reloadPreferences", "can not reload {0}", prefFile.getPath());
+					}
+					return;
+				}
+				tries=0;
+				reloadPreferences(values);
+			}
+		};
+	}
+
+	/**
+	 * Read a preferences file and its journal, in background.
+	 * @return preferences or null if the file can not be read or has changed while read.
+	 */
+	private static HashMap<String, String> readPreferencesFile(File prefFile){
+		long length=prefFile.length();
+		long lastModified=prefFile.lastModified();
+		try {
+			byte[] content=Files.readAllBytes(prefFile.toPath());
+			HashMap<String, String> values=new HashMap<String, String>();
+			ArrayList<String> errors=new ArrayList<String>();
+			PreferencesParser.parse(ByteBuffer.wrap(content), values, errors);
+			if (!errors.isEmpty()){
+				return null; // malformed unicode escape: being written ?
+			}
+			PreferencesStore.replayJournal(prefFile, values);
+			if (prefFile.length()!=length || prefFile.lastModified()!=lastModified || content.length!=length){
+				return null; // being written.
+			}
+			return values;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Apply reloaded preferences: keys changed here and not saved yet are kept,
+	 * observers are notified of effective changes only.
+	 */
+	private void reloadPreferences(Map<String, String> values){
+		try{
+			synchronized (this.writeLock){
+				HashSet<String> keys=new HashSet<String>(this.prefs.keySet());
+				keys.addAll(values.keySet());
+				int changes=0;
+				for (String key: keys){
+					String value=values.get(key);
+					String current=this.prefs.get(key);
+					if (this.dirtyKeys.contains(key) || (value==null?current==null:value.equals(current))){
+						continue;
+					}
+					String oldValue=this.sharedLookup(key);
+					if (value==null){
+						this.prefs.remove(key);
+					}else{
+						this.prefs.put(key, value);
+					}
+					this.layerValueChanged(key, oldValue);
+					changes++;
+				}
+				if (changes>0){
+					log(Level.INFO, "reloadPreferences", "{0} preferences reloaded", changes);
+				}
+			}
+		}finally{
+			this.deliverHeldChanges(EDT_EXECUTOR); // background thread: synchronous observers (ex: editor) run on the EDT.
+		}
+	}
+	public boolean isPreferencesChanged() {
+		return preferencesChanged;
+	}
+
+	/**
+	 * Allow (or not) CSS/X11 color names (ex: "navy", "tomato") in color properties.
+	 *
+	 * java.awt.Color names always take precedence. Default is false.
+	 * @param cssColorNames true to allow CSS/X11 color names.
+	 */
+	public void setCssColorNames(boolean cssColorNames) {
+		if (this.cssColorNames!=cssColorNames){
+			this.cssColorNames = cssColorNames;
+			this.invalidateResolutionPlans(); // cached Colors may change.
+		}
+	}
+	public boolean isCssColorNames() {
+		return cssColorNames;
+	}
+
+	/**
+	 * Set "log once per key" mode: when true, at most one diagnostic (missing, bad format...)
+	 * is logged for a given key. Useful when typed getters are called from render loops.
+	 * Default is false.
+	 * @param logOncePerKey
+	 */
+	public void setLogOncePerKey(boolean logOncePerKey) {
+		this.logOncePerKey = logOncePerKey;
+	}
+	public boolean isLogOncePerKey() {
+		return logOncePerKey;
+	}
+
+	public void setStringListSeparator(char stringListSeparator) {
+		this.stringListSeparator = stringListSeparator;
+	}
+	public char getStringListSeparator() {
+		return stringListSeparator;
+	}
+	/**
+	 * Add a listener for a given key. A listener already registered for this key is not added twice.
+	 * @param key the property (preference) key to listen to
+	 * @param listener the listener
+	 */
+	public void addPropertyChangeListener(String key, PropertyChangeListener listener){
+		assert key!=null:"null property key";
+		assert listener!=null:"null listener";
+		synchronized (this.writeLock){
+			ListenerSubscriptions subscriptions=this.subscriptionsOf(listener);
+			if (subscriptions.keys.add(key)){
+				PropertyChangeListener[] listeners=this.keyListeners.get(key);
+				this.keyListeners.put(key, appendListener(listeners==null?NO_LISTENER:listeners, listener));
+			}
+		}
+	}
+	/**
+	 * Remove a listener for a given key.
+	 * @param key
+	 * @param listener
+	 * @return true if listener was listening to key
+	 */
+	public boolean removePropertyChangeListener(String key, PropertyChangeListener listener){
+		assert key!=null:"null property key";
+		synchronized (this.writeLock){
+			ListenerSubscriptions subscriptions=this.listenerSubscriptions.get(listener);
+			if (subscriptions==null || !subscriptions.keys.remove(key)){
+				return false;
+			}
+			this.forgetIfUnsubscribed(listener, subscriptions);
+			PropertyChangeListener[] listeners=removeListener(this.keyListeners.get(key), listener);
+			if (listeners.length==0){
+				this.keyListeners.remove(key);
+				this.keyObservables.remove(key);
+			}else{
+				this.keyListeners.put(key, listeners);
+			}
+			return true;
+		}
+	}
+	/**
+	 * Add a listener for all keys starting with a given prefix ("" for any key).
+	 * A listener already registered for this prefix is not added twice.
+	 * @param prefix key prefix (ex: "editor." )
+	 * @param listener the listener
+	 */
+	public void addPrefixChangeListener(String prefix, PropertyChangeListener listener){
+		assert prefix!=null:"null prefix";
+		assert listener!=null:"null listener";
+		synchronized (this.writeLock){
+			ListenerSubscriptions subscriptions=this.subscriptionsOf(listener);
+			if (subscriptions.prefixes.add(prefix)){
+				PropertyChangeListener[] listeners=this.prefixListeners.get(prefix);
+				this.prefixListeners.put(prefix, appendListener(listeners==null?NO_LISTENER:listeners, listener));
+				if (listeners==null){
+					this.updatePrefixLengths();
+				}
+			}
+		}
+	}
+	/**
+	 * Remove a prefix listener.
+	 * @param prefix
+	 * @param listener
+	 * @return true if listener was listening to prefix
+	 * @see #addPrefixChangeListener(String, PropertyChangeListener)
+	 */
+	public boolean removePrefixChangeListener(String prefix, PropertyChangeListener listener){
+		assert prefix!=null:"null prefix";
+		synchronized (this.writeLock){
+			ListenerSubscriptions subscriptions=this.listenerSubscriptions.get(listener);
+			if (subscriptions==null || !subscriptions.prefixes.remove(prefix)){
+				return false;
+			}
+			this.forgetIfUnsubscribed(listener, subscriptions);
+			PropertyChangeListener[] listeners=removeListener(this.prefixListeners.get(prefix), listener);
+			if (listeners.length==0){
+				this.prefixListeners.remove(prefix);
+				this.updatePrefixLengths();
+			}else{
+				this.prefixListeners.put(prefix, listeners);
+			}
+			return true;
+		}
+	}
+	/**
+	 * Remove a listener from all keys and prefixes it listens to.
+	 * @param listener
+	 */
+	public void removePropertyChangeListener(PropertyChangeListener listener){
+		synchronized (this.writeLock){
+			this.removeFromAllKeys(listener);
+			ListenerSubscriptions subscriptions=this.listenerSubscriptions.get(listener);
+			if (subscriptions!=null){
+				for (String prefix: subscriptions.prefixes.toArray(new String[subscriptions.prefixes.size()])){
+					this.removePrefixChangeListener(prefix, listener);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build an object with its fields set from properties (with an empty key prefix).
+	 * @see #bind(Class, String)
+	 */
+	public <T> T bind(Class<T> type){
+		return this.bind(type, "");
+	}
+	/**
+	 * Build an object with its fields set from properties, and kept up to date when they change.
+	 *
+	 * Field f is bound to key prefix+f, through the typed getters parsing (and their cache).
+	 * Bound field types: String, boolean, int, long, double (or their wrappers), Level, Color,
+	 * Dimension, Point, String[], List (of String), int[], double[], Color[] and Path[].
+	 * Static, final and transient fields are not bound. A field keeps its initial value
+	 * while its key is missing or bad. Fields are set by the notification thread (see
+	 * {@link #setNotificationExecutor(Executor)}): declare them volatile if read by other threads.
+	 * Accessors are generated once per class, reading a setting is then a plain field access.
+	 * The object is held weakly: it is not updated anymore once the application drops it.
+	 * Records can not be changed, see {@link #bindRecord(Class, String)}.
+	 * @param type a class with a constructor without parameters
+	 * @param prefix prefix of bound keys (ex: "editor.")
+	 * @return the bound object or null if type can not be instantiated
+	 */
+	public <T> T bind(Class<T> type, String prefix){
+		assert prefix!=null:"null prefix";
+		PropertiesBinding.ClassBinding classBinding=PropertiesBinding.of(type);
+		if (classBinding.record){
+			log(Level.SEVERE, "bind", "{0}: can not bind {1}, a record, use bindRecord", this.baseName, type.getName());
+			return null;
+		}
+		if (classBinding.constructor==null){
+			log(Level.SEVERE, "bind", "{0}: can not bind {1}, no accessible constructor without parameters", this.baseName, type.getName());
+			return null;
+		}
+		T object;
+		try{
+			object=type.cast(PropertiesBinding.newInstance(classBinding));
+		}catch(Exception e){
+			logThrown(Level.SEVERE, "bind", "can not build {0}", e, type.getName());
+			return null;
+		}
+		this.addBinding(new PropertiesBinding(this, object, prefix, this.collectedBindings));
+		return object;
+	}
+	/**
+	 * Build a record from properties, and build it again each time one of its keys changes.
+	 *
+	 * Component c is bound to key prefix+c, as fields by {@link #bind(Class, String)} (same types).
+	 * A component gets 0, false or null while its key is missing or bad. The record is built by
+	 * the notification thread and published by the supplier (volatile). If the canonical constructor
+	 * rejects the new values, the error is logged and the former record is kept.
+	 * The supplier is held weakly: records are not built anymore once the application drops it.
+	 * @param type a record class
+	 * @param prefix prefix of bound keys (ex: "editor.")
+	 * @return supplier of the latest record or null if type is not a record, a component type is not
+	 * supported or the record can not be built from the current values
+	 */
+	public <T> Supplier<T> bindRecord(Class<T> type, String prefix){
+		assert prefix!=null:"null prefix";
+		PropertiesBinding.ClassBinding classBinding=PropertiesBinding.of(type);
+		if (!classBinding.record || classBinding.canonical==null){
+			log(Level.SEVERE, "bindRecord", "{0}: can not bind {1}, not a record or a component type is not supported", this.baseName, type.getName());
+			return null;
+		}
+		PropertiesBinding.RecordSupplier<T> supplier=new PropertiesBinding.RecordSupplier<T>();
+		PropertiesBinding binding=new PropertiesBinding(this, type, supplier, prefix, this.collectedBindings);
+		try{
+			this.addBinding(binding);
+		}catch(RuntimeException e){
+			logThrown(Level.SEVERE, "bindRecord", "can not build {0}", e, type.getName());
+			this.unbind(supplier);
+			return null;
+		}
+		return supplier;
+	}
+	private void addBinding(PropertiesBinding binding){
+		synchronized (this.writeLock){
+			this.removeCollectedBindings();
+			for (String key: binding.keys()){
+				this.addPropertyChangeListener(key, binding);
+			}
+		}
+		binding.updateAll(); // after listeners are set: no change can be missed.
+	}
+	/**
+	 * Stop updating an object built by {@link #bind(Class, String)} (or a supplier of {@link #bindRecord(Class, String)}).
+	 * @return false if bound was not bound to this Properties
+	 */
+	public boolean unbind(Object bound){
+		synchronized (this.writeLock){
+			this.removeCollectedBindings();
+			for (PropertyChangeListener listener: this.listenerSubscriptions.keySet()){
+				if (listener instanceof PropertiesBinding && ((PropertiesBinding)listener).target()==bound){
+					this.removePropertyChangeListener(listener);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	/** Remove bindings of objects which have been collected (see PropertiesBinding.Target). */
+	void removeCollectedBindings(){
+		synchronized (this.writeLock){
+			for (Reference<?> r=this.collectedBindings.poll(); r!=null; r=this.collectedBindings.poll()){
+				this.removePropertyChangeListener(((PropertiesBinding.Target)r).binding);
+			}
+		}
+	}
+	/** A record of bound could not be built again (see bindRecord). */
+	void bindingFailed(Object bound, RuntimeException e){
+		logThrown(Level.SEVERE, "bindRecord", "can not build the record of {0}", e, bound);
+	}
+	/**
+	 * Value of key for a bound field (see bind): parsed as by typed getters, a copy if mutable.
+	 * @param type boxed field type
+	 * @return the value or null if missing or bad (bad values are logged as by optional getters)
+	 */
+	Object getBoundValue(String key, Class<?> type){
+		ResolutionPlan plan=this.getSharedResolutionPlan(key);
+		if (plan.value==null){
+			return null;
+		}
+		Object value;
+		if (type==String.class){
+			return plan.value;
+		}else if (type==Boolean.class){
+			return Boolean.valueOf(plan.value);
+		}else if (type==List.class){
+			return this.getCachedStringList(plan, this.getStringListSeparator());
+		}else if (type==String[].class){
+			List<String> list=this.getCachedStringList(plan, this.getStringListSeparator());
+			return list.toArray(new String[list.size()]);
+		}else if (type.isArray()){
+			value=this.getParsedList(plan, type, this.getStringListSeparator());
+		}else{
+			value=this.getParsedValue(plan, type);
+		}
+		if (value==BAD_TYPED_VALUE){
+			if (this.shouldLogKey(Level.WARNING, key)){
+				log(Level.WARNING, "bind", "{0}: bound property {1}={2} has a bad format", this.baseName, key, plan.value);
+			}
+			return null;
+		}
+		// never give a cached mutable value.
+		if (value instanceof Dimension){
+			return new Dimension((Dimension)value);
+		}else if (value instanceof Point){
+			return new Point((Point)value);
+		}else if (value instanceof int[]){
+			return ((int[])value).clone();
+		}else if (value instanceof double[]){
+			return ((double[])value).clone();
+		}else if (value instanceof Object[]){
+			return ((Object[])value).clone();
+		}
+		return value;
+	}
+	// writeLock held. Uses the reverse index: cost is the number of keys listener listens to.
+	private void removeFromAllKeys(PropertyChangeListener listener){
+		ListenerSubscriptions subscriptions=this.listenerSubscriptions.get(listener);
+		if (subscriptions!=null){
+			for (String key: subscriptions.keys.toArray(new String[subscriptions.keys.size()])){
+				this.removePropertyChangeListener(key, listener);
+			}
+		}
+	}
+	// writeLock held. Distinct lengths of the prefixes listened to, ascending (see deliverChanges).
+	private void updatePrefixLengths(){
+		TreeSet<Integer> lengths=new TreeSet<Integer>();
+		for (String prefix: this.prefixListeners.keySet()){
+			lengths.add(Integer.valueOf(prefix.length()));
+		}
+		int[] result=new int[lengths.size()];
+		int i=0;
+		for (Integer length: lengths){
+			result[i++]=length.intValue();
+		}
+		this.prefixLengths=result;
+	}
+	// writeLock held.
+	private ListenerSubscriptions subscriptionsOf(PropertyChangeListener listener){
+		ListenerSubscriptions subscriptions=this.listenerSubscriptions.get(listener);
+		if (subscriptions==null){
+			subscriptions=new ListenerSubscriptions();
+			this.listenerSubscriptions.put(listener, subscriptions);
+		}
+		return subscriptions;
+	}
+	// writeLock held.
+	private void forgetIfUnsubscribed(PropertyChangeListener listener, ListenerSubscriptions subscriptions){
+		if (subscriptions.keys.isEmpty() && subscriptions.prefixes.isEmpty()){
+			this.listenerSubscriptions.remove(listener);
+		}
+	}
+	private static PropertyChangeListener[] appendListener(PropertyChangeListener[] listeners, PropertyChangeListener listener){
+		PropertyChangeListener[] result=new PropertyChangeListener[listeners.length+1];
+		System.arraycopy(listeners, 0, result, 0, listeners.length);
+		result[listeners.length]=listener;
+		return result;
+	}
+	// listener must be in listeners (see reverse index).
+	private static PropertyChangeListener[] removeListener(PropertyChangeListener[] listeners, PropertyChangeListener listener){
+		PropertyChangeListener[] result=new PropertyChangeListener[listeners.length-1];
+		int j=0;
+		for (PropertyChangeListener l: listeners){
+			if (!l.equals(listener)){
+				result[j++]=l;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A an observer for a given key
+	 * @param k the property (preference) key to observe for changes
+	 * @param observer the observer
+	 * @see #addPropertyChangeListener(String, PropertyChangeListener)
+	 */
+	public void addKeyObserver(String k, Observer observer){
+		synchronized (this.writeLock){
+			this.addPropertyChangeListener(k, new ObserverAdapter(this.observableOf(k), observer)); // doubles are filtered.
+		}
+	}
+	// writeLock held. Observable of a key, kept while the key has listeners.
+	@SuppressWarnings("deprecation")
+	private Observable observableOf(String k){
+		Observable observable=this.keyObservables.get(k);
+		if (observable==null){
+			observable=new Observable();
+			this.keyObservables.put(k, observable);
+		}
+		return observable;
+	}
+	/**
+	 * Add an observer which will be informed of any change on any property (or preferences).
+	 * 
+	 * @param observer
+	 * @see #addPrefixChangeListener(String, PropertyChangeListener)
+	 */
+	public void addGlobalObserver(Observer observer){
+		assert observer!=null:"null observer, Observable.addObserver() does not like it";
+		this.addPrefixChangeListener("", new ObserverAdapter(this.globalObservable, observer)); // care of doubles...
+	}
+	
+	/**
+	 * Remove an observer from any observed key
+	 * 
+	 * Remark: does not remove parameter from global observers.
+	 * 
+	 * @param observer observer to remove.
+	 */
+	public void removeObserverFromAllKeys(Observer observer){
+		synchronized (this.writeLock){
+			this.removeFromAllKeys(new ObserverAdapter(null, observer));
+			//TODO: remove globalObserver ?
+		}
+	}
+	/**
+	 * Remove observer for a given key.
+	 * @param key
+	 * @param observer
+	 */
+	public void removeObserver(String key, Observer observer){
+		assert key!=null:"null property key";
+		synchronized (this.writeLock){
+			if (this.keyListeners.containsKey(key)){
+				this.removePropertyChangeListener(key, new ObserverAdapter(null, observer));
+			}else{
+				if (this.shouldLogKey(Level.WARNING, key)){
+					log(Level.WARNING, "removeObserver", "{0} has no observer", key); //TODO externalise message.
+				}
+			}
+		}
+	}
+	/**
+	 * Remove one global observer
+	 * @see #addGlobalObserver(Observer)
+	 * @param observer
+	 */
+	public void removeGlobalObserver(Observer observer){
+		assert observer!=null:"null observer, Observable.addObserver() does not like it";
+		this.removePrefixChangeListener("", new ObserverAdapter(null, observer));
+	}
+	
+	// plan of k must have been refreshed (see layerValueChanged).
+	// Observers are never called with writeLock held: a synchronous change is held until the writer
+	// releases it (see deliverHeldChanges), so an observer may wait for another thread which writes.
+	private void notifyChange(String k, String newValue, String oldValue){
+		PropertyChangedEvent evt=new PropertyChangedEvent(this, k, newValue, oldValue, this.journal.nextVersion()); //PropertyChangedEvent is unmutable => can be shared by several observables...
+		this.journal.add(evt);
+		boolean deliverNow;
+		synchronized (this.notificationLock){
+			deliverNow=this.notificationExecutor==null && this.batchDepth==0;
+			if (!deliverNow){
+				// coalesce: last value wins, first old value is kept.
+				PropertyChangedEvent pending=this.pendingChanges.get(k);
+				if (pending!=null){
+					evt=evt.withOldVal(pending.getOldVal());
+				}
+				this.pendingChanges.put(k, evt);
+				if (this.batchDepth==0){
+					this.scheduleFlush();
+				}
+			}
+		}
+		if (deliverNow){
+			if (Thread.holdsLock(this.writeLock)){
+				this.heldChanges.get().add(evt);
+			}else{
+				this.deliverChanges(Collections.singletonList(evt));
+			}
+		}
+	}
+
+	/**
+	 * Set the executor used to notify observers.
+	 *
+	 * When null (default) observers are notified synchronously, in the thread changing the preference.
+	 * Otherwise changes are queued, coalesced per key (last value wins, first old value is kept)
+	 * and delivered in batches by the executor (ex: {@link #EDT_EXECUTOR}).
+	 * @param executor executor to deliver changes or null for synchronous notification
+	 */
+	public void setNotificationExecutor(Executor executor){
+		Collection<PropertyChangedEvent> pending=null;
+		synchronized (this.notificationLock){
+			this.notificationExecutor=executor;
+			if (executor==null && this.batchDepth==0 && !this.flushScheduled){
+				pending=this.takePendingChanges();
+			}
+		}
+		if (pending!=null){
+			this.deliverChanges(pending);
+		}
+	}
+	public Executor getNotificationExecutor(){
+		synchronized (this.notificationLock){
+			return this.notificationExecutor;
+		}
+	}
+
+	/**
+	 * Run some changes (setPreference, removePreference...) and notify observers only once at the end.
+	 *
+	 * Changes made by update are coalesced per key and delivered as one batch, when the outermost
+	 * batchUpdate ends (synchronously or by the notification executor if any). Batch listeners
+	 * (see {@link #addBatchListener(PropertiesBatchListener)}) receive one {@link PropertiesChangedBatch}.
+	 * Remark: changes made by other threads while a batch update runs are held too.
+	 * @param update changes to make
+	 */
+	public void batchUpdate(Runnable update){
+		synchronized (this.notificationLock){
+			this.batchDepth++;
+		}
+		try{
+			update.run();
+		}finally{
+			Collection<PropertyChangedEvent> pending=null;
+			synchronized (this.notificationLock){
+				this.batchDepth--;
+				if (this.batchDepth==0 && !this.pendingChanges.isEmpty()){
+					if (this.notificationExecutor==null){
+						pending=this.takePendingChanges();
+					}else{
+						this.scheduleFlush();
+					}
+				}
+			}
+			if (pending!=null){
+				this.deliverChanges(pending);
+			}
+		}
+	}
+
+	/**
+	 * Deliver the synchronous changes this thread made while it held writeLock (see notifyChange), in order.
+	 * Called by writers once they have released writeLock (nothing is done if it is still held:
+	 * the outermost writer will deliver them).
+	 */
+	private void deliverHeldChanges(){
+		this.deliverHeldChanges(null);
+	}
+	/**
+	 * Same as {@link #deliverHeldChanges()}, but changes are delivered by executor (null: in this thread).
+	 * For writers running in a background thread, which must not call observers there.
+	 */
+	private void deliverHeldChanges(Executor executor){
+		if (Thread.holdsLock(this.writeLock)){
+			return;
+		}
+		ArrayList<PropertyChangedEvent> current=this.heldChanges.get();
+		if (current.isEmpty()){
+			return;
+		}
+		final ArrayList<PropertyChangedEvent> held=new ArrayList<PropertyChangedEvent>(current);
+		current.clear(); // an observer may change preferences, in this thread too.
+		Runnable delivery=new Runnable(){
+			@Override
+			public void run(){
+				for (PropertyChangedEvent evt: held){
+					deliverChanges(Collections.singletonList(evt));
+				}
+			}
+		};
+		if (executor==null){
+			delivery.run();
+		}else{
+			executor.execute(delivery);
+		}
+	}
+
+	// notificationLock held.
+	private void scheduleFlush(){
+		if (!this.flushScheduled){
+			this.flushScheduled=true;
+			this.notificationExecutor.execute(this.flushTask);
+		}
+	}
+	// notificationLock held.
+	private Collection<PropertyChangedEvent> takePendingChanges(){
+		Collection<PropertyChangedEvent> result=this.pendingChanges.values();
+		this.pendingChanges=new LinkedHashMap<String, PropertyChangedEvent>();
+		return result;
+	}
+	private final Runnable flushTask=new Runnable(){
+		@Override
+		public void run() {
+			Collection<PropertyChangedEvent> pending;
+			synchronized (notificationLock){
+				flushScheduled=false;
+				if (batchDepth>0){
+					return; // the end of the batch will flush.
+				}
+				pending=takePendingChanges();
+			}
+			deliverChanges(pending);
+		}
+	};
+
+	/**
+	 * Notify key, global and batch listeners of some (coalesced) changes.
+	 * Changes which have been coalesced to nothing (new value equals first old value) are skipped.
+	 */
+	private void deliverChanges(Collection<PropertyChangedEvent> changes){
+		ArrayList<PropertyChangedEvent> delivered=new ArrayList<PropertyChangedEvent>(changes.size());
+		for (PropertyChangedEvent evt: changes){
+			if (evt.getNewVal()!=null && evt.getNewVal().equals(evt.getOldVal())){
+				continue;
+			}
+			delivered.add(evt);
+			PropertyChangeListener[] listeners=this.keyListeners.get(evt.getKey());
+			if (listeners!=null){
+				for (PropertyChangeListener listener: listeners){
+					listener.propertyChanged(evt);
+				}
+			}
+			// one look-up per distinct prefix length, whatever the number of prefix listeners.
+			String key=evt.getKey();
+			for (int length: this.prefixLengths){
+				if (length>key.length()){
+					break;
+				}
+				listeners=this.prefixListeners.get(length==key.length()?key:key.substring(0, length));
+				if (listeners!=null){
+					for (PropertyChangeListener listener: listeners){
+						listener.propertyChanged(evt);
+					}
+				}
+			}
+		}
+		PropertiesBatchListener[] batchListeners=this.batchListeners;
+		if (batchListeners.length>0 && !delivered.isEmpty()){
+			PropertiesChangedBatch batch=new PropertiesChangedBatch(this, delivered);
+			for (PropertiesBatchListener listener: batchListeners){
+				listener.propertiesChanged(batch);
+			}
+		}
+	}
+
+	/**
+	 * Add a listener which receives changes as batches: one {@link PropertiesChangedBatch} per
+	 * delivery (a single change when notification is synchronous and no batchUpdate is running).
+	 * @param listener
+	 */
+	public void addBatchListener(PropertiesBatchListener listener){
+		assert listener!=null:"null batch listener";
+		synchronized (this.writeLock){
+			PropertiesBatchListener[] current=this.batchListeners;
+			for (PropertiesBatchListener l: current){
+				if (l.equals(listener)){
+					return;
+				}
+			}
+			PropertiesBatchListener[] listeners=new PropertiesBatchListener[current.length+1];
+			System.arraycopy(current, 0, listeners, 0, current.length);
+			listeners[current.length]=listener;
+			this.batchListeners=listeners;
+		}
+	}
+	public void removeBatchListener(PropertiesBatchListener listener){
+		synchronized (this.writeLock){
+			ArrayList<PropertiesBatchListener> listeners=new ArrayList<PropertiesBatchListener>(Arrays.asList(this.batchListeners));
+			if (listeners.remove(listener)){
+				this.batchListeners=listeners.toArray(new PropertiesBatchListener[listeners.size()]);
+			}
+		}
+	}
+	
+	private ResourceBundle configuration = null;
+	// configuration keys and their meta properties (_editable, _type...), built once.
+	private final KeyIndex keyIndex;
+	// converters of typed keys, compiled once from the key._type meta properties.
+	private final PropertiesSchema schema;
+	// Overlays: frames entered by each thread, and number of frames entered by all threads.
+	private final ThreadLocal<OverlayFrame> overlayFrames=new ThreadLocal<OverlayFrame>();
+	private final AtomicInteger activeOverlays=new AtomicInteger();
 	private String baseName=null; // for logging
 	private String prefFilePath;
-	private HashMap<String, String> prefs; //HashMap: null must not be a value. TODO: use java.util.Properties ?
-	private boolean preferencesChanged=false;
-	private char stringListSeparator=STRING_LIST_SEPARATOR;
-	// Global observer for the one who wants to keep track to changes on any property kketys.
-	private PropertyObservable globalObservable=null;
-	// key -> Observable, so one Observable keeps all observers for one key. 
-	private HashMap<String, PropertyObservable> keyToObservable=new HashMap<String, PropertyObservable>();
+	// Concurrent maps: lock free reads from any thread, writes are serialized by writeLock.
+	private Map<String, String> prefs; //null must not be a value. ConcurrentHashMap or CompactMap (thread safe too).
+	// key -> how (and from where) its value is obtained. See getString().
+	private ConcurrentHashMap<String, ResolutionPlan> resolutionPlans=new ConcurrentHashMap<String, ResolutionPlan>();
+	// Layers, highest precedence first. Copy on write, changed under writeLock.
+	private volatile PropertiesLayer[] layers;
+	private final PropertiesLayer systemLayer=new PropertiesLayer.SystemLayer(SYSTEM_LAYER);
+	// Serializes preferences changes (and observers registrations).
+	private final Object writeLock=new Object();
+	// Serializes saves (file writes are done without writeLock), always taken before writeLock.
+	private final Object saveLock=new Object();
+	// All resolved values, built by first snapshot() then maintained by refreshResolutionPlan (writeLock held).
+	// Persistent: snapshots hold the map of their time, changes build new maps sharing most nodes.
+	private PersistentMap resolvedValues=null;
+	// version and last changes of resolved values (see changesSince), recorded by notifyChange (writeLock held).
+	private final ChangeJournal journal=new ChangeJournal(ChangeJournal.DEFAULT_CAPACITY);
+	// preferences keys changed since last save (writeLock held), see savePreferences.
+	private final LinkedHashSet<String> dirtyKeys=new LinkedHashSet<String>();
+	// autosave (see setAutosave), autosaveFuture guarded by writeLock.
+	private volatile long autosaveDelay=0;
+	// preferences file watcher (see startWatchingPreferences), writeLock held.
+	private PreferencesWatcher watcher=null;
+	private ScheduledFuture<?> autosaveFuture=null;
+	// save statistics (writeLock held).
+	private long saveCount=0;
+	private long failedSaveCount=0;
+	private long saveNanos=0;
+	private long maxSaveNanos=0;
+	private long lastSaveNanos=0;
+	private long savedBytes=0;
+	private volatile boolean preferencesChanged=false;
+	private volatile char stringListSeparator=STRING_LIST_SEPARATOR;
+	private volatile boolean cssColorNames=false;
+	// optional keys already reported as missing (see reportMissingOptional).
+	private Set<String> reportedMissingKeys=Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// "log once per key" mode: keys for which a diagnostic has already been logged (see shouldLogKey).
+	private volatile boolean logOncePerKey=false;
+	private Set<String> reportedKeys=Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Listeners: copy on write arrays, so notification is lock free, changed under writeLock.
+	// key -> listeners of this key.
+	private final ConcurrentHashMap<String, PropertyChangeListener[]> keyListeners=new ConcurrentHashMap<String, PropertyChangeListener[]>();
+	// prefix -> listeners of this prefix, global observers are "" prefix listeners.
+	private final ConcurrentHashMap<String, PropertyChangeListener[]> prefixListeners=new ConcurrentHashMap<String, PropertyChangeListener[]>();
+	// distinct lengths of the keys of prefixListeners, ascending.
+	private volatile int[] prefixLengths=new int[0];
+	// reverse index: listener -> keys and prefixes it listens to (writeLock held).
+	private final HashMap<PropertyChangeListener, ListenerSubscriptions> listenerSubscriptions=new HashMap<PropertyChangeListener, ListenerSubscriptions>();
+	// bound objects (held weakly by their binding) once collected, see removeCollectedBindings.
+	private final ReferenceQueue<Object> collectedBindings=new ReferenceQueue<Object>();
+	private volatile PropertiesBatchListener[] batchListeners=new PropertiesBatchListener[0];
+	// Observables given to Observer.update() by the Observer adapters, they never notify by themselves.
+	// key -> Observable of the key observers (guarded by writeLock), Observable of global observers.
+	@SuppressWarnings("deprecation")
+	private final HashMap<String, Observable> keyObservables=new HashMap<String, Observable>();
+	@SuppressWarnings("deprecation")
+	private final Observable globalObservable=new Observable();
+	// Asynchronous/batched notification, all guarded by notificationLock (see notifyChange).
+	private final Object notificationLock=new Object();
+	private Executor notificationExecutor=null;
+	private LinkedHashMap<String, PropertyChangedEvent> pendingChanges=new LinkedHashMap<String, PropertyChangedEvent>();
+	// synchronous changes made by a thread with writeLock held, to deliver once it is released (see deliverHeldChanges).
+	// Per thread: each writer delivers its own changes, so changes of one thread are delivered in order.
+	private final ThreadLocal<ArrayList<PropertyChangedEvent>> heldChanges=new ThreadLocal<ArrayList<PropertyChangedEvent>>(){
+		@Override
+		protected ArrayList<PropertyChangedEvent> initialValue(){
+			return new ArrayList<PropertyChangedEvent>();
+		}
+	};
+	private int batchDepth=0;
+	private boolean flushScheduled=false;
 	// Map to keep instantiated Properties object...
-	private static HashMap<String, Properties> builtProperties=new HashMap<String, Properties>();
+	private static ConcurrentHashMap<String, Properties> builtProperties=new ConcurrentHashMap<String, Properties>();
 
 	public void setPreference(String key, Color c) {
 		this.setPreference(key, Integer.toString(c.getRed())+" "+Integer.toString(c.getGreen())+" "+
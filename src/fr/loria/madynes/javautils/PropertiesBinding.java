@@ -0,0 +1,360 @@
+package fr.loria.madynes.javautils;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Fields of a plain object bound to properties (see {@link Properties#bind(Class, String)}),
+ * or components of a record built again on changes (see {@link Properties#bindRecord(Class, String)}).
+ *
+ * Field accessors are MethodHandles built once per class (and shared, see {@link #of(Class)}),
+ * so neither binding nor updates use reflection. A binding listens to the keys of its fields
+ * and sets a field again each time its key changes. For a record, the canonical constructor
+ * is called again with all component values and the result replaces the one of its {@link RecordSupplier}.
+ *
+ * The bound object (or record supplier) is held weakly: once collected, its binding is removed
+ * from the listeners (see {@link Target}).
+ */
+final class PropertiesBinding implements Properties.PropertyChangeListener {
+	// Field types which can be bound (primitive types are looked up boxed).
+	private static final Set<Class<?>> SUPPORTED_TYPES=new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			String.class, Boolean.class, Integer.class, Long.class, Double.class, Level.class,
+			Color.class, Dimension.class, Point.class,
+			String[].class, List.class, int[].class, double[].class, Color[].class, Path[].class));
+
+	/** Access to one bound field, or record component. */
+	static final class Accessor {
+		final String name;
+		final Class<?> type; // boxed
+		final MethodHandle getter; // (Object)Object
+		final MethodHandle setter; // (Object, Object)void, null for a record component
+		private Accessor(String name, Class<?> type, MethodHandle getter, MethodHandle setter){
+			this.name=name;
+			this.type=type;
+			this.getter=getter;
+			this.setter=setter;
+		}
+	}
+
+	/** What is needed to bind instances of a class. */
+	static final class ClassBinding {
+		final boolean record;
+		final MethodHandle constructor; // ()Object, null if no constructor without parameters (always for a record)
+		// records: (Object[])Object canonical constructor, components in order. null if a component can not be bound.
+		final MethodHandle canonical;
+		final Accessor[] accessors; // fields, or record components
+		private ClassBinding(boolean record, MethodHandle constructor, MethodHandle canonical, Accessor[] accessors){
+			this.record=record;
+			this.constructor=constructor;
+			this.canonical=canonical;
+			this.accessors=accessors;
+		}
+	}
+
+	/** Latest record built from properties (see {@link Properties#bindRecord(Class, String)}). */
+	static final class RecordSupplier<T> implements Supplier<T> {
+		private volatile T value;
+		@Override
+		public T get(){
+			return this.value;
+		}
+	}
+
+	/** Weak reference to a bound object, enqueued once it is collected (see {@link Properties#bind(Class, String)}). */
+	static final class Target extends WeakReference<Object> {
+		final PropertiesBinding binding;
+		private Target(Object target, ReferenceQueue<Object> queue, PropertiesBinding binding){
+			super(target, queue);
+			this.binding=binding;
+		}
+	}
+
+	private static final ClassValue<ClassBinding> CLASS_BINDINGS=new ClassValue<ClassBinding>(){
+		@Override
+		protected ClassBinding computeValue(Class<?> type){
+			return analyze(type);
+		}
+	};
+
+	private final Properties properties;
+	private final Target target;
+	private final ClassBinding classBinding;
+	private final String[] keys; // in accessors order
+	private final HashMap<String, Accessor> accessors=new HashMap<String, Accessor>(); // by key
+	private final HashMap<String, Object> defaults=new HashMap<String, Object>(); // initial field values, by key
+
+	/**
+	 * @param target object to bind, its current field values are the defaults (missing or bad values).
+	 * @param prefix prefix of keys: field f is bound to key prefix+f
+	 * @param queue where target is enqueued once collected
+	 */
+	PropertiesBinding(Properties properties, Object target, String prefix, ReferenceQueue<Object> queue){
+		this(properties, of(target.getClass()), target, prefix, queue);
+	}
+	/**
+	 * @param type record class
+	 * @param supplier where records are put, component defaults (missing or bad values) are 0, false or null.
+	 * @param prefix prefix of keys: component c is bound to key prefix+c
+	 * @param queue where supplier is enqueued once collected
+	 */
+	PropertiesBinding(Properties properties, Class<?> type, RecordSupplier<?> supplier, String prefix, ReferenceQueue<Object> queue){
+		this(properties, of(type), supplier, prefix, queue);
+	}
+	private PropertiesBinding(Properties properties, ClassBinding classBinding, Object target, String prefix, ReferenceQueue<Object> queue){
+		this.properties=properties;
+		this.classBinding=classBinding;
+		this.target=new Target(target, queue, this);
+		this.keys=new String[classBinding.accessors.length];
+		for (int i=0; i<this.keys.length; i++){
+			Accessor accessor=classBinding.accessors[i];
+			this.keys[i]=prefix+accessor.name;
+			this.accessors.put(this.keys[i], accessor);
+			this.defaults.put(this.keys[i], classBinding.record?defaultOf(accessor.type):get(accessor, target));
+		}
+	}
+
+	/** @return the bound object (or record supplier), null once collected. */
+	Object target(){
+		return this.target.get();
+	}
+
+	/** @return the (shared) binding information of type. */
+	static ClassBinding of(Class<?> type){
+		return CLASS_BINDINGS.get(type);
+	}
+
+	private static ClassBinding analyze(Class<?> type){
+		if (isRecord(type)){
+			return analyzeRecord(type);
+		}
+		MethodHandles.Lookup lookup=MethodHandles.lookup();
+		MethodHandle constructor=null;
+		try{
+			Constructor<?> c=type.getDeclaredConstructor();
+			c.setAccessible(true);
+			constructor=lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+		}catch(NoSuchMethodException e){
+			// only existing instances could be bound.
+		}catch(IllegalAccessException e){
+			// idem.
+		}catch(RuntimeException e){ // not accessible (module)
+			// idem.
+		}
+		ArrayList<Accessor> accessors=new ArrayList<Accessor>();
+		HashSet<String> names=new HashSet<String>();
+		for (Class<?> c=type; c!=null && c!=Object.class; c=c.getSuperclass()){
+			for (Field field: c.getDeclaredFields()){
+				int modifiers=field.getModifiers();
+				Class<?> fieldType=boxed(field.getType());
+				if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)
+						|| field.isSynthetic() || !SUPPORTED_TYPES.contains(fieldType) || !names.add(field.getName())){
+					continue; // (a field hidden by a subclass one is not bound)
+				}
+				try{
+					field.setAccessible(true);
+					accessors.add(new Accessor(field.getName(), fieldType,
+							lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class)),
+							lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class))));
+				}catch(IllegalAccessException e){
+					// not bound.
+				}catch(RuntimeException e){ // not accessible (module)
+					// not bound.
+				}
+			}
+		}
+		return new ClassBinding(false, constructor, null, accessors.toArray(new Accessor[accessors.size()]));
+	}
+
+	// Record API (Java 16) through reflection: this code runs on older JVMs.
+	private static boolean isRecord(Class<?> type){
+		try{
+			return Boolean.TRUE.equals(Class.class.getMethod("isRecord").invoke(type));
+		}catch(NoSuchMethodException e){
+			return false; // before Java 16, no record.
+		}catch(Exception e){
+			return false;
+		}
+	}
+	private static ClassBinding analyzeRecord(Class<?> type){
+		MethodHandles.Lookup lookup=MethodHandles.lookup();
+		try{
+			Object[] components=(Object[])Class.class.getMethod("getRecordComponents").invoke(type);
+			Class<?>[] types=new Class<?>[components.length];
+			Accessor[] accessors=new Accessor[components.length];
+			boolean bindable=true;
+			for (int i=0; i<components.length; i++){
+				Class<?> componentClass=components[i].getClass();
+				String name=(String)componentClass.getMethod("getName").invoke(components[i]);
+				types[i]=(Class<?>)componentClass.getMethod("getType").invoke(components[i]);
+				Method getter=(Method)componentClass.getMethod("getAccessor").invoke(components[i]);
+				getter.setAccessible(true);
+				bindable&=SUPPORTED_TYPES.contains(boxed(types[i]));
+				accessors[i]=new Accessor(name, boxed(types[i]),
+						lookup.unreflect(getter).asType(MethodType.methodType(Object.class, Object.class)), null);
+			}
+			MethodHandle canonical=null;
+			if (bindable){
+				Constructor<?> c=type.getDeclaredConstructor(types);
+				c.setAccessible(true);
+				canonical=lookup.unreflectConstructor(c).asSpreader(Object[].class, types.length)
+						.asType(MethodType.methodType(Object.class, Object[].class));
+			}
+			return new ClassBinding(true, null, canonical, accessors);
+		}catch(Exception e){ // not accessible (module)...
+			return new ClassBinding(true, null, null, new Accessor[0]);
+		}
+	}
+	// value of a record component when its key is missing or bad.
+	private static Object defaultOf(Class<?> type){
+		if (type==Integer.class){
+			return Integer.valueOf(0);
+		}else if (type==Boolean.class){
+			return Boolean.FALSE;
+		}else if (type==Long.class){
+			return Long.valueOf(0);
+		}else if (type==Double.class){
+			return Double.valueOf(0);
+		}
+		return null;
+	}
+
+	private static Class<?> boxed(Class<?> type){
+		if (type==int.class){
+			return Integer.class;
+		}else if (type==boolean.class){
+			return Boolean.class;
+		}else if (type==long.class){
+			return Long.class;
+		}else if (type==double.class){
+			return Double.class;
+		}
+		return type;
+	}
+
+	/** @return a new instance of a class with a constructor without parameters (see ClassBinding). */
+	static Object newInstance(ClassBinding binding) throws Exception {
+		try{
+			return binding.constructor.invokeExact();
+		}catch(Exception e){
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable t){
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static Object get(Accessor accessor, Object target){
+		try{
+			return accessor.getter.invokeExact(target);
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable t){
+			throw new IllegalStateException(t);
+		}
+	}
+	private static void set(Accessor accessor, Object target, Object value){
+		try{
+			accessor.setter.invokeExact(target, value);
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable t){
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/** @return keys of bound fields. */
+	Set<String> keys(){
+		return Collections.unmodifiableSet(this.accessors.keySet());
+	}
+
+	/** Set all fields (build the record) from current property values. */
+	void updateAll(){
+		if (this.classBinding.record){
+			this.update(this.keys.length>0?this.keys[0]:null);
+			return;
+		}
+		for (String key: this.keys){
+			this.update(key);
+		}
+	}
+	/**
+	 * Set the field of key from its current value (its default if missing or bad), or build
+	 * the record again. Synchronized, and values are read here: the last update always sets the latest value.
+	 * @return false if the bound object has been collected
+	 * @throws RuntimeException thrown by the canonical constructor (the former record is kept)
+	 */
+	synchronized boolean update(String key){
+		Object target=this.target.get();
+		if (target==null){
+			return false;
+		}
+		if (this.classBinding.record){
+			Object[] values=new Object[this.keys.length];
+			for (int i=0; i<values.length; i++){
+				values[i]=this.value(this.keys[i]);
+			}
+			setRecord((RecordSupplier<?>)target, newRecord(this.classBinding, values));
+			return true;
+		}
+		Accessor accessor=this.accessors.get(key);
+		if (accessor!=null){
+			set(accessor, target, this.value(key));
+		}
+		return true;
+	}
+	private Object value(String key){
+		Object value=this.properties.getBoundValue(key, this.accessors.get(key).type);
+		return value==null?this.defaults.get(key):value; // never null for a primitive.
+	}
+	@SuppressWarnings("unchecked")
+	private static <T> void setRecord(RecordSupplier<T> supplier, Object record){
+		supplier.value=(T)record;
+	}
+	private static Object newRecord(ClassBinding binding, Object[] values){
+		try{
+			return binding.canonical.invokeExact(values);
+		}catch(RuntimeException e){ // a check of the canonical constructor.
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable t){
+			throw new IllegalStateException(t);
+		}
+	}
+
+	@Override
+	public void propertyChanged(Properties.PropertyChangedEvent evt){
+		try{
+			if (!this.update(evt.getKey())){
+				this.properties.removeCollectedBindings();
+			}
+		}catch(RuntimeException e){
+			this.properties.bindingFailed(this.target(), e);
+		}
+	}
+}
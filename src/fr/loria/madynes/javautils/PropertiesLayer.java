@@ -0,0 +1,142 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+/**
+ * One source of property values in the layer stack of a {@link Properties}
+ * (system properties, preferences, bundle, environment, command line, in memory values...).
+ *
+ * Layers are looked at in precedence order, the first one which has a value for a key wins.
+ * All implementations can be read from any thread.
+ */
+abstract class PropertiesLayer {
+	private final String name;
+
+	PropertiesLayer(String name){
+		this.name=name;
+	}
+	String getName(){
+		return this.name;
+	}
+	/** @return value of key in this layer or null. */
+	abstract String get(String key);
+	/** @return keys of this layer (may be a live view). */
+	abstract Set<String> keys();
+	/** @return true if values can be changed by {@link #put(String, String)} and {@link #remove(String)}. */
+	boolean isWritable(){
+		return false;
+	}
+	void put(String key, String value){
+		throw new UnsupportedOperationException(this.name+" layer is read only");
+	}
+	void remove(String key){
+		throw new UnsupportedOperationException(this.name+" layer is read only");
+	}
+
+	/**
+	 * Layer backed by a thread safe map (ConcurrentHashMap or CompactMap).
+	 */
+	static final class MapLayer extends PropertiesLayer {
+		private final Map<String, String> values;
+		private final boolean writable;
+
+		/**
+		 * @param values backing map, thread safe, used as is (not copied)
+		 * @param writable if the layer can be changed through Properties layer methods
+		 */
+		MapLayer(String name, Map<String, String> values, boolean writable){
+			super(name);
+			this.values=values;
+			this.writable=writable;
+		}
+		@Override
+		String get(String key){
+			return this.values.get(key);
+		}
+		@Override
+		Set<String> keys(){
+			return this.values.keySet();
+		}
+		@Override
+		boolean isWritable(){
+			return this.writable;
+		}
+		@Override
+		void put(String key, String value){
+			this.values.put(key, value);
+		}
+		@Override
+		void remove(String key){
+			this.values.remove(key);
+		}
+		/** Replace all values (writeLock held). */
+		void replaceAll(Map<String, String> newValues){
+			for (String key: new ArrayList<String>(this.values.keySet())){ // copied: keys are removed meanwhile.
+				if (!newValues.containsKey(key)){
+					this.values.remove(key);
+				}
+			}
+			this.values.putAll(newValues);
+		}
+		/** @return estimated heap used by values, in bytes. */
+		long footprint(){
+			if (this.values instanceof CompactMap){
+				return ((CompactMap)this.values).footprint();
+			}
+			if (this.values instanceof CachedMap){
+				return ((CachedMap)this.values).footprint();
+			}
+			return CompactMap.estimateFootprint(this.values);
+		}
+	}
+
+	/**
+	 * Layer on a (read only) resource bundle.
+	 */
+	static final class BundleLayer extends PropertiesLayer {
+		private final ResourceBundle bundle; // may be null
+
+		BundleLayer(String name, ResourceBundle bundle){
+			super(name);
+			this.bundle=bundle;
+		}
+		@Override
+		String get(String key){
+			if (this.bundle!=null && this.bundle.containsKey(key)){
+				return this.bundle.getString(key);
+			}
+			return null;
+		}
+		@Override
+		Set<String> keys(){
+			if (this.bundle==null){
+				return Collections.emptySet();
+			}
+			return this.bundle.keySet();
+		}
+	}
+
+	/**
+	 * Layer on System properties (-D options).
+	 *
+	 * Keys are not listed: System properties are only looked at for "._sysfirst" keys,
+	 * which are listed by the bundle.
+	 */
+	static final class SystemLayer extends PropertiesLayer {
+		SystemLayer(String name){
+			super(name);
+		}
+		@Override
+		String get(String key){
+			return System.getProperty(key);
+		}
+		@Override
+		Set<String> keys(){
+			return Collections.emptySet();
+		}
+	}
+}
@@ -25,9 +25,11 @@ import javax.swing.JCheckBox;
 import javax.swing.JColorChooser;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import fr.loria.madynes.javautils.Properties.PropertyChangedEvent;
 
 /** This class provided a basic graphical editor for editable properties (==preferences).
@@ -48,8 +50,8 @@ implements ItemListener, ActionListener {
 	// Icon path can be provided as a property in edited properties...
 	private static final String reloadIconPropertyKey="fr.loria.madynes.javautils.PropertiesPreferencesEditor";
 	private static final String defaultReloadIconName="images/reload-icon.png";
-	public static final String LABEL_KEY_SUFFIX="._label";
-	public static final String TIP_KEY_SUFFIX="._tip";
+	public static final String LABEL_KEY_SUFFIX=Properties.LABEL_KEY_SUFFIX;
+	public static final String TIP_KEY_SUFFIX=Properties.TIP_KEY_SUFFIX;
 
 	public static final String TEXT_EDITED_CMD = "t";
 	public static final String RESET_TO_DEFAULT_CMD = "r";
@@ -65,7 +67,16 @@ implements ItemListener, ActionListener {
 	private Map<String,PropertyView> keyToView=new HashMap<String,PropertyView>();
 	private Observer globalPropertiesObserver=new Observer(){
 		@Override
-		public void update(Observable o, Object arg) {
+		public void update(final Observable o, final Object arg) {
+			if (!SwingUtilities.isEventDispatchThread()){ // changed by another thread: views are Swing components.
+				SwingUtilities.invokeLater(new Runnable(){
+					@Override
+					public void run() {
+						update(o, arg);
+					}
+				});
+				return;
+			}
 			PropertyChangedEvent pe=(PropertyChangedEvent)arg;
 			PropertyView pv=keyToView.get(pe.getKey());
 			if (pv!=null){
@@ -228,8 +239,13 @@ implements ItemListener, ActionListener {
 	public void actionPerformed(ActionEvent e) {
 		if (TEXT_EDITED_CMD.equals(e.getActionCommand())){
 			JTextField tf=(JTextField)e.getSource();
-			// TODO: add a Properties.validate(key, value) and use it here !
-			this.editedProperties.setPreference(tf.getName(), tf.getText());
+			String error=this.editedProperties.validate(tf.getName(), tf.getText());
+			if (error!=null){
+				JOptionPane.showMessageDialog(tf, error, tf.getName(), JOptionPane.ERROR_MESSAGE); // TODO: externalize.
+				tf.setText(this.editedProperties.getString(tf.getName())); // back to current value.
+			}else{
+				this.editedProperties.setPreference(tf.getName(), tf.getText());
+			}
 		}else if(RESET_TO_DEFAULT_CMD.equals(e.getActionCommand())){
 			JButton b=(JButton)e.getSource(); 
 			this.editedProperties.removePreference(b.getName());
@@ -0,0 +1,290 @@
+package fr.loria.madynes.javautils;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import fr.loria.madynes.javautils.Properties.PropertyConverter;
+import fr.loria.madynes.javautils.Properties.PropertyConverterFactory;
+
+/**
+ * Typed schema of a {@link Properties}: one converter per typed key, compiled once from
+ * the key._type meta properties of the bundle.
+ *
+ * A type is a converter name, optionally followed by ':' and parameters:
+ * <pre>
+ * S                 string (no check)
+ * B                 boolean: true or false (any case), boolean getters read other values as false
+ *                   (Boolean.parseBoolean) but setPreference rejects them
+ * I  I:0..500  I:1..  integer, optional inclusive range (either bound may be omitted)
+ * LL                log level (see java.util.logging.Level.parse)
+ * C                 color: name or R G B A
+ * DIM  PT           width height, x y
+ * PATH              file path
+ * DUR               duration: 250ms 10s 5m 2h 1d, a number of milliseconds or ISO-8601 (PT10S)
+ * E:small,medium    one of the listed values
+ * </pre>
+ * Other converters can be registered by name (see {@link Properties#registerConverter(String, PropertyConverterFactory)}).
+ */
+final class PropertiesSchema {
+	static final char PARAMETERS_SEPARATOR=':';
+	private static final ConcurrentHashMap<String, PropertyConverterFactory> FACTORIES=new ConcurrentHashMap<String, PropertyConverterFactory>();
+
+	private final HashMap<String, PropertyConverter> converters=new HashMap<String, PropertyConverter>(); // by key
+
+	/**
+	 * Compile the converters of all typed keys.
+	 * @param errors where unknown types or bad parameters are added ("key: message")
+	 */
+	PropertiesSchema(Properties properties, Map<String, String> types, List<String> errors){
+		HashMap<String, PropertyConverter> compiled=new HashMap<String, PropertyConverter>(); // by type: shared
+		for (Map.Entry<String, String> e: types.entrySet()){
+			String type=e.getValue().trim();
+			PropertyConverter converter=compiled.get(type);
+			if (converter==null){
+				try{
+					converter=create(properties, type);
+				}catch(IllegalArgumentException iae){
+					errors.add(e.getKey()+": "+iae.getMessage());
+					continue;
+				}
+				compiled.put(type, converter);
+			}
+			this.converters.put(e.getKey(), converter);
+		}
+	}
+
+	private static PropertyConverter create(Properties properties, String type) throws IllegalArgumentException {
+		int sep=type.indexOf(PARAMETERS_SEPARATOR);
+		String name=sep<0?type:type.substring(0, sep);
+		PropertyConverterFactory factory=FACTORIES.get(name);
+		if (factory==null){
+			throw new IllegalArgumentException("unknown type "+type);
+		}
+		PropertyConverter converter=factory.create(properties, sep<0?null:type.substring(sep+1));
+		if (converter==null){
+			throw new IllegalArgumentException("no converter for type "+type);
+		}
+		return converter;
+	}
+
+	/** @return name of a type: type without its parameters. */
+	static String typeName(String type){
+		int sep=type.indexOf(PARAMETERS_SEPARATOR);
+		return sep<0?type:type.substring(0, sep);
+	}
+
+	static void register(String name, PropertyConverterFactory factory){
+		FACTORIES.put(name, factory);
+	}
+
+	/** @return converter of key or null if key has no (valid) type. */
+	PropertyConverter get(String key){
+		return this.converters.get(key);
+	}
+	/** @return typed keys. */
+	Set<String> keys(){
+		return Collections.unmodifiableSet(this.converters.keySet());
+	}
+
+	// Converter of a fixed type, without parameters.
+	private static abstract class SimpleConverter implements PropertyConverter, PropertyConverterFactory {
+		private final Class<?> valueType;
+		SimpleConverter(Class<?> valueType){
+			this.valueType=valueType;
+		}
+		@Override
+		public Class<?> getValueType(){
+			return this.valueType;
+		}
+		@Override
+		public PropertyConverter create(Properties properties, String parameters){
+			if (parameters!=null){
+				throw new IllegalArgumentException("no parameters expected: "+parameters);
+			}
+			return this;
+		}
+	}
+
+	static{
+		register(Properties.STRING_TYPE_STR, new SimpleConverter(String.class){
+			@Override
+			public Object convert(String value){
+				return value;
+			}
+		});
+		register(Properties.BOOLEAN_TYPE_STR, new SimpleConverter(Boolean.class){
+			@Override
+			public Object convert(String value){
+				if ("true".equalsIgnoreCase(value)){
+					return Boolean.TRUE;
+				}else if ("false".equalsIgnoreCase(value)){
+					return Boolean.FALSE;
+				}
+				throw new IllegalArgumentException("not a boolean (true or false): "+value);
+			}
+		});
+		register(Properties.LOG_LEVEL_TYPE_STR, new SimpleConverter(Level.class){
+			@Override
+			public Object convert(String value){
+				return Level.parse(value);
+			}
+		});
+		register(Properties.DIMENSION_TYPE_STR, new SimpleConverter(Dimension.class){
+			@Override
+			public Object convert(String value){
+				long wh=ValueScanner.parseIntPair(value);
+				return new Dimension(ValueScanner.first(wh), ValueScanner.second(wh));
+			}
+		});
+		register(Properties.POINT_TYPE_STR, new SimpleConverter(Point.class){
+			@Override
+			public Object convert(String value){
+				long xy=ValueScanner.parseIntPair(value);
+				return new Point(ValueScanner.first(xy), ValueScanner.second(xy));
+			}
+		});
+		register(Properties.PATH_TYPE_STR, new SimpleConverter(Path.class){
+			@Override
+			public Object convert(String value){
+				return Paths.get(value); // InvalidPathException is an IllegalArgumentException.
+			}
+		});
+		register(Properties.DURATION_TYPE_STR, new SimpleConverter(Duration.class){
+			@Override
+			public Object convert(String value){
+				return parseDuration(value);
+			}
+		});
+		register(Properties.COLOR_TYPE_STR, new PropertyConverterFactory(){
+			@Override
+			public PropertyConverter create(final Properties properties, String parameters){
+				if (parameters!=null){
+					throw new IllegalArgumentException("no parameters expected: "+parameters);
+				}
+				return new PropertyConverter(){ // depends on properties (CSS color names).
+					@Override
+					public Class<?> getValueType(){
+						return Color.class;
+					}
+					@Override
+					public Object convert(String value){
+						Color color=properties.getColorFromString(value);
+						if (color==null){
+							throw new IllegalArgumentException("not a color name nor R G B A: "+value);
+						}
+						return color;
+					}
+				};
+			}
+		});
+		register(Properties.INT_TYPE_STR, new PropertyConverterFactory(){
+			@Override
+			public PropertyConverter create(Properties properties, String parameters){
+				final int min;
+				final int max;
+				if (parameters==null){
+					min=Integer.MIN_VALUE;
+					max=Integer.MAX_VALUE;
+				}else{
+					int dots=parameters.indexOf("..");
+					if (dots<0){
+						throw new IllegalArgumentException("integer range expected (min..max): "+parameters);
+					}
+					String low=parameters.substring(0, dots).trim();
+					String high=parameters.substring(dots+2).trim();
+					min=low.length()==0?Integer.MIN_VALUE:Integer.parseInt(low);
+					max=high.length()==0?Integer.MAX_VALUE:Integer.parseInt(high);
+				}
+				return new PropertyConverter(){
+					@Override
+					public Class<?> getValueType(){
+						return Integer.class;
+					}
+					@Override
+					public Object convert(String value){
+						int i=Integer.parseInt(value);
+						if (i<min || i>max){
+							throw new IllegalArgumentException(value+" is not in ["+min+", "+max+"]");
+						}
+						return Integer.valueOf(i);
+					}
+				};
+			}
+		});
+		register(Properties.ENUM_TYPE_STR, new PropertyConverterFactory(){
+			@Override
+			public PropertyConverter create(Properties properties, String parameters){
+				if (parameters==null || parameters.length()==0){
+					throw new IllegalArgumentException("list of values expected (E:a,b,c)");
+				}
+				final String list=parameters;
+				final HashSet<String> values=new HashSet<String>(Arrays.asList(parameters.split(",")));
+				return new PropertyConverter(){
+					@Override
+					public Class<?> getValueType(){
+						return String.class;
+					}
+					@Override
+					public Object convert(String value){
+						if (!values.contains(value)){
+							throw new IllegalArgumentException(value+" is not one of "+list);
+						}
+						return value;
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Parse a duration: number and unit (ms, s, m, h, d), a number of milliseconds or ISO-8601.
+	 * @throws IllegalArgumentException if s is not a duration
+	 */
+	static Duration parseDuration(String s) throws IllegalArgumentException {
+		String d=s.trim();
+		if (d.length()>0 && (d.charAt(0)=='P' || d.charAt(0)=='p')){
+			try{
+				return Duration.parse(d);
+			}catch(DateTimeParseException e){
+				throw new IllegalArgumentException("not a duration: "+s);
+			}
+		}
+		int unit=d.length();
+		while (unit>0 && Character.isLetter(d.charAt(unit-1))){
+			unit--;
+		}
+		long amount;
+		try{
+			amount=Long.parseLong(d.substring(0, unit).trim());
+		}catch(NumberFormatException e){ // "" included, its message would be empty.
+			throw new IllegalArgumentException("not a duration (250ms, 10s, 5m, 2h, 1d or PT10S): \""+s+"\"");
+		}
+		String u=d.substring(unit);
+		if (u.length()==0 || u.equals("ms")){
+			return Duration.ofMillis(amount);
+		}else if (u.equals("s")){
+			return Duration.ofSeconds(amount);
+		}else if (u.equals("m")){
+			return Duration.ofMinutes(amount);
+		}else if (u.equals("h")){
+			return Duration.ofHours(amount);
+		}else if (u.equals("d")){
+			return Duration.ofDays(amount);
+		}
+		throw new IllegalArgumentException("unknown duration unit "+u+" (ms, s, m, h or d)");
+	}
+}
@@ -0,0 +1,192 @@
+package fr.loria.madynes.javautils;
+
+import java.awt.Color;
+
+/**
+ * Hand written (regex free) scanners for the values of typed properties.
+ *
+ * They accept exactly what the former regular expressions of {@link Properties} accepted:
+ * <ul>
+ * <li> color name: <code>\p{Alpha}+</code></li>
+ * <li> R G B A color: <code>U\p{Blank}+U\p{Blank}+U\p{Blank}+U\p{Space}*</code> with
+ * 	U=<code>0*(?:2[0-5]\p{Digit})|(?:1?\p{Digit}{1,2})</code></li>
+ * <li> width height or x y: <code>(\d+)\p{Blank}+(\d+)\p{Space}*</code></li>
+ * </ul>
+ * No Matcher nor substring is allocated.
+ */
+final class ValueScanner {
+	private ValueScanner(){
+	}
+
+	private static boolean isDigit(char c){
+		return c>='0' && c<='9';
+	}
+	// \p{Blank}
+	private static boolean isBlank(char c){
+		return c==' ' || c=='\t';
+	}
+	// \p{Space}
+	private static boolean isSpace(char c){
+		return c==' ' || c=='\t' || c=='\n' || c=='\u000B' || c=='\f' || c=='\r';
+	}
+	// \p{Alpha}
+	private static boolean isAlpha(char c){
+		return (c>='a' && c<='z') || (c>='A' && c<='Z');
+	}
+
+	/** @return true if s is a (possible) basic color name, i.e. only made of ASCII letters. */
+	static boolean isColorName(String s){
+		int len=s.length();
+		if (len==0){
+			return false;
+		}
+		for (int i=0; i<len; i++){
+			if (!isAlpha(s.charAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return index of first non digit char from start (len if none) */
+	private static int skipDigits(String s, int start, int len){
+		int i=start;
+		while (i<len && isDigit(s.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	/** @return index of first non blank char from start (len if none) */
+	private static int skipBlanks(String s, int start, int len){
+		int i=start;
+		while (i<len && isBlank(s.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	/** @return true if s[start, len[ is only made of \p{Space} */
+	private static boolean onlySpaces(String s, int start, int len){
+		for (int i=start; i<len; i++){
+			if (!isSpace(s.charAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Value of a color component digits run s[start, end[, or -1 if it does not match
+	 * <code>0*(?:2[0-5]\p{Digit})|(?:1?\p{Digit}{1,2})</code>.
+	 * Returned value may be out of [0-255] (up to 259) as with the regex.
+	 */
+	private static int colorComponent(String s, int start, int end){
+		int n=end-start;
+		if (n<=0){
+			return -1;
+		}
+		if (n<=2 || (n==3 && s.charAt(start)=='1')){
+			return digitsValue(s, start, end);
+		}
+		int i=start;
+		while (i<end && s.charAt(i)=='0'){
+			i++;
+		}
+		if (end-i==3 && s.charAt(i)=='2' && s.charAt(i+1)<='5'){
+			return digitsValue(s, i, end);
+		}
+		return -1;
+	}
+
+	/** Value of a short (at most 3) digits run. */
+	private static int digitsValue(String s, int start, int end){
+		int v=0;
+		for (int i=start; i<end; i++){
+			v=v*10+(s.charAt(i)-'0');
+		}
+		return v;
+	}
+
+	/**
+	 * Parse a "R G B A" string.
+	 *
+	 * @return the color or null if the string is not in R G B A format.
+	 * @throws IllegalArgumentException if a component is out of [0-255] (see Color constructor)
+	 */
+	static Color parseRGBA(String s) throws IllegalArgumentException {
+		int len=s.length();
+		int r=0, g=0, b=0, a=0;
+		int i=0;
+		for (int c=0; c<4; c++){
+			if (c>0){
+				int j=skipBlanks(s, i, len);
+				if (j==i){
+					return null;
+				}
+				i=j;
+			}
+			int end=skipDigits(s, i, len);
+			int v=colorComponent(s, i, end);
+			if (v<0){
+				return null;
+			}
+			switch (c){
+			case 0: r=v; break;
+			case 1: g=v; break;
+			case 2: b=v; break;
+			default: a=v; break;
+			}
+			i=end;
+		}
+		if (!onlySpaces(s, i, len)){
+			return null;
+		}
+		return new Color(r, g, b, a);
+	}
+
+	/**
+	 * Parse a "W H" (or "X Y") string as a couple of non negative integers.
+	 *
+	 * Allocation free: both values are packed in the returned long,
+	 * see {@link #first(long)} and {@link #second(long)}.
+	 * @throws IllegalArgumentException if the string is not in "int int" format
+	 * @throws NumberFormatException if a number does not fit in an int
+	 */
+	static long parseIntPair(String s) throws NumberFormatException, IllegalArgumentException {
+		int len=s.length();
+		int firstEnd=skipDigits(s, 0, len);
+		if (firstEnd==0){
+			throw new IllegalArgumentException();
+		}
+		int secondStart=skipBlanks(s, firstEnd, len);
+		if (secondStart==firstEnd){
+			throw new IllegalArgumentException();
+		}
+		int secondEnd=skipDigits(s, secondStart, len);
+		if (secondEnd==secondStart || !onlySpaces(s, secondEnd, len)){
+			throw new IllegalArgumentException();
+		}
+		int first=intValue(s, 0, firstEnd);
+		int second=intValue(s, secondStart, secondEnd);
+		return (((long)first)<<32)|(second&0xFFFFFFFFL);
+	}
+	static int first(long pair){
+		return (int)(pair>>>32);
+	}
+	static int second(long pair){
+		return (int)pair;
+	}
+
+	/** Value of a digits run, as Integer.parseInt would give it. */
+	private static int intValue(String s, int start, int end) throws NumberFormatException {
+		long v=0;
+		for (int i=start; i<end; i++){
+			v=v*10+(s.charAt(i)-'0');
+			if (v>Integer.MAX_VALUE){
+				throw new NumberFormatException("For input string: \""+s.substring(start, end)+"\"");
+			}
+		}
+		return (int)v;
+	}
+}
@@ -0,0 +1,136 @@
+package fr.loria.madynes.javautils;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties#bind(Class, String)} and {@link Properties#bindRecord(Class, String)}
+ * (records: needs Java 16 to compile).
+ * <ul>
+ * <li>fields: set from values, updated on changes, initial value while missing or bad.</li>
+ * <li>records: built again on changes, 0/false/null while missing or bad, former record kept when
+ * the canonical constructor rejects the values, bind refuses a record.</li>
+ * <li>weak: a bound object or record supplier dropped by the application is collected, and its
+ * binding is removed from the listeners.</li>
+ * </ul>
+ * Usage: BindingCheck, exit status 1 on the first failure.
+ */
+class BindingCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+
+	static class Settings {
+		volatile int size=3;
+		volatile String name="initial";
+		volatile boolean enabled=false;
+	}
+
+	record Box(int width, String label, boolean visible) {
+		Box {
+			if (width<0){
+				throw new IllegalArgumentException("negative width "+width);
+			}
+		}
+	}
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("BindingCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static int listeners(Properties p) throws Exception {
+		Field field=Properties.class.getDeclaredField("listenerSubscriptions");
+		field.setAccessible(true);
+		return ((Map<?, ?>)field.get(p)).size(); // no writer meanwhile.
+	}
+	// true once reference has been cleared.
+	private static boolean collected(WeakReference<?> reference){
+		for (int i=0; i<50 && reference.get()!=null; i++){
+			System.gc();
+			try{
+				Thread.sleep(10);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		return reference.get()==null;
+	}
+
+	private static void checkFields(Properties p){
+		Settings settings=p.bind(Settings.class, "s.");
+		check(settings!=null, "fields: not bound");
+		check(settings.size==10 && "bound".equals(settings.name) && !settings.enabled, "fields: initial values");
+		p.setLayerValue(LAYER, "s.size", "20");
+		p.setLayerValue(LAYER, "s.enabled", "true");
+		check(settings.size==20 && settings.enabled, "fields: not updated");
+		p.setLayerValue(LAYER, "s.size", "twenty");
+		check(settings.size==3, "fields: bad value, size is "+settings.size);
+		p.setLayerValue(LAYER, "s.name", null);
+		check("initial".equals(settings.name), "fields: missing value, name is "+settings.name);
+		check(p.unbind(settings) && !p.unbind(settings), "fields: unbind");
+		p.setLayerValue(LAYER, "s.size", "30");
+		check(settings.size==3, "fields: updated once unbound");
+	}
+
+	private static void checkRecords(Properties p){
+		check(p.bind(Box.class, "b.")==null, "records: bind accepted a record");
+		Supplier<Box> box=p.bindRecord(Box.class, "b.");
+		check(box!=null, "records: not bound");
+		check(box.get().equals(new Box(5, null, true)), "records: initial "+box.get());
+		p.setLayerValue(LAYER, "b.label", "hello");
+		check(box.get().equals(new Box(5, "hello", true)), "records: not updated "+box.get());
+		p.setLayerValue(LAYER, "b.width", "-1");
+		check(box.get().equals(new Box(5, "hello", true)), "records: rejected values not ignored "+box.get());
+		p.setLayerValue(LAYER, "b.width", "wide");
+		check(box.get().equals(new Box(0, "hello", true)), "records: bad value "+box.get());
+		p.setLayerValue(LAYER, "b.visible", null);
+		check(box.get().equals(new Box(0, "hello", false)), "records: missing value "+box.get());
+		check(p.unbind(box), "records: unbind");
+	}
+
+	private static WeakReference<Object> bindAndDrop(Properties p, boolean record){
+		if (record){
+			return new WeakReference<Object>(p.bindRecord(Box.class, "b."));
+		}
+		return new WeakReference<Object>(p.bind(Settings.class, "s."));
+	}
+	private static void checkWeak(Properties p) throws Exception {
+		int before=listeners(p);
+		for (boolean record: new boolean[]{false, true}){
+			WeakReference<Object> bound=bindAndDrop(p, record);
+			check(listeners(p)==before+1, "weak: binding not registered");
+			check(collected(bound), "weak: "+(record?"record supplier":"bound object")+" not collected");
+			p.setLayerValue(LAYER, record?"b.width":"s.size", "40"); // a change finds it collected.
+			check(listeners(p)==before, "weak: binding of a collected "+(record?"record supplier":"object")+" not removed");
+		}
+		// collected while no key changes: removed by the next binding.
+		WeakReference<Object> bound=bindAndDrop(p, false);
+		check(collected(bound), "weak: bound object not collected");
+		Settings kept=p.bind(Settings.class, "s.");
+		check(listeners(p)==before+1, "weak: binding of a collected object not removed by bind");
+		p.unbind(kept);
+	}
+
+	public static void main(String[] args) throws Exception {
+		LOGGER.setLevel(Level.OFF); // bundles are missing, rejected records are logged, it does not matter here.
+		Properties p=Properties.getProperties("bindingcheck");
+		HashMap<String, String> values=new HashMap<String, String>();
+		values.put("s.size", "10");
+		values.put("s.name", "bound");
+		values.put("b.width", "5");
+		values.put("b.visible", "true");
+		p.addLayer(LAYER, values);
+		checkFields(p);
+		checkRecords(p);
+		checkWeak(p);
+		System.out.println("BindingCheck: ok");
+		System.exit(0);
+	}
+}
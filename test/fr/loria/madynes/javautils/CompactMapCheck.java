@@ -0,0 +1,254 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link CompactMap} (see {@link Properties#setCompactStorage(boolean)}).
+ * <ul>
+ * <li>map: random put/remove/get and views (iterator remove included) against a HashMap, pool
+ * empty once all maps are cleared.</li>
+ * <li>views: keys never changed during an iteration, while other keys are put and removed by
+ * another thread, are returned exactly once.</li>
+ * <li>heap: measured heap of 5 configurations of 20k keys, as maps then as Properties (layer plus
+ * resolution plans of every key), must be cut by more than half with compact storage, and
+ * footprints must estimate it within 25%.</li>
+ * </ul>
+ * Usage: CompactMapCheck [keys [instances]], exit status 1 on the first failure.
+ */
+class CompactMapCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String[] SEGMENTS={"plugin", "editor", "view", "color", "font", "size", "enabled", "path", "recent", "", "a.b"};
+	private static final String[] VALUES={"true", "false", "10 20 30 255", "black", "/usr/local/share/app/plugins", "Dialog-PLAIN-12", "0", "1"};
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("CompactMapCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static boolean same(Object a, Object b){
+		return a==null?b==null:a.equals(b);
+	}
+
+	private static void checkMap(long seed){
+		Random random=new Random(seed);
+		List<CompactMap> maps=new ArrayList<CompactMap>();
+		for (int round=0; round<2000; round++){
+			CompactMap map=new CompactMap();
+			HashMap<String, String> oracle=new HashMap<String, String>();
+			for (int j=0; j<40; j++){
+				StringBuilder k=new StringBuilder();
+				int n=random.nextInt(4);
+				for (int q=0; q<=n; q++){
+					if (q>0){
+						k.append('.');
+					}
+					k.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+				}
+				String key=k.toString();
+				if (random.nextInt(3)==0){
+					check(same(map.remove(key), oracle.remove(key)), "map: remove "+key+" (seed "+seed+")");
+				}else{
+					String value=Integer.toString(random.nextInt(5));
+					check(same(map.put(key, value), oracle.put(key, value)), "map: put "+key+" (seed "+seed+")");
+				}
+				check(same(map.get(key), oracle.get(key)) && map.size()==oracle.size(), "map: get "+key+" (seed "+seed+")");
+			}
+			check(new HashMap<String, String>(map).equals(oracle) && map.keySet().equals(oracle.keySet())
+					&& map.entrySet().size()==oracle.size(), "map: views "+map.keySet()+" "+oracle.keySet()+" (seed "+seed+")");
+			for (Iterator<String> i=map.keySet().iterator(); i.hasNext();){
+				String key=i.next();
+				if (random.nextBoolean()){
+					i.remove();
+					oracle.remove(key);
+				}
+			}
+			check(new HashMap<String, String>(map).equals(oracle), "map: iterator remove (seed "+seed+")");
+			if (round%2==0){
+				map.clear();
+			}else{
+				maps.add(map);
+			}
+		}
+		for (CompactMap map: maps){
+			map.clear();
+		}
+		check(CompactMap.pooledStrings()==0, "map: "+CompactMap.pooledStrings()+" strings left in the pool");
+	}
+
+	private static void checkViews(long seed) throws Exception {
+		final CompactMap map=new CompactMap();
+		Set<String> stable=new HashSet<String>();
+		final List<String> moving=new ArrayList<String>();
+		for (int k=0; k<20000; k++){
+			String key="p"+(k%37)+".m"+(k%101)+".k"+k;
+			map.put(key, "v");
+			if (k%2==0){
+				stable.add(key);
+			}else{
+				moving.add(key);
+			}
+		}
+		final AtomicBoolean stop=new AtomicBoolean();
+		final Random random=new Random(seed);
+		Thread writer=new Thread(new Runnable(){
+			@Override
+			public void run(){
+				while (!stop.get()){
+					String key=moving.get(random.nextInt(moving.size()));
+					if (random.nextBoolean()){
+						map.remove(key);
+					}else{
+						map.put(key, "w");
+					}
+				}
+			}
+		});
+		writer.start();
+		try{
+			for (int pass=0; pass<20; pass++){
+				HashMap<String, Integer> seen=new HashMap<String, Integer>();
+				for (String key: map.keySet()){
+					Integer count=seen.get(key);
+					seen.put(key, count==null?1:count+1);
+				}
+				for (String key: stable){
+					check(Integer.valueOf(1).equals(seen.get(key)), "views: "+key+" seen "+seen.get(key)+" times (seed "+seed+")");
+				}
+				for (Map.Entry<String, Integer> e: seen.entrySet()){
+					check(e.getValue().intValue()==1, "views: "+e.getKey()+" seen "+e.getValue()+" times (seed "+seed+")");
+				}
+			}
+		}finally{
+			stop.set(true);
+			writer.join();
+		}
+		map.clear();
+	}
+
+	private static long used(){
+		Runtime runtime=Runtime.getRuntime();
+		long result=Long.MAX_VALUE;
+		for (int i=0; i<5; i++){
+			System.gc();
+			result=Math.min(result, runtime.totalMemory()-runtime.freeMemory());
+		}
+		return result;
+	}
+	private static String key(int instance, int k){
+		return "org.example.app.plugin"+instance+".module"+(k/200)+".component"+(k/20%10)+".property"+(k%20);
+	}
+	// as read from a file: each String is a distinct instance.
+	private static String value(int k){
+		return new String((k%7==0?"value number "+k:VALUES[k%VALUES.length]).toCharArray());
+	}
+
+	private static List<Map<String, String>> buildMaps(boolean compact, int instances, int keys){
+		List<Map<String, String>> result=new ArrayList<Map<String, String>>();
+		for (int i=0; i<instances; i++){
+			Map<String, String> map=compact?new CompactMap():new ConcurrentHashMap<String, String>();
+			for (int k=0; k<keys; k++){
+				map.put(new String(key(i, k).toCharArray()), value(k));
+			}
+			result.add(map);
+		}
+		return result;
+	}
+	private static long mapsFootprint(List<Map<String, String>> maps){
+		long result=0;
+		for (Map<String, String> map: maps){
+			result+=map instanceof CompactMap?((CompactMap)map).footprint():CompactMap.estimateFootprint(map);
+		}
+		return result;
+	}
+
+	// Properties with a layer of keys read (plans keyed by the application's key constants).
+	private static List<Properties> buildProperties(String name, boolean compact, int instances, int keys, String[][] keyConstants){
+		Properties.setCompactStorage(compact);
+		List<Properties> result=new ArrayList<Properties>();
+		for (int i=0; i<instances; i++){
+			Properties p=Properties.getProperties("compactmapcheck."+name+i); // no bundle: only the layer.
+			HashMap<String, String> values=new HashMap<String, String>();
+			for (int k=0; k<keys; k++){
+				values.put(new String(key(i, k).toCharArray()), value(k));
+			}
+			p.addLayer("generated", values);
+			values=null;
+			for (String key: keyConstants[i]){
+				check(p.getString(key)!=null, "heap: "+key+" missing");
+			}
+			result.add(p);
+		}
+		return result;
+	}
+
+	private static void checkCut(String what, long plain, long compact, long plainEstimate, long compactEstimate){
+		System.out.println("CompactMapCheck: "+what+": "+plain/1024+" KB plain, "+compact/1024+" KB compact ("
+				+(100-100*compact/plain)+"% less), estimated "+plainEstimate/1024+" KB and "+compactEstimate/1024+" KB");
+		check(compact*2<plain, what+": heap not cut by half");
+		check(Math.abs(plainEstimate-plain)*4<plain, what+": plain footprint estimate off by more than 25%");
+		check(Math.abs(compactEstimate-compact)*4<compact, what+": compact footprint estimate off by more than 25%");
+	}
+
+	private static void checkHeap(int instances, int keys){
+		long before=used();
+		List<Map<String, String>> maps=buildMaps(false, instances, keys);
+		long plain=used()-before;
+		long plainEstimate=mapsFootprint(maps);
+		maps=null;
+		before=used();
+		maps=buildMaps(true, instances, keys);
+		long compact=used()-before;
+		checkCut("maps", plain, compact, plainEstimate, mapsFootprint(maps));
+		for (Map<String, String> map: maps){
+			map.clear();
+		}
+		maps=null;
+
+		String[][] keyConstants=new String[instances][keys];
+		for (int i=0; i<instances; i++){
+			for (int k=0; k<keys; k++){
+				keyConstants[i][k]=key(i, k);
+			}
+		}
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		before=used();
+		List<Properties> properties=buildProperties("plain", false, instances, keys, keyConstants);
+		plain=used()-before;
+		plainEstimate=0;
+		for (Properties p: properties){
+			plainEstimate+=p.getStorageFootprint();
+		}
+		before=used();
+		properties=buildProperties("compact", true, instances, keys, keyConstants);
+		compact=used()-before;
+		long compactEstimate=0;
+		for (Properties p: properties){
+			compactEstimate+=p.getStorageFootprint();
+		}
+		checkCut("properties", plain, compact, plainEstimate, compactEstimate);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int keys=args.length>0?Integer.parseInt(args[0]):20000;
+		int instances=args.length>1?Integer.parseInt(args[1]):5;
+		long seed=System.nanoTime();
+		checkMap(seed);
+		checkViews(seed);
+		checkHeap(instances, keys);
+		System.out.println("CompactMapCheck: ok");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,215 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties#version()} and {@link Properties#changesSince(long)} against a model
+ * of the changes, with random writes, journal capacities and invalidations.
+ * <ul>
+ * <li>version: incremented once by each change of a resolved value, not by writes which leave it
+ * unchanged (same value, shadowed key), given to listeners and snapshots.</li>
+ * <li>changesSince: for each known version, the changes coalesced per key (first old value, last
+ * new value and version) ordered by version; null for future versions, versions older than the
+ * journal capacity, and versions before setJournalCapacity or invalidateResolutionPlans.</li>
+ * <li>catch up: a mirror built from a snapshot and the changes since its version holds the values
+ * of a snapshot taken now.</li>
+ * </ul>
+ * Usage: JournalCheck [writes], exit status 1 on the first failure.
+ */
+class JournalCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+	private static final String TOP="top"; // shadows key k0.
+	private static final int KEYS=8;
+
+	private static long seed;
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("JournalCheck: "+message+" (seed "+seed+")");
+			System.exit(1);
+		}
+	}
+	private static boolean same(String a, String b){
+		return a==null?b==null:a.equals(b);
+	}
+	private static String show(Properties.PropertyChangedEvent evt){
+		return show(evt.getKey(), evt.getOldVal(), evt.getNewVal(), evt.getVersion());
+	}
+	private static String show(String key, String oldVal, String newVal, long version){
+		return key+": "+oldVal+" -> "+newVal+" @"+version;
+	}
+
+	/** A change of a resolved value, as expected. */
+	private static final class Change {
+		final String key;
+		final String oldVal;
+		final String newVal;
+		final long version;
+		Change(String key, String oldVal, String newVal, long version){
+			this.key=key;
+			this.oldVal=oldVal;
+			this.newVal=newVal;
+			this.version=version;
+		}
+	}
+
+	/** Changes of resolved values seen by the check, and the versions whose changes are known. */
+	private static final class Model {
+		final HashMap<String, String> values=new HashMap<String, String>();
+		// change of version v at v-1, null for versions of resets.
+		final List<Change> changes=new ArrayList<Change>();
+		long oldestKnown=0; // changes since this version (and later ones) are known.
+		int capacity=1024;
+
+		long version(){
+			return this.changes.size();
+		}
+		void reset(int newCapacity){
+			this.changes.add(null);
+			this.oldestKnown=this.version();
+			this.capacity=newCapacity;
+		}
+		// null if changes since are not known.
+		List<Change> since(long since){
+			if (since>this.version() || since<this.oldestKnown || since<this.version()-this.capacity){
+				return null;
+			}
+			LinkedHashMap<String, Change> result=new LinkedHashMap<String, Change>();
+			for (long v=since+1; v<=this.version(); v++){
+				Change change=this.changes.get((int)(v-1));
+				Change previous=result.remove(change.key);
+				result.put(change.key, previous==null?change:new Change(change.key, previous.oldVal, change.newVal, change.version));
+			}
+			return new ArrayList<Change>(result.values());
+		}
+	}
+
+	private static void checkSince(Properties p, Model model, long since){
+		List<Change> expected=model.since(since);
+		List<Properties.PropertyChangedEvent> result=p.changesSince(since);
+		String where="changesSince("+since+") at "+model.version()+", capacity "+model.capacity;
+		if (expected==null){
+			check(result==null, where+": "+(result==null?0:result.size())+" changes instead of null");
+			return;
+		}
+		check(result!=null, where+": null instead of "+expected.size()+" changes");
+		check(result.size()==expected.size(), where+": "+result.size()+" changes instead of "+expected.size());
+		for (int i=0; i<result.size(); i++){
+			Properties.PropertyChangedEvent r=result.get(i);
+			Change e=expected.get(i);
+			check(r.getKey().equals(e.key) && same(r.getOldVal(), e.oldVal) && same(r.getNewVal(), e.newVal) && r.getVersion()==e.version,
+					where+": change "+i+" is "+show(r)+" instead of "+show(e.key, e.oldVal, e.newVal, e.version));
+		}
+	}
+
+	private static void catchUp(Properties p, Map<String, String> mirror, long since){
+		List<Properties.PropertyChangedEvent> changes=p.changesSince(since);
+		check(changes!=null, "catch up: changes since "+since+" not known");
+		long last=since;
+		for (Properties.PropertyChangedEvent evt: changes){
+			check(evt.getVersion()>last, "catch up: "+show(evt)+" not ordered by version");
+			last=evt.getVersion();
+			if (evt.getNewVal()==null){
+				mirror.remove(evt.getKey());
+			}else{
+				mirror.put(evt.getKey(), evt.getNewVal());
+			}
+		}
+		check(changes.isEmpty() || last==p.version(), "catch up: last change "+last+" is not the version "+p.version());
+	}
+
+	public static void main(String[] args) throws Exception {
+		int writes=args.length>0?Integer.parseInt(args[0]):20000;
+		seed=System.nanoTime();
+		Random random=new Random(seed);
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		final Properties p=Properties.getProperties("journalcheck");
+		final Model model=new Model();
+		// start from a known state: former changes are forgotten.
+		long start=p.version();
+		p.invalidateResolutionPlans();
+		check(p.version()==start+1 && p.changesSince(start)==null, "version: "+start+" not forgotten by invalidateResolutionPlans");
+		check(p.changesSince(start+1).isEmpty(), "changesSince: changes after invalidateResolutionPlans");
+		for (long v=0; v<=start; v++){
+			model.changes.add(null);
+		}
+		model.oldestKnown=model.version();
+		model.values.putAll(p.snapshot().asMap());
+		HashMap<String, String> top=new HashMap<String, String>();
+		top.put("k0", "top");
+		p.addLayer(LAYER, new HashMap<String, String>());
+		p.addLayer(TOP, top);
+		model.changes.add(new Change("k0", null, "top", model.version()+1));
+		model.values.put("k0", "top");
+		check(p.version()==model.version(), "version: "+p.version()+" after the top layer");
+
+		final long[] notified={-1};
+		p.addPrefixChangeListener("", new Properties.PropertyChangeListener(){
+			@Override
+			public void propertyChanged(Properties.PropertyChangedEvent evt){
+				notified[0]=evt.getVersion();
+				check(evt.getVersion()==p.version(), "version: listener given "+evt.getVersion()+" at version "+p.version());
+			}
+		});
+
+		Properties.Snapshot snapshot=p.snapshot();
+		HashMap<String, String> mirror=new HashMap<String, String>(snapshot.asMap());
+		long mirrorVersion=snapshot.getVersion();
+		for (int w=0; w<writes; w++){
+			int op=random.nextInt(100);
+			if (op<2){
+				int capacity=random.nextInt(4)==0?0:1+random.nextInt(random.nextBoolean()?4:64);
+				p.setJournalCapacity(capacity);
+				model.reset(capacity);
+				check(p.getJournalCapacity()==capacity, "capacity: "+p.getJournalCapacity()+" instead of "+capacity);
+			}else if (op<3){
+				p.invalidateResolutionPlans();
+				model.reset(model.capacity);
+			}else{
+				String key="k"+random.nextInt(KEYS);
+				String value=random.nextInt(5)==0?null:"v"+random.nextInt(4); // often the same value.
+				p.setLayerValue(LAYER, key, value);
+				String resolved=key.equals("k0")?"top":value; // k0 is shadowed by the top layer.
+				String old=model.values.get(key);
+				if (!same(old, resolved)){
+					model.changes.add(new Change(key, old, resolved, model.version()+1));
+					if (resolved==null){
+						model.values.remove(key);
+					}else{
+						model.values.put(key, resolved);
+					}
+					check(notified[0]==model.version(), "version: change of "+key+" notified at "+notified[0]+" instead of "+model.version());
+				}
+			}
+			check(p.version()==model.version(), "version: "+p.version()+" instead of "+model.version()+" after write "+w);
+			checkSince(p, model, model.version()-random.nextInt(Math.min(80, (int)model.version()+1)));
+			if (random.nextInt(20)==0){
+				checkSince(p, model, model.version()+1+random.nextInt(3)); // future versions.
+				checkSince(p, model, random.nextInt((int)model.version()+1));
+			}
+			if (random.nextInt(10)==0){
+				Properties.Snapshot now=p.snapshot();
+				check(now.getVersion()==p.version(), "snapshot: version "+now.getVersion()+" instead of "+p.version());
+				check(now.asMap().equals(model.values), "snapshot: "+now.asMap()+" instead of "+model.values);
+				if (model.since(mirrorVersion)!=null){
+					catchUp(p, mirror, mirrorVersion);
+					check(mirror.equals(now.asMap()), "catch up: mirror "+mirror+" instead of "+now.asMap()+" from version "+mirrorVersion);
+				}else{
+					check(p.changesSince(mirrorVersion)==null, "catch up: changes since "+mirrorVersion+" known");
+					mirror=new HashMap<String, String>(now.asMap());
+				}
+				mirrorVersion=now.getVersion();
+			}
+		}
+		System.out.println("JournalCheck: ok ("+writes+" writes, version "+p.version()+")");
+	}
+}
@@ -0,0 +1,208 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties} change listeners.
+ * <ul>
+ * <li>prefix listeners: random prefixes ("" , dotted or not, whole keys) and changes, a listener
+ * is called once per registered prefix the changed key starts with, before and after removals.</li>
+ * <li>observers: Observer.update() is given the Observable of the observed key, the same for every
+ * observer of a key, another one per key, and a global one for global observers.</li>
+ * <li>cost: prefix listeners of other prefixes must not slow a change down in proportion to their number.</li>
+ * </ul>
+ * Usage: ListenerCheck [prefix listeners], exit status 1 on the first failure.
+ */
+@SuppressWarnings("deprecation")
+class ListenerCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+	private static final String[] SEGMENTS={"a", "ab", "b", "editor", "edit", "x"};
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("ListenerCheck: "+message);
+			System.exit(1);
+		}
+	}
+
+	private static final class Counter implements Properties.PropertyChangeListener {
+		int calls=0;
+		@Override
+		public void propertyChanged(Properties.PropertyChangedEvent evt){
+			this.calls++;
+		}
+	}
+
+	private static String randomKey(Random random){
+		StringBuilder key=new StringBuilder();
+		int n=random.nextInt(3);
+		for (int q=0; q<=n; q++){
+			if (q>0){
+				key.append('.');
+			}
+			key.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+		}
+		return key.toString();
+	}
+	// a prefix of a random key, cut anywhere.
+	private static String randomPrefix(Random random){
+		String key=randomKey(random);
+		return key.substring(0, random.nextInt(key.length()+1));
+	}
+
+	private static void checkPrefixes(long seed){
+		Random random=new Random(seed);
+		Properties p=Properties.getProperties("listenercheck.prefixes");
+		p.addLayer(LAYER, new HashMap<String, String>());
+		List<Counter> counters=new ArrayList<Counter>();
+		// counter -> its prefixes, a counter may listen to several prefixes.
+		IdentityHashMap<Counter, List<String>> prefixes=new IdentityHashMap<Counter, List<String>>();
+		for (int i=0; i<200; i++){
+			Counter counter=i%4==0 && i>0?counters.get(random.nextInt(counters.size())):new Counter();
+			String prefix=randomPrefix(random);
+			List<String> own=prefixes.get(counter);
+			if (own==null){
+				own=new ArrayList<String>();
+				prefixes.put(counter, own);
+				counters.add(counter);
+			}
+			if (!own.contains(prefix)){
+				own.add(prefix);
+				p.addPrefixChangeListener(prefix, counter);
+			}
+		}
+		int value=0;
+		for (int round=0; round<4; round++){
+			IdentityHashMap<Counter, Integer> expected=new IdentityHashMap<Counter, Integer>();
+			for (Counter counter: counters){
+				expected.put(counter, Integer.valueOf(counter.calls));
+			}
+			for (int c=0; c<500; c++){
+				String key=randomKey(random);
+				p.setLayerValue(LAYER, key, Integer.toString(value++));
+				for (Counter counter: counters){
+					for (String prefix: prefixes.get(counter)){
+						if (key.startsWith(prefix)){
+							expected.put(counter, Integer.valueOf(expected.get(counter).intValue()+1));
+						}
+					}
+				}
+			}
+			for (Counter counter: counters){
+				check(counter.calls==expected.get(counter).intValue(), "prefixes: "+prefixes.get(counter)+" called "+counter.calls
+						+" times, "+expected.get(counter)+" expected (seed "+seed+")");
+			}
+			// remove a quarter of the registrations.
+			for (Counter counter: counters){
+				List<String> own=prefixes.get(counter);
+				if (!own.isEmpty() && random.nextInt(4)==0){
+					String prefix=own.remove(random.nextInt(own.size()));
+					check(p.removePrefixChangeListener(prefix, counter), "prefixes: "+prefix+" not removed (seed "+seed+")");
+					check(!p.removePrefixChangeListener(prefix, counter), "prefixes: "+prefix+" removed twice (seed "+seed+")");
+				}
+			}
+		}
+	}
+
+	private static final class Recorder implements Observer {
+		final List<Observable> sources=new ArrayList<Observable>();
+		@Override
+		public void update(Observable o, Object arg){
+			check(arg instanceof Properties.PropertyChangedEvent, "observers: argument "+arg);
+			this.sources.add(o);
+		}
+	}
+
+	private static void checkObservers(){
+		Properties p=Properties.getProperties("listenercheck.observers");
+		HashMap<String, String> values=new HashMap<String, String>();
+		values.put("k1", "0");
+		values.put("k2", "0");
+		p.addLayer(LAYER, values);
+		Recorder first=new Recorder();
+		Recorder second=new Recorder();
+		Recorder global=new Recorder();
+		p.addKeyObserver("k1", first);
+		p.addKeyObserver("k2", first);
+		p.addKeyObserver("k1", second);
+		p.addGlobalObserver(global);
+		p.setLayerValue(LAYER, "k1", "1");
+		p.setLayerValue(LAYER, "k2", "1");
+		check(first.sources.size()==2 && second.sources.size()==1 && global.sources.size()==2, "observers: "
+				+first.sources.size()+", "+second.sources.size()+" and "+global.sources.size()+" updates");
+		Observable k1=first.sources.get(0);
+		Observable k2=first.sources.get(1);
+		check(k1!=null && k2!=null && k1!=k2, "observers: keys must have their own Observable");
+		check(second.sources.get(0)==k1, "observers: observers of a key must get the same Observable");
+		check(global.sources.get(0)==global.sources.get(1) && global.sources.get(0)!=k1 && global.sources.get(0)!=k2,
+				"observers: global observers must get the global Observable");
+		p.removeObserver("k1", first);
+		p.removeObserverFromAllKeys(second);
+		p.removeGlobalObserver(global);
+		p.setLayerValue(LAYER, "k1", "2");
+		p.setLayerValue(LAYER, "k2", "2");
+		check(first.sources.size()==3 && first.sources.get(2)==k2 && second.sources.size()==1 && global.sources.size()==2,
+				"observers: removed observers updated");
+	}
+
+	// time of changes of keys "k.i" while the given prefix listeners listen to other keys.
+	private static long changesTime(Properties p, int changes){
+		long start=System.nanoTime();
+		for (int c=0; c<changes; c++){
+			p.setLayerValue(LAYER, "k."+(c%100), Integer.toString(c));
+		}
+		return System.nanoTime()-start;
+	}
+	private static void checkCost(int listeners){
+		Properties p=Properties.getProperties("listenercheck.cost");
+		p.addLayer(LAYER, new HashMap<String, String>());
+		Counter counter=new Counter();
+		p.addPrefixChangeListener("k.", counter);
+		int changes=20000;
+		long alone=Long.MAX_VALUE;
+		for (int run=0; run<5; run++){ // warm up, best of.
+			alone=Math.min(alone, changesTime(p, changes));
+		}
+		Map<String, Counter> others=new HashMap<String, Counter>();
+		for (int i=0; i<listeners; i++){
+			Counter other=new Counter();
+			String prefix="plugin"+i+(i%2==0?".":".editor.");
+			others.put(prefix, other);
+			p.addPrefixChangeListener(prefix, other);
+		}
+		long crowded=Long.MAX_VALUE;
+		for (int run=0; run<5; run++){
+			crowded=Math.min(crowded, changesTime(p, changes));
+		}
+		System.out.println("ListenerCheck: "+changes+" changes in "+alone/1000000+" ms with 1 prefix listener, "
+				+crowded/1000000+" ms with "+(listeners+1));
+		check(counter.calls==10*changes, "cost: "+counter.calls+" calls");
+		for (Counter other: others.values()){
+			check(other.calls==0, "cost: listener of another prefix called");
+		}
+		// a scan of every prefix listener would take about listeners times the look-up.
+		check(crowded<alone*4+50000000L, "cost: changes "+crowded/Math.max(alone, 1)+" times slower with "+listeners+" prefix listeners");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int listeners=args.length>0?Integer.parseInt(args[0]):20000;
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		long seed=System.nanoTime();
+		checkPrefixes(seed);
+		checkObservers();
+		checkCost(listeners);
+		System.out.println("ListenerCheck: ok");
+		System.exit(0);
+	}
+}
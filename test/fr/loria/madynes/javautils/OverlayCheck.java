@@ -0,0 +1,225 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties.Overlay}.
+ * <ul>
+ * <li>nesting: the innermost overlay wins, the outer one is back when the inner one exits (even
+ * on exceptions), nothing is left once all are exited.</li>
+ * <li>snapshots: a snapshot taken inside overlays holds their values, snapshots taken outside
+ * (before, after, or the first one being taken inside) do not.</li>
+ * <li>threads: threads inside other overlays, or inside none, at the same time, see their own values.</li>
+ * <li>wrap: a wrapped task runs inside the overlay in an executor thread, the next task does not.</li>
+ * <li>writers: a change made inside an overlay is seen outside, notified with shared values
+ * (not the overlay ones), and stays shadowed inside.</li>
+ * </ul>
+ * Usage: OverlayCheck [rounds], exit status 1 on the first failure.
+ */
+class OverlayCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("OverlayCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static Map<String, String> values(String... keysAndValues){
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (int i=0; i<keysAndValues.length; i+=2){
+			result.put(keysAndValues[i], keysAndValues[i+1]);
+		}
+		return result;
+	}
+	private static Properties create(String name){
+		Properties p=Properties.getProperties(name);
+		p.addLayer(LAYER, values("a", "1", "b", "2"));
+		return p;
+	}
+	private static void checkValues(Properties p, Map<String, String> expected, String where){
+		for (String key: new String[]{"a", "b", "c", "d"}){
+			String value=p.getOptionalProperty(key, null);
+			check(expected.get(key)==null?value==null:expected.get(key).equals(value), where+": "+key+"="+value+" instead of "+expected.get(key));
+		}
+		check(expected.equals(p.snapshot().asMap()), where+": snapshot "+p.snapshot().asMap()+" instead of "+expected);
+	}
+
+	private static void checkNesting(final Properties p){
+		final Properties.Overlay outer=p.createOverlay(values("a", "OV", "c", "outer"));
+		final Properties.Overlay inner=p.createOverlay(values("c", "inner", "d", "4"));
+		final Properties.Snapshot before=p.snapshot();
+		outer.run(new Runnable(){
+			@Override
+			public void run(){
+				checkValues(p, values("a", "OV", "b", "2", "c", "outer"), "nesting: outer");
+				inner.run(new Runnable(){
+					@Override
+					public void run(){
+						checkValues(p, values("a", "OV", "b", "2", "c", "inner", "d", "4"), "nesting: inner");
+						check(p.getOptionalIntProperty("d", -1)==4, "nesting: typed value");
+						check(Properties.OVERLAY_LAYER.equals(p.getValueLayer("c")), "nesting: layer of c "+p.getValueLayer("c"));
+						check(LAYER.equals(p.getValueLayer("b")), "nesting: layer of b "+p.getValueLayer("b"));
+					}
+				});
+				checkValues(p, values("a", "OV", "b", "2", "c", "outer"), "nesting: outer after inner");
+				try{
+					inner.run(new Runnable(){
+						@Override
+						public void run(){
+							throw new IllegalStateException("thrown inside");
+						}
+					});
+					check(false, "nesting: exception lost");
+				}catch(IllegalStateException e){
+					checkValues(p, values("a", "OV", "b", "2", "c", "outer"), "nesting: outer after an exception");
+				}
+			}
+		});
+		checkValues(p, values("a", "1", "b", "2"), "nesting: after");
+		check(values("a", "1", "b", "2").equals(before.asMap()), "snapshots: taken before changed "+before.asMap());
+	}
+
+	private static void checkFirstSnapshotInside() throws Exception {
+		final Properties p=create("overlaycheck.first"); // no resolved values yet.
+		Map<String, String> inside=p.createOverlay(values("a", "OV", "c", "3")).call(new Callable<Map<String, String>>(){
+			@Override
+			public Map<String, String> call(){
+				return p.snapshot().asMap();
+			}
+		});
+		check(values("a", "OV", "b", "2", "c", "3").equals(inside), "snapshots: first one inside "+inside);
+		checkValues(p, values("a", "1", "b", "2"), "snapshots: after the first one inside");
+	}
+
+	// each round: two threads in two overlays and one thread in none read at the same time.
+	private static void checkThreads(final Properties p, final int rounds, long seed) throws Exception {
+		final Random random=new Random(seed);
+		final CyclicBarrier barrier=new CyclicBarrier(3);
+		final AtomicReference<String> failure=new AtomicReference<String>();
+		List<Thread> threads=new ArrayList<Thread>();
+		for (int t=0; t<3; t++){
+			final String name="t"+t;
+			final boolean inOverlay=t<2;
+			final long threadSeed=random.nextLong();
+			Thread thread=new Thread(new Runnable(){
+				@Override
+				public void run(){
+					Random own=new Random(threadSeed);
+					try{
+						for (int round=0; round<rounds; round++){
+							final String value=name+"-"+own.nextInt(1000);
+							final Runnable read=new Runnable(){
+								@Override
+								public void run(){
+									try{
+										barrier.await(10, TimeUnit.SECONDS); // all threads inside (or not) now.
+										for (int i=0; i<20; i++){
+											String a=p.getOptionalProperty("a", null);
+											String expected=inOverlay?value:"1";
+											if (!expected.equals(a)){
+												failure.compareAndSet(null, name+" read a="+a+" instead of "+expected);
+											}
+											Thread.yield();
+										}
+										barrier.await(10, TimeUnit.SECONDS);
+									}catch(Exception e){
+										failure.compareAndSet(null, name+": "+e);
+									}
+								}
+							};
+							if (inOverlay){
+								p.createOverlay(values("a", value)).run(read);
+							}else{
+								read.run();
+							}
+						}
+					}catch(RuntimeException e){
+						failure.compareAndSet(null, name+": "+e);
+					}
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread: threads){
+			thread.join(60000);
+			check(!thread.isAlive(), "threads: "+thread.getName()+" blocked");
+		}
+		check(failure.get()==null, "threads: "+failure.get()+" (seed "+seed+")");
+		checkValues(p, values("a", "1", "b", "2"), "threads: after");
+	}
+
+	private static void checkWrap(final Properties p) throws Exception {
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		try{
+			final AtomicReference<String> seen=new AtomicReference<String>();
+			Runnable read=new Runnable(){
+				@Override
+				public void run(){
+					seen.set(p.getOptionalProperty("a", null));
+				}
+			};
+			Future<?> wrapped=executor.submit(p.createOverlay(values("a", "OV")).wrap(read));
+			wrapped.get(10, TimeUnit.SECONDS);
+			check("OV".equals(seen.get()), "wrap: a="+seen.get()+" in the wrapped task");
+			executor.submit(read).get(10, TimeUnit.SECONDS); // same thread.
+			check("1".equals(seen.get()), "wrap: a="+seen.get()+" in the next task");
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	private static void checkWriters(final Properties p){
+		final List<Properties.PropertyChangedEvent> events=new ArrayList<Properties.PropertyChangedEvent>();
+		Properties.PropertyChangeListener listener=new Properties.PropertyChangeListener(){
+			@Override
+			public void propertyChanged(Properties.PropertyChangedEvent evt){
+				events.add(evt);
+			}
+		};
+		p.addPropertyChangeListener("a", listener);
+		p.createOverlay(values("a", "OV")).run(new Runnable(){
+			@Override
+			public void run(){
+				p.setLayerValue(LAYER, "a", "5");
+				check("OV".equals(p.getOptionalProperty("a", null)), "writers: overlay value not kept inside");
+			}
+		});
+		check(events.size()==1, "writers: "+events.size()+" notifications");
+		Properties.PropertyChangedEvent event=events.get(0);
+		check("1".equals(event.getOldVal()) && "5".equals(event.getNewVal()), "writers: notified "+event.getOldVal()+" -> "+event.getNewVal());
+		checkValues(p, values("a", "5", "b", "2"), "writers: after");
+		p.removePropertyChangeListener("a", listener);
+		p.setLayerValue(LAYER, "a", "1");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rounds=args.length>0?Integer.parseInt(args[0]):200;
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		Properties p=create("overlaycheck");
+		checkNesting(p);
+		checkFirstSnapshotInside();
+		checkThreads(p, rounds, System.nanoTime());
+		checkWrap(p);
+		checkWriters(p);
+		System.out.println("OverlayCheck: ok");
+		System.exit(0);
+	}
+}
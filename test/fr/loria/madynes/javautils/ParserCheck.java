@@ -0,0 +1,110 @@
+package fr.loria.madynes.javautils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Differential check of {@link PreferencesParser} against java.util.Properties.load.
+ *
+ * Random inputs are made of .properties tokens: comments, separators, white spaces, line ends
+ * (\n, \r, \r\n), continuations, escapes (malformed \\uXXXX included) and non ASCII chars.
+ * <ul>
+ * <li>UTF-8: same entries as load(Reader) in UTF-8, no error; or at least one error (with its line)
+ * where load rejects a malformed \\uXXXX escape.</li>
+ * <li>ISO 8859-1: content which is not valid UTF-8 gives the same entries as load(InputStream).</li>
+ * </ul>
+ * Usage: ParserCheck [inputs], exit status 1 on the first failure.
+ */
+class ParserCheck {
+	private static final String[] TOKENS={
+		"a", "b", "key", "k.x", "v 1", " ", "  ", "\t", "\f", "=", ":", " = ", "#", "!", "# comment\n", "! c\n",
+		"\\", "\\\\", "\\ ", "\\=", "\\:", "\\#", "\\n", "\\t", "\\r", "\\f", "\\x", "\\u0041", "\\u00e9", "\\uD83D\\uDE00",
+		"\\u12", "\\uZZZZ", "\n", "\n", "\r", "\r\n", "\\\n", "\\\r\n", "\\\r", "\\\n   ", "\u00E9", "\u00FF", "\u20AC", "\uD83D\uDE00"
+	};
+	private static final int LATIN1_TOKENS=TOKENS.length-2; // last ones can not be written in ISO 8859-1
+
+	private static long seed;
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("ParserCheck: "+message+" (seed "+seed+")");
+			System.exit(1);
+		}
+	}
+	private static String show(String input){
+		StringBuilder s=new StringBuilder();
+		for (int i=0; i<input.length(); i++){
+			char c=input.charAt(i);
+			if (c<0x20 || c>0x7e){
+				s.append(String.format("\\u%04X", Integer.valueOf(c)));
+			}else{
+				s.append(c);
+			}
+		}
+		return s.toString();
+	}
+
+	private static Map<String, String> asMap(java.util.Properties properties){
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (String key: properties.stringPropertyNames()){
+			result.put(key, properties.getProperty(key));
+		}
+		return result;
+	}
+
+	private static void checkInput(String input, boolean utf8) throws IOException {
+		byte[] bytes=input.getBytes(utf8?StandardCharsets.UTF_8:StandardCharsets.ISO_8859_1);
+		java.util.Properties reference=new java.util.Properties();
+		boolean rejected=false;
+		try{
+			if (utf8){
+				reference.load(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+			}else{
+				reference.load(new ByteArrayInputStream(bytes)); // ISO 8859-1
+			}
+		}catch(IllegalArgumentException e){ // malformed \\uXXXX
+			rejected=true;
+		}
+		HashMap<String, String> parsed=new HashMap<String, String>();
+		List<String> errors=new ArrayList<String>();
+		int count=PreferencesParser.parse(ByteBuffer.wrap(bytes), parsed, errors);
+		if (rejected){
+			check(!errors.isEmpty() && errors.get(0).startsWith("line "), "no error for rejected input "+show(input));
+			return;
+		}
+		check(errors.isEmpty(), "errors "+errors+" for input "+show(input));
+		check(parsed.equals(asMap(reference)), (utf8?"UTF-8":"ISO 8859-1")+" input "+show(input)+": "+parsed+" instead of "+asMap(reference));
+		check(count>=parsed.size(), "count "+count+" for "+parsed.size()+" entries, input "+show(input));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int inputs=args.length>0?Integer.parseInt(args[0]):100000;
+		seed=System.nanoTime();
+		Random random=new Random(seed);
+		for (int i=0; i<inputs; i++){
+			boolean utf8=i%4!=0;
+			StringBuilder input=new StringBuilder();
+			int n=random.nextInt(40);
+			for (int t=0; t<n; t++){
+				input.append(TOKENS[random.nextInt(utf8?TOKENS.length:LATIN1_TOKENS)]);
+			}
+			if (!utf8 && input.indexOf("\u00E9")<0 && input.indexOf("\u00FF")<0){
+				input.append("\u00FF"); // not valid UTF-8: read as ISO 8859-1.
+			}
+			try{
+				checkInput(input.toString(), utf8);
+			}catch(RuntimeException e){
+				check(false, e+" for input "+show(input.toString()));
+			}
+		}
+		System.out.println("ParserCheck: ok ("+inputs+" inputs)");
+	}
+}
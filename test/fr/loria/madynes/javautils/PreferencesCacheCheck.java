@@ -0,0 +1,291 @@
+package fr.loria.madynes.javautils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of the binary preferences cache ({@link PreferencesCache}, {@link CachedMap}).
+ * <ul>
+ * <li>hit: a Properties built again looks its preferences up in the cache, same values as the text file.</li>
+ * <li>stale: a changed last modified time, length or (racily clean source) content is a miss.</li>
+ * <li>corrupted: bad string length (negative, huge), offset, index or size is rejected by open, and
+ * Properties falls back to the text file without any value of the cache.</li>
+ * <li>CachedMap: random changes against a HashMap.</li>
+ * </ul>
+ * Properties are built with the private constructor (not the registry): one per simulated start.
+ * The preferences file is given by the preferenceFile System property (cachecheck.properties).
+ * Usage: PreferencesCacheCheck [keys], exit status 1 on the first failure.
+ */
+class PreferencesCacheCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String BUNDLE="fr.loria.madynes.javautils.cachecheck";
+	// header positions, see PreferencesCache.
+	private static final int VERIFIED_TIME=32;
+	private static final int COUNT=40;
+	private static final int STRING_COUNT=44;
+	private static final int HEADER_SIZE=48;
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("PreferencesCacheCheck: "+message);
+			System.exit(1);
+		}
+	}
+
+	private static Properties build(File prefFile) throws Exception {
+		System.setProperty("preferenceFile", prefFile.getPath());
+		Constructor<Properties> constructor=Properties.class.getDeclaredConstructor(String.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(BUNDLE);
+	}
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> prefsOf(Properties p) throws Exception {
+		Field field=Properties.class.getDeclaredField("prefs");
+		field.setAccessible(true);
+		return (Map<String, String>)field.get(p);
+	}
+
+	private static Map<String, String> writeText(File prefFile, int keys) throws IOException {
+		HashMap<String, String> values=new HashMap<String, String>();
+		Writer out=new OutputStreamWriter(new FileOutputStream(prefFile), "UTF-8");
+		try{
+			for (int k=0; k<keys; k++){
+				String key="plugin"+(k/200)+".component"+(k/20%10)+".property"+(k%20);
+				String value=k%3==0?"value "+k:(k%3==1?"\u00E9t\u00E9 "+k:"10 20 30 255");
+				values.put(key, value);
+				out.write(key+"="+value+"\n");
+			}
+			values.put("with space", "a=b");
+			out.write("with\\ space=a=b\n");
+		}finally{
+			out.close();
+		}
+		return values;
+	}
+	private static Map<String, String> parse(File prefFile) throws IOException {
+		HashMap<String, String> result=new HashMap<String, String>();
+		FileChannel channel=FileChannel.open(prefFile.toPath(), StandardOpenOption.READ);
+		try{
+			PreferencesParser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), result, null);
+		}finally{
+			channel.close();
+		}
+		return result;
+	}
+	// an old enough file: the cache written by the next parse is not racily clean.
+	private static void makeOld(File f){
+		f.setLastModified((System.currentTimeMillis()-10000)/1000*1000);
+	}
+
+	private static void poke(File file, long position, int value) throws IOException {
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try{
+			ByteBuffer b=ByteBuffer.allocate(4).putInt(0, value);
+			channel.write(b, position);
+		}finally{
+			channel.close();
+		}
+	}
+	private static int peek(File file, long position) throws IOException {
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			ByteBuffer b=ByteBuffer.allocate(4);
+			channel.read(b, position);
+			return b.getInt(0);
+		}finally{
+			channel.close();
+		}
+	}
+	private static boolean rejected(File prefFile){
+		try{
+			PreferencesCache.open(prefFile);
+			return false;
+		}catch(IOException e){
+			return true;
+		}
+	}
+
+	private static void checkHit(File prefFile, Map<String, String> expected) throws Exception {
+		long start=System.nanoTime();
+		Properties parsed=build(prefFile);
+		long parseTime=System.nanoTime()-start;
+		check(PreferencesCache.cacheFileOf(prefFile).isFile(), "hit: cache not written by the parse");
+		check(!(prefsOf(parsed) instanceof CachedMap), "hit: first build did not parse");
+		start=System.nanoTime();
+		Properties cached=build(prefFile);
+		long cachedTime=System.nanoTime()-start;
+		Map<String, String> prefs=prefsOf(cached);
+		check(prefs instanceof CachedMap, "hit: preferences not looked up in the cache");
+		check(new HashMap<String, String>(prefs).equals(expected), "hit: cached preferences differ from the text file");
+		check(prefs.size()==expected.size(), "hit: size "+prefs.size()+", "+expected.size()+" expected");
+		for (Map.Entry<String, String> e: expected.entrySet()){
+			check(e.getValue().equals(cached.getString(e.getKey())), "hit: "+e.getKey()+" is "+cached.getString(e.getKey()));
+		}
+		check(cached.getOptionalProperty("missing.key", null)==null, "hit: missing key found");
+		System.out.println("PreferencesCacheCheck: "+expected.size()+" preferences, built in "+parseTime/1000000+" ms parsing, "
+				+cachedTime/1000000+" ms from the cache");
+	}
+
+	private static void checkStale(File prefFile) throws Exception {
+		check(PreferencesCache.open(prefFile)!=null, "stale: valid cache missed");
+		long lastModified=prefFile.lastModified();
+		prefFile.setLastModified(lastModified+5000);
+		check(PreferencesCache.open(prefFile)==null, "stale: last modified time not checked");
+		prefFile.setLastModified(lastModified);
+		Files.write(prefFile.toPath(), "extra=1\n".getBytes("UTF-8"), StandardOpenOption.APPEND);
+		prefFile.setLastModified(lastModified);
+		check(PreferencesCache.open(prefFile)==null, "stale: length not checked");
+
+		// racily clean: cache written within the last modified time granularity, then a same length edit.
+		File racy=new File(prefFile.getParentFile(), "racy.prefs");
+		Files.write(racy.toPath(), "a=1\nb=2\n".getBytes("UTF-8"));
+		long time=racy.lastModified();
+		HashMap<String, String> values=new HashMap<String, String>();
+		values.put("a", "1");
+		values.put("b", "2");
+		PreferencesCache.write(racy, time, racy.length(), PreferencesCache.contentHash(racy), time, values);
+		Files.write(racy.toPath(), "a=9\nb=2\n".getBytes("UTF-8"));
+		racy.setLastModified(time);
+		check(racy.lastModified()==time && PreferencesCache.open(racy)==null, "stale: same length edit of a racily clean file not detected");
+		// unchanged, and verified long after its last modification: the content is not hashed anymore.
+		Files.write(racy.toPath(), "a=1\nb=2\n".getBytes("UTF-8"));
+		time=(System.currentTimeMillis()-10000)/1000*1000;
+		racy.setLastModified(time);
+		PreferencesCache.write(racy, time, racy.length(), PreferencesCache.contentHash(racy), time, values);
+		check(PreferencesCache.open(racy)!=null, "stale: racily clean but unchanged file missed");
+		FileChannel channel=FileChannel.open(PreferencesCache.cacheFileOf(racy).toPath(), StandardOpenOption.READ);
+		try{
+			ByteBuffer b=ByteBuffer.allocate(8);
+			channel.read(b, VERIFIED_TIME);
+			check(b.getLong(0)-time>=PreferencesCache.RACY_WINDOW, "stale: verified time not updated");
+		}finally{
+			channel.close();
+		}
+	}
+
+	private static void checkCorrupted(File dir) throws Exception {
+		File prefFile=new File(dir, "corrupted.prefs");
+		Map<String, String> expected=writeText(prefFile, 100);
+		makeOld(prefFile);
+		HashMap<String, String> forged=new HashMap<String, String>(expected);
+		forged.put("cacheOnly", "1"); // would show up if the cache were (partly) used.
+		File cacheFile=PreferencesCache.cacheFileOf(prefFile);
+		String[] cases={"negative length", "huge length", "bad offset", "bad index", "truncated"};
+		for (String c: cases){
+			PreferencesCache.write(prefFile, prefFile.lastModified(), prefFile.length(), PreferencesCache.contentHash(prefFile),
+					System.currentTimeMillis(), forged);
+			check(PreferencesCache.open(prefFile)!=null, c+": forged cache not valid");
+			int count=peek(cacheFile, COUNT);
+			int stringCount=peek(cacheFile, STRING_COUNT);
+			long offsets=HEADER_SIZE+count*8L;
+			long last=peek(cacheFile, offsets+(stringCount-1)*4L);
+			if (c.equals("negative length")){
+				poke(cacheFile, last, -5);
+			}else if (c.equals("huge length")){
+				poke(cacheFile, last, Integer.MAX_VALUE);
+			}else if (c.equals("bad offset")){
+				poke(cacheFile, offsets+(stringCount/2)*4L, 999999);
+			}else if (c.equals("bad index")){
+				poke(cacheFile, HEADER_SIZE+(count-1)*8L+4, stringCount);
+			}else{
+				FileChannel channel=FileChannel.open(cacheFile.toPath(), StandardOpenOption.WRITE);
+				try{
+					channel.truncate(channel.size()-3);
+				}finally{
+					channel.close();
+				}
+			}
+			check(rejected(prefFile), c+": corrupted cache not rejected");
+			Properties p=build(prefFile);
+			Map<String, String> prefs=prefsOf(p);
+			check(!(prefs instanceof CachedMap), c+": corrupted cache used");
+			check(new HashMap<String, String>(prefs).equals(expected), c+": preferences differ from the text file");
+			check(p.getOptionalProperty("cacheOnly", null)==null, c+": value of the corrupted cache kept");
+		}
+	}
+
+	private static void checkCachedMap(File dir, long seed) throws Exception {
+		File prefFile=new File(dir, "map.prefs");
+		Map<String, String> values=writeText(prefFile, 500);
+		PreferencesCache.write(prefFile, prefFile.lastModified(), prefFile.length(), PreferencesCache.contentHash(prefFile),
+				prefFile.lastModified()+PreferencesCache.RACY_WINDOW, values);
+		CachedMap map=new CachedMap(PreferencesCache.open(prefFile), new HashMap<String, String>());
+		HashMap<String, String> oracle=new HashMap<String, String>(values);
+		List<String> keys=new ArrayList<String>(values.keySet());
+		Random random=new Random(seed);
+		for (int i=0; i<20000; i++){
+			String key=random.nextInt(4)==0?"new"+random.nextInt(50):keys.get(random.nextInt(keys.size()));
+			switch (random.nextInt(4)){
+			case 0:
+				check(same(map.remove(key), oracle.remove(key)), "map: remove "+key);
+				break;
+			case 1:
+				String value="v"+random.nextInt(10);
+				check(same(map.put(key, value), oracle.put(key, value)), "map: put "+key);
+				break;
+			case 2:
+				check(same(map.get(key), oracle.get(key)) && map.containsKey(key)==oracle.containsKey(key), "map: get "+key);
+				break;
+			default:
+				check(map.size()==oracle.size(), "map: size "+map.size()+", "+oracle.size()+" expected");
+				break;
+			}
+			if (i%5000==0){
+				check(new HashMap<String, String>(map).equals(oracle) && map.keySet().equals(oracle.keySet()), "map: entries differ (seed "+seed+")");
+			}
+		}
+		check(new HashMap<String, String>(map).equals(oracle), "map: entries differ (seed "+seed+")");
+		map.clear();
+		check(map.isEmpty() && map.get(keys.get(0))==null, "map: clear");
+	}
+	private static boolean same(Object a, Object b){
+		return a==null?b==null:a.equals(b);
+	}
+
+	private static void delete(File f){
+		File[] children=f.listFiles();
+		if (children!=null){
+			for (File child: children){
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int keys=args.length>0?Integer.parseInt(args[0]):20000;
+		LOGGER.setLevel(Level.OFF); // warnings of corrupted caches are expected.
+		Properties.setBinaryCacheEnabled(true);
+		File dir=Files.createTempDirectory("cachecheck").toFile();
+		try{
+			File prefFile=new File(dir, "big.prefs");
+			Map<String, String> expected=writeText(prefFile, keys);
+			check(parse(prefFile).equals(expected), "text file does not parse as written");
+			makeOld(prefFile);
+			checkHit(prefFile, expected);
+			checkStale(prefFile);
+			checkCorrupted(dir);
+			checkCachedMap(dir, System.nanoTime());
+		}finally{
+			delete(dir);
+		}
+		System.out.println("PreferencesCacheCheck: ok");
+	}
+}
@@ -0,0 +1,219 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress check of {@link Properties} thread safety (stresscheck.properties bundle).
+ * <ul>
+ * <li>registry: threads racing in getProperties(name) must all get the same instance.</li>
+ * <li>writers vs readers: each key k0..k7 is set to increasing values by one writer while readers
+ * look it up. A reader must never see a value older than one it has already seen (a stale
+ * resolution plan installed after a change), nor a typed (int) value which does not fit the
+ * string values read around it (torn plan), and the last value written must win (no lost update),
+ * for readers, listeners and the change journal.</li>
+ * <li>notification: a listener which waits for another thread setting a preference must not deadlock.</li>
+ * </ul>
+ * Usage: PropertiesStressCheck [seconds], exit status 1 on the first failure.
+ */
+class PropertiesStressCheck {
+	private static final String BUNDLE="fr.loria.madynes.javautils.stresscheck";
+	private static final int KEYS=8;
+	private static final int JOURNAL_CAPACITY=1<<16;
+	private static final AtomicReference<String> failure=new AtomicReference<String>();
+
+	private static void fail(String message){
+		failure.compareAndSet(null, message);
+	}
+
+	private static void checkRegistry(int rounds, int threads) throws Exception {
+		Logger.getLogger(Properties.class.getName()).setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		try{
+			for (int r=0; r<rounds && failure.get()==null; r++){
+				final String name="stresscheck.registry"+r;
+				final CyclicBarrier start=new CyclicBarrier(threads);
+				final AtomicReferenceArray<Properties> got=new AtomicReferenceArray<Properties>(threads);
+				Thread[] racers=new Thread[threads];
+				for (int t=0; t<threads; t++){
+					final int index=t;
+					racers[t]=new Thread(new Runnable(){
+						@Override
+						public void run(){
+							try{
+								start.await();
+								got.set(index, Properties.getProperties(name));
+							}catch(Exception e){
+								fail("registry: "+e);
+							}
+						}
+					});
+					racers[t].start();
+				}
+				for (Thread racer: racers){
+					racer.join();
+				}
+				for (int t=1; t<threads; t++){
+					if (got.get(t)!=got.get(0) || got.get(t)==null){
+						fail("registry: two instances built for "+name);
+					}
+				}
+			}
+		}finally{
+			Logger.getLogger(Properties.class.getName()).setLevel(null);
+		}
+	}
+
+	private static void checkWritersReaders(final Properties p, long millis, int readers) throws Exception {
+		final AtomicBoolean stop=new AtomicBoolean();
+		final long[] lastWritten=new long[KEYS];
+		final AtomicReferenceArray<String> lastNotified=new AtomicReferenceArray<String>(KEYS);
+		for (int k=0; k<KEYS; k++){
+			final int key=k;
+			p.addPropertyChangeListener("k"+k, new Properties.PropertyChangeListener(){
+				@Override
+				public void propertyChanged(Properties.PropertyChangedEvent evt){
+					lastNotified.set(key, evt.getNewVal()); // one writer per key, delivered in order.
+				}
+			});
+		}
+		p.setJournalCapacity(JOURNAL_CAPACITY);
+		List<Thread> threads=new ArrayList<Thread>();
+		for (int k=0; k<KEYS; k++){
+			final int key=k;
+			threads.add(new Thread(new Runnable(){
+				@Override
+				public void run(){
+					long v=0;
+					while (!stop.get()){
+						v++;
+						if (!p.setPreference("k"+key, Long.toString(v))){
+							fail("writer: k"+key+"="+v+" not set");
+							return;
+						}
+						if (v%64==0){
+							p.removePreference("k"+key); // back to 0, plans are rebuilt from the bundle.
+							p.setPreference("k"+key, Long.toString(v));
+						}
+					}
+					lastWritten[key]=v;
+				}
+			}, "writer k"+k));
+		}
+		for (int r=0; r<readers; r++){
+			threads.add(new Thread(new Runnable(){
+				@Override
+				public void run(){
+					long[] seen=new long[KEYS];
+					while (!stop.get() && failure.get()==null){
+						for (int k=0; k<KEYS; k++){
+							String key="k"+k;
+							long before=Long.parseLong(p.getString(key));
+							int typed=p.getIntProperty(key);
+							long after=Long.parseLong(p.getString(key));
+							// 0 is the bundle value, seen between removePreference and setPreference.
+							if (before!=0 && before<seen[k]){
+								fail("reader: "+key+" went back from "+seen[k]+" to "+before);
+							}
+							if (typed!=0 && (typed<before || typed>after) && after!=0){
+								fail("reader: "+key+" typed value "+typed+" is not between "+before+" and "+after);
+							}
+							if (after!=0){
+								seen[k]=Math.max(seen[k], after);
+							}
+						}
+					}
+				}
+			}, "reader "+r));
+		}
+		for (Thread t: threads){
+			t.start();
+		}
+		Thread.sleep(millis);
+		stop.set(true);
+		for (Thread t: threads){
+			t.join();
+		}
+		// the last changes are kept: the last one of each key in there must be its last write.
+		long since=p.version()-JOURNAL_CAPACITY;
+		List<Properties.PropertyChangedEvent> changes=p.changesSince(since);
+		if (changes==null){
+			fail("journal: last changes since "+since+" lost");
+			return;
+		}
+		String[] journaled=new String[KEYS];
+		for (Properties.PropertyChangedEvent evt: changes){
+			journaled[Integer.parseInt(evt.getKey().substring(1))]=evt.getNewVal();
+		}
+		long total=0;
+		for (int k=0; k<KEYS; k++){
+			String expected=Long.toString(lastWritten[k]);
+			total+=lastWritten[k];
+			if (!expected.equals(p.getString("k"+k)) || p.getIntProperty("k"+k)!=lastWritten[k]){
+				fail("lost update: k"+k+" is "+p.getString("k"+k)+"/"+p.getIntProperty("k"+k)+", "+expected+" written last");
+			}else if (!expected.equals(lastNotified.get(k))){
+				fail("lost notification: k"+k+" last notified "+lastNotified.get(k)+", "+expected+" written last");
+			}else if (journaled[k]!=null && !expected.equals(journaled[k])){
+				fail("journal: k"+k+" last change "+journaled[k]+", "+expected+" written last");
+			}
+		}
+		System.out.println("PropertiesStressCheck: "+total+" writes, "+readers+" readers");
+	}
+
+	private static void checkNotificationDeadlock(final Properties p) throws Exception {
+		p.addPropertyChangeListener("a", new Properties.PropertyChangeListener(){
+			@Override
+			public void propertyChanged(Properties.PropertyChangedEvent evt){
+				// as SwingUtilities.invokeAndWait while the EDT sets a preference.
+				Thread other=new Thread(new Runnable(){
+					@Override
+					public void run(){
+						p.setPreference("b", evt.getNewVal());
+					}
+				});
+				other.start();
+				try{
+					other.join();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		Thread writer=new Thread(new Runnable(){
+			@Override
+			public void run(){
+				p.setPreference("a", "1");
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+		writer.join(10000);
+		if (writer.isAlive()){
+			fail("notification: deadlock of a listener waiting for a writer");
+		}else if (!"1".equals(p.getString("b"))){
+			fail("notification: b not set by the listener");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long seconds=args.length>0?Long.parseLong(args[0]):5;
+		Properties p=Properties.getProperties(BUNDLE);
+		checkRegistry(200, 16);
+		if (failure.get()==null){
+			checkWritersReaders(p, seconds*1000, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		}
+		if (failure.get()==null){
+			checkNotificationDeadlock(p);
+		}
+		if (failure.get()!=null){
+			System.err.println("PropertiesStressCheck: "+failure.get());
+			System.exit(1);
+		}
+		System.exit(0); // background (autosave, reload) threads.
+	}
+}
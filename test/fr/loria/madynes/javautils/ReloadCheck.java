@@ -0,0 +1,171 @@
+package fr.loria.madynes.javautils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Check of {@link Properties#startWatchingPreferences(long)} (headless: the event dispatch thread
+ * runs without a display).
+ * <ul>
+ * <li>reload: a rewritten preferences file notifies its changed keys only (changed, added,
+ * removed), with old and new values, on the event dispatch thread.</li>
+ * <li>partial: a file still being written (malformed escape at its end) is not applied, the
+ * complete file is.</li>
+ * <li>unsaved: a preference changed here and not saved yet is kept.</li>
+ * <li>stop: once stopped, a rewritten file is not read anymore.</li>
+ * </ul>
+ * Properties are built with the private constructor (not the registry), the preferences file is
+ * given by the preferenceFile System property (reloadcheck.properties).
+ * Usage: ReloadCheck, exit status 1 on the first failure.
+ */
+class ReloadCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String BUNDLE="fr.loria.madynes.javautils.reloadcheck";
+	private static final long DEBOUNCE=100;
+	private static final long TIMEOUT=10000;
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("ReloadCheck: "+message);
+			System.exit(1);
+		}
+	}
+
+	/** Changes notified so far, as "key: old -> new", and whether all were on the EDT. */
+	private static final class Recorder implements Properties.PropertyChangeListener {
+		private final List<String> changes=new ArrayList<String>();
+		private String otherThread=null;
+
+		@Override
+		public synchronized void propertyChanged(Properties.PropertyChangedEvent evt){
+			this.changes.add(evt.getKey()+": "+evt.getOldVal()+" -> "+evt.getNewVal());
+			if (!SwingUtilities.isEventDispatchThread() && this.otherThread==null){
+				this.otherThread=Thread.currentThread().getName();
+			}
+		}
+		synchronized List<String> take(){
+			List<String> result=new ArrayList<String>(this.changes);
+			this.changes.clear();
+			return result;
+		}
+		synchronized String otherThread(){
+			return this.otherThread;
+		}
+	}
+
+	private static Properties build(File prefFile) throws Exception {
+		System.setProperty("preferenceFile", prefFile.getPath());
+		Constructor<Properties> constructor=Properties.class.getDeclaredConstructor(String.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(BUNDLE);
+	}
+	// atomic, as an editor saving the file.
+	private static void write(File prefFile, String content) throws IOException {
+		File tmp=new File(prefFile.getParentFile(), "writing.tmp");
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), prefFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	// in place, as a slow writer.
+	private static void writeInPlace(File prefFile, String content) throws IOException {
+		Files.write(prefFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+	// wait until key has value (null: missing), then for the notifications queued on the EDT.
+	private static void await(Properties p, String key, String value, String where) throws Exception {
+		long end=System.currentTimeMillis()+TIMEOUT;
+		while (!(value==null?p.getOptionalProperty(key, null)==null:value.equals(p.getOptionalProperty(key, null)))){
+			check(System.currentTimeMillis()<end, where+": "+key+"="+p.getOptionalProperty(key, null)+" instead of "+value+" after "+TIMEOUT+"ms");
+			Thread.sleep(10);
+		}
+		flush();
+	}
+	// notifications queued on the EDT so far are delivered.
+	private static void flush() throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable(){
+			@Override
+			public void run(){
+				// nothing.
+			}
+		});
+	}
+	// nothing happens for a while (several debounce delays).
+	private static void quiet() throws Exception {
+		Thread.sleep(DEBOUNCE*8);
+		flush();
+	}
+	private static void checkChanges(Recorder recorder, String where, String... expected){
+		List<String> changes=recorder.take();
+		List<String> sortedChanges=new ArrayList<String>(changes);
+		Collections.sort(sortedChanges);
+		List<String> sortedExpected=new ArrayList<String>(Arrays.asList(expected));
+		Collections.sort(sortedExpected);
+		check(sortedChanges.equals(sortedExpected), where+": notified "+changes+" instead of "+sortedExpected);
+		check(recorder.otherThread()==null, where+": notified on "+recorder.otherThread()+", not the event dispatch thread");
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		LOGGER.setLevel(Level.OFF); // reloads and unreadable files are logged, it does not matter here.
+		File dir=Files.createTempDirectory("reloadcheck").toFile();
+		File prefFile=new File(dir, "reload.prefs");
+		try{
+			write(prefFile, "a=1\nb=2\nc=3\n");
+			Properties p=build(prefFile);
+			check("2".equals(p.getOptionalProperty("b", null)), "initial: b="+p.getOptionalProperty("b", null));
+			Recorder recorder=new Recorder();
+			p.addPrefixChangeListener("", recorder);
+			check(p.startWatchingPreferences(DEBOUNCE), "not watching "+prefFile);
+
+			write(prefFile, "a=1\nb=20\nd=4\n");
+			await(p, "d", "4", "reload");
+			await(p, "c", null, "reload");
+			checkChanges(recorder, "reload", "b: 2 -> 20", "c: 3 -> null", "d: null -> 4");
+
+			writeInPlace(prefFile, "a=1\nb=20\nd=4\ne=5\nf=\\u12");
+			quiet();
+			check(p.getOptionalProperty("e", null)==null, "partial: e read from a file being written");
+			checkChanges(recorder, "partial");
+			writeInPlace(prefFile, "a=1\nb=20\nd=4\ne=5\nf=\\u00e9\n");
+			await(p, "f", "\u00E9", "partial");
+			checkChanges(recorder, "partial", "e: null -> 5", "f: null -> \u00E9");
+
+			final Properties edtProperties=p;
+			SwingUtilities.invokeAndWait(new Runnable(){ // as the preferences editor: notified on the EDT.
+				@Override
+				public void run(){
+					check(edtProperties.setPreference("a", "local"), "unsaved: a not set");
+				}
+			});
+			checkChanges(recorder, "unsaved", "a: 1 -> local");
+			write(prefFile, "a=99\nb=21\nd=4\ne=5\nf=\\u00e9\n");
+			await(p, "b", "21", "unsaved");
+			check("local".equals(p.getOptionalProperty("a", null)), "unsaved: a="+p.getOptionalProperty("a", null));
+			checkChanges(recorder, "unsaved", "b: 20 -> 21");
+
+			p.stopWatchingPreferences();
+			write(prefFile, "a=1\nb=30\n");
+			quiet();
+			check("21".equals(p.getOptionalProperty("b", null)), "stop: b="+p.getOptionalProperty("b", null));
+			checkChanges(recorder, "stop");
+		}finally{
+			for (File f: dir.listFiles()){
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("ReloadCheck: ok");
+		System.exit(0);
+	}
+}
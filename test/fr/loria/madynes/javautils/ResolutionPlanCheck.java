@@ -0,0 +1,57 @@
+package fr.loria.madynes.javautils;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties} resolution plans cache.
+ * <ul>
+ * <li>probes: looking up many missing keys does not grow the cache.</li>
+ * <li>changes: a probed key, then set, then removed, is seen present then missing.</li>
+ * </ul>
+ * Usage: ResolutionPlanCheck [probes], exit status 1 on the first failure.
+ */
+class ResolutionPlanCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("ResolutionPlanCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static int plans(Properties p) throws Exception {
+		Field field=Properties.class.getDeclaredField("resolutionPlans");
+		field.setAccessible(true);
+		return ((Map<?, ?>)field.get(p)).size();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int probes=args.length>0?Integer.parseInt(args[0]):100000;
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		Properties p=Properties.getProperties("resolutionplancheck");
+		HashMap<String, String> values=new HashMap<String, String>();
+		values.put("present", "1");
+		p.addLayer(LAYER, values);
+		check("1".equals(p.getOptionalProperty("present", null)), "probes: present key");
+		int before=plans(p);
+		for (int i=0; i<probes; i++){
+			check(p.getOptionalProperty("probe"+i, null)==null, "probes: probe"+i+" found");
+			check(p.getOptionalIntProperty("probe"+i, -1)==-1, "probes: probe"+i+" found as int");
+		}
+		check(plans(p)==before, "probes: "+(plans(p)-before)+" plans kept for missing keys");
+
+		p.setLayerValue(LAYER, "probe1", "2");
+		check(p.getOptionalIntProperty("probe1", -1)==2, "changes: probe1 not set");
+		p.setLayerValue(LAYER, "probe1", null);
+		check(p.getOptionalProperty("probe1", null)==null, "changes: probe1 not removed");
+		p.setLayerValue(LAYER, "probe1", "3");
+		check(p.getOptionalIntProperty("probe1", -1)==3, "changes: probe1 not set again");
+		System.out.println("ResolutionPlanCheck: ok");
+	}
+}
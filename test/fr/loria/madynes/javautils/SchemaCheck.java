@@ -0,0 +1,132 @@
+package fr.loria.madynes.javautils;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of typed keys ({@link PropertiesSchema}, schemacheck.properties bundle).
+ * <ul>
+ * <li>converters: integer ranges, enumerations, durations (messages of bad ones) and booleans.</li>
+ * <li>setPreference: a value rejected by the type of its key is not set.</li>
+ * <li>build: a converter which gets Properties (its own one included) while typed values are
+ * converted at build time must neither deadlock nor fail.</li>
+ * </ul>
+ * Usage: SchemaCheck, exit status 1 on the first failure.
+ */
+class SchemaCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String BUNDLE="fr.loria.madynes.javautils.schemacheck";
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("SchemaCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static void checkValid(Properties p, String key, String value){
+		String error=p.validate(key, value);
+		check(error==null, "converters: "+key+"="+value+" rejected: "+error);
+	}
+	private static void checkInvalid(Properties p, String key, String value){
+		String error=p.validate(key, value);
+		check(error!=null && error.length()>0, "converters: "+key+"="+value+" accepted or without message");
+	}
+
+	private static void checkDuration(String value, Duration expected){
+		check(expected.equals(PropertiesSchema.parseDuration(value)), "converters: duration "+value);
+	}
+
+	// built in a thread: a deadlock is a timeout, not a hung check.
+	private static Properties build(final AtomicInteger converted) throws Exception {
+		Properties.registerConverter("SELF", new Properties.PropertyConverterFactory(){
+			@Override
+			public Properties.PropertyConverter create(Properties properties, String parameters){
+				return new Properties.PropertyConverter(){
+					@Override
+					public Class<?> getValueType(){
+						return String.class;
+					}
+					@Override
+					public Object convert(String value){
+						check(Properties.getProperties(BUNDLE)!=null, "build: own Properties");
+						check(Properties.getProperties("schemacheck.other")!=null, "build: other Properties");
+						converted.incrementAndGet();
+						return value;
+					}
+				};
+			}
+		});
+		final AtomicReference<Object> result=new AtomicReference<Object>();
+		Thread builder=new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					result.set(Properties.getProperties(BUNDLE));
+				}catch(RuntimeException e){
+					result.set(e);
+				}
+			}
+		});
+		builder.setDaemon(true);
+		builder.start();
+		builder.join(20000);
+		check(!builder.isAlive(), "build: deadlock");
+		check(result.get() instanceof Properties, "build: "+result.get());
+		return (Properties)result.get();
+	}
+
+	public static void main(String[] args) throws Exception {
+		LOGGER.setLevel(Level.OFF); // invalid values and missing preferences are reported, it does not matter here.
+		AtomicInteger converted=new AtomicInteger();
+		Properties p=build(converted);
+		check(converted.get()>=1, "build: typed values not converted");
+		check(Properties.getProperties(BUNDLE)==p, "build: not unique");
+
+		checkValid(p, "count", "0");
+		checkValid(p, "count", "10");
+		checkInvalid(p, "count", "11");
+		checkInvalid(p, "count", "-1");
+		checkInvalid(p, "count", "");
+		checkInvalid(p, "count", "five");
+		checkValid(p, "level", "2147483647");
+		checkInvalid(p, "level", "0");
+		checkValid(p, "size", "medium");
+		checkInvalid(p, "size", "huge");
+		checkInvalid(p, "size", "Small");
+		checkValid(p, "flag", "FALSE");
+		checkInvalid(p, "flag", "yes");
+		checkValid(p, "delay", "250ms");
+		checkInvalid(p, "delay", "");
+		checkInvalid(p, "delay", "10 parsecs");
+		checkInvalid(p, "delay", "s");
+		checkInvalid(p, "delay", "PT");
+		checkDuration("250ms", Duration.ofMillis(250));
+		checkDuration("250", Duration.ofMillis(250));
+		checkDuration(" 10s ", Duration.ofSeconds(10));
+		checkDuration("5m", Duration.ofMinutes(5));
+		checkDuration("2h", Duration.ofHours(2));
+		checkDuration("1d", Duration.ofDays(1));
+		checkDuration("PT10S", Duration.ofSeconds(10));
+		check(p.validate("untyped", "anything")==null, "converters: untyped key");
+
+		// the bundle value out of range is read as bad (default).
+		check(p.getOptionalIntProperty("bad", -1)==-1, "converters: bad=20 read as "+p.getOptionalIntProperty("bad", -1));
+		check(p.getOptionalIntProperty("count", -1)==5, "converters: count");
+
+		check(!p.setPreference("count", "11"), "setPreference: count=11 set");
+		check(p.getOptionalIntProperty("count", -1)==5, "setPreference: count changed by a rejected value");
+		check(!p.setPreference("flag", "yes"), "setPreference: flag=yes set");
+		check(p.getOptinalBooleanProperty("flag", false), "setPreference: flag changed by a rejected value");
+		check(!p.setPreference("size", "huge"), "setPreference: size=huge set");
+		check(!p.setPreference("delay", ""), "setPreference: delay= set");
+		check("10s".equals(p.getOptionalProperty("delay", null)), "setPreference: delay changed by a rejected value");
+		check(p.setPreference("count", "7") && p.getOptionalIntProperty("count", -1)==7, "setPreference: count=7 not set");
+		check(p.setPreference("flag", "False") && !p.getOptinalBooleanProperty("flag", true), "setPreference: flag=False not set");
+		System.out.println("SchemaCheck: ok");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,149 @@
+package fr.loria.madynes.javautils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Check of {@link Properties#snapshot()} and its {@link PersistentMap}.
+ * <ul>
+ * <li>map: random plus/minus (keys with equal hashes included) against a HashMap, every former
+ * version kept unchanged.</li>
+ * <li>snapshots: a snapshot keeps the values of its time while keys are changed and removed.</li>
+ * <li>cost: a change following a snapshot must not copy all values: with a snapshot before each
+ * change, 200 times more keys must not make a change 20 times slower.</li>
+ * </ul>
+ * Usage: SnapshotCheck [keys], exit status 1 on the first failure.
+ */
+class SnapshotCheck {
+	// kept: a logger only referenced by LogManager may be collected, with its level.
+	private static final Logger LOGGER=Logger.getLogger(Properties.class.getName());
+	private static final String LAYER="generated";
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("SnapshotCheck: "+message);
+			System.exit(1);
+		}
+	}
+	private static boolean same(Object a, Object b){
+		return a==null?b==null:a.equals(b);
+	}
+
+	// "Aa" and "BB" have the same hash: keys made of them collide.
+	private static String randomKey(Random random){
+		StringBuilder key=new StringBuilder();
+		if (random.nextInt(4)==0){
+			for (int i=0; i<4; i++){
+				key.append(random.nextBoolean()?"Aa":"BB");
+			}
+		}else{
+			key.append("key").append(random.nextInt(3000));
+		}
+		return key.toString();
+	}
+
+	private static void checkMap(long seed){
+		Random random=new Random(seed);
+		PersistentMap map=PersistentMap.EMPTY;
+		HashMap<String, String> oracle=new HashMap<String, String>();
+		List<PersistentMap> versions=new ArrayList<PersistentMap>();
+		List<Map<String, String>> expected=new ArrayList<Map<String, String>>();
+		for (int op=0; op<50000; op++){
+			String key=randomKey(random);
+			if (random.nextInt(3)==0){
+				map=map.minus(key);
+				oracle.remove(key);
+			}else{
+				String value=Integer.toString(random.nextInt(10));
+				map=map.plus(key, value);
+				oracle.put(key, value);
+			}
+			check(same(map.get(key), oracle.get(key)) && map.size()==oracle.size(), "map: "+key+" (seed "+seed+")");
+			if (op%5000==0){
+				check(new HashMap<String, String>(map).equals(oracle) && map.entrySet().size()==oracle.size(), "map: entries (seed "+seed+")");
+				versions.add(map);
+				expected.add(new HashMap<String, String>(oracle));
+			}
+		}
+		for (int v=0; v<versions.size(); v++){
+			check(versions.get(v).equals(expected.get(v)) && new HashMap<String, String>(versions.get(v)).equals(expected.get(v)),
+					"map: version "+v+" changed (seed "+seed+")");
+		}
+		check(PersistentMap.of(oracle).equals(oracle), "map: of (seed "+seed+")");
+		for (String key: oracle.keySet()){
+			map=map.minus(key);
+		}
+		check(map.isEmpty() && !map.entrySet().iterator().hasNext(), "map: not empty (seed "+seed+")");
+	}
+
+	private static Properties build(String name, int keys){
+		Properties p=Properties.getProperties(name);
+		HashMap<String, String> values=new HashMap<String, String>();
+		for (int k=0; k<keys; k++){
+			values.put("plugin"+(k/100)+".property"+k, Integer.toString(k));
+		}
+		p.addLayer(LAYER, values);
+		return p;
+	}
+
+	private static void checkSnapshots(long seed){
+		Random random=new Random(seed);
+		Properties p=build("snapshotcheck.values", 1000);
+		List<Properties.Snapshot> snapshots=new ArrayList<Properties.Snapshot>();
+		List<Map<String, String>> expected=new ArrayList<Map<String, String>>();
+		for (int round=0; round<200; round++){
+			Properties.Snapshot snapshot=p.snapshot();
+			snapshots.add(snapshot);
+			expected.add(new HashMap<String, String>(snapshot.asMap()));
+			for (int c=0; c<10; c++){
+				int k=random.nextInt(1200); // some keys are added
+				String key="plugin"+(k/100)+".property"+k;
+				p.setLayerValue(LAYER, key, random.nextInt(5)==0?null:"r"+round);
+				check(same(p.snapshot().getString(key), p.getOptionalProperty(key, null)), "snapshots: "+key+" (seed "+seed+")");
+			}
+		}
+		for (int s=0; s<snapshots.size(); s++){
+			check(snapshots.get(s).asMap().equals(expected.get(s)), "snapshots: snapshot "+s+" changed (seed "+seed+")");
+		}
+	}
+
+	// ns per change, each change following a snapshot.
+	private static double changeCost(int keys){
+		Properties p=build("snapshotcheck.cost"+keys, keys);
+		int changes=20000;
+		long best=Long.MAX_VALUE;
+		for (int run=0; run<5; run++){ // warm up, best of.
+			long start=System.nanoTime();
+			for (int c=0; c<changes; c++){
+				p.snapshot();
+				int k=(c*7919)%keys;
+				p.setLayerValue(LAYER, "plugin"+(k/100)+".property"+k, "c"+run+"."+c);
+			}
+			best=Math.min(best, System.nanoTime()-start);
+		}
+		return (double)best/changes;
+	}
+	private static void checkCost(int keys){
+		double small=changeCost(keys/200);
+		double large=changeCost(keys);
+		System.out.println("SnapshotCheck: snapshot then change: "+(long)small+" ns with "+keys/200+" keys, "
+				+(long)large+" ns with "+keys+" keys");
+		check(large<small*20, "cost: a change after a snapshot is "+(long)(large/small)+" times slower with 200 times more keys");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int keys=args.length>0?Integer.parseInt(args[0]):200000;
+		LOGGER.setLevel(Level.OFF); // bundles are missing, it does not matter here.
+		long seed=System.nanoTime();
+		checkMap(seed);
+		checkSnapshots(seed);
+		checkCost(keys);
+		System.out.println("SnapshotCheck: ok");
+		System.exit(0);
+	}
+}
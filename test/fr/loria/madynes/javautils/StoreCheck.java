@@ -0,0 +1,155 @@
+package fr.loria.madynes.javautils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Check of {@link PreferencesStore}.
+ * <ul>
+ * <li>escape: random keys and values (separators, escapes, spaces, control and non ASCII chars)
+ * written by a full save are read back unchanged by java.util.Properties.load, and by unescape.</li>
+ * <li>journal: random appends replayed onto the saved values give the expected values, an incomplete
+ * last line is ignored by replay and dropped by the next append.</li>
+ * <li>permissions (POSIX): a full save keeps the permissions of the preferences file.</li>
+ * </ul>
+ * Usage: StoreCheck, exit status 1 on the first failure.
+ */
+class StoreCheck {
+	private static final String CHARS=" \t\n\r\f=:#!\\abcXYZ019.-_\u0000\u001F\u007F\u00E9\u00FF\u20AC\uD83D\uDE00";
+
+	private static void check(boolean condition, String message){
+		if (!condition){
+			System.err.println("StoreCheck: "+message);
+			System.exit(1);
+		}
+	}
+
+	private static String randomString(Random random, int maxLength){
+		int len=random.nextInt(maxLength+1);
+		StringBuilder s=new StringBuilder(len);
+		for (int i=0; i<len; i++){
+			s.append(CHARS.charAt(random.nextInt(CHARS.length())));
+		}
+		return s.toString();
+	}
+	private static Map<String, String> load(File file) throws IOException {
+		java.util.Properties loaded=new java.util.Properties();
+		InputStream in=new FileInputStream(file);
+		try{
+			loaded.load(in);
+		}finally{
+			in.close();
+		}
+		HashMap<String, String> result=new HashMap<String, String>();
+		for (String key: loaded.stringPropertyNames()){
+			result.put(key, loaded.getProperty(key));
+		}
+		return result;
+	}
+
+	private static void checkEscape(File prefFile, long seed) throws IOException {
+		Random random=new Random(seed);
+		for (int round=0; round<200; round++){
+			HashMap<String, String> values=new HashMap<String, String>();
+			for (int k=0; k<20; k++){
+				values.put(randomString(random, 8), randomString(random, 12));
+			}
+			PreferencesStore.write(prefFile, values);
+			check(load(prefFile).equals(values), "escape: java.util.Properties read other values (seed "+seed+")");
+			for (Map.Entry<String, String> e: values.entrySet()){
+				for (boolean isKey: new boolean[]{true, false}){
+					StringBuilder escaped=new StringBuilder();
+					PreferencesStore.escape(escaped, isKey?e.getKey():e.getValue(), isKey);
+					String s=escaped.toString();
+					check(PreferencesStore.unescape(s, 0, s.length()).equals(isKey?e.getKey():e.getValue()), "escape: unescape of "+s);
+				}
+			}
+		}
+	}
+
+	private static void checkJournal(File prefFile, long seed) throws IOException {
+		Random random=new Random(seed);
+		HashMap<String, String> saved=new HashMap<String, String>();
+		for (int k=0; k<50; k++){
+			saved.put("key"+k, randomString(random, 10));
+		}
+		PreferencesStore.write(prefFile, saved);
+		PreferencesStore.deleteJournal(prefFile);
+		HashMap<String, String> expected=new HashMap<String, String>(saved);
+		for (int round=0; round<50; round++){
+			HashMap<String, String> changes=new HashMap<String, String>();
+			for (int c=0; c<5; c++){
+				String key=random.nextBoolean()?"key"+random.nextInt(60):randomString(random, 6);
+				String value=random.nextInt(4)==0?null:randomString(random, 10);
+				changes.put(key, value);
+			}
+			PreferencesStore.appendJournal(prefFile, changes);
+			for (Map.Entry<String, String> e: changes.entrySet()){
+				if (e.getValue()==null){
+					expected.remove(e.getKey());
+				}else{
+					expected.put(e.getKey(), e.getValue());
+				}
+			}
+			if (round%10==5){ // crash while appending.
+				OutputStream out=new FileOutputStream(PreferencesStore.journalFileOf(prefFile), true);
+				try{
+					out.write("+key1=cut by a cr".getBytes(StandardCharsets.ISO_8859_1));
+				}finally{
+					out.close();
+				}
+			}
+			HashMap<String, String> replayed=new HashMap<String, String>(load(prefFile));
+			PreferencesStore.replayJournal(prefFile, replayed);
+			check(replayed.equals(expected), "journal: replay of round "+round+" (seed "+seed+")");
+		}
+		PreferencesStore.deleteJournal(prefFile);
+	}
+
+	private static void checkPermissions(File prefFile) throws IOException {
+		if (Files.getFileAttributeView(prefFile.toPath(), PosixFileAttributeView.class)==null){
+			System.out.println("StoreCheck: no POSIX permissions, not checked");
+			return;
+		}
+		for (String mode: new String[]{"rw-r-----", "rw-rw-r--", "r--------"}){
+			Set<PosixFilePermission> permissions=PosixFilePermissions.fromString(mode);
+			Files.setPosixFilePermissions(prefFile.toPath(), permissions);
+			PreferencesStore.write(prefFile, new HashMap<String, String>());
+			check(Files.getPosixFilePermissions(prefFile.toPath()).equals(permissions), "permissions: "+mode+" became "
+					+PosixFilePermissions.toString(Files.getPosixFilePermissions(prefFile.toPath())));
+		}
+		Files.setPosixFilePermissions(prefFile.toPath(), PosixFilePermissions.fromString("rw-------"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		File dir=Files.createTempDirectory("storecheck").toFile();
+		File prefFile=new File(dir, "store.prefs");
+		try{
+			long seed=System.nanoTime();
+			checkEscape(prefFile, seed);
+			checkJournal(prefFile, seed);
+			checkPermissions(prefFile);
+			File[] left=dir.listFiles();
+			check(left.length==1, "temporary files left: "+left.length+" files");
+		}finally{
+			for (File f: dir.listFiles()){
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("StoreCheck: ok");
+	}
+}
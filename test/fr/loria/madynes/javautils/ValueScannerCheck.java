@@ -0,0 +1,164 @@
+package fr.loria.madynes.javautils;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Equivalence check of {@link ValueScanner} against the regular expressions it replaced (the oracle).
+ *
+ * Random strings, mostly shaped like colors and int pairs then mutated, are parsed both ways:
+ * results and exception classes must be identical.
+ * Usage: ValueScannerCheck [iterations [seed]], exit status 1 on the first difference.
+ */
+class ValueScannerCheck {
+	// Former patterns of Properties, kept here as the oracle.
+	private static final Pattern colorByNamePattern=Pattern.compile("\\p{Alpha}+");
+	private static final String unitaryPattern="(0*(?:2[0-5]\\p{Digit})|(?:1?\\p{Digit}{1,2}))";
+	private static final Pattern sRGBpattern=Pattern.compile(unitaryPattern+"\\p{Blank}+"+
+														unitaryPattern+"\\p{Blank}+"+
+														unitaryPattern+"\\p{Blank}+"+
+														unitaryPattern+"(\\p{Space}*)");
+	private static final Pattern dimensionPattern=Pattern.compile("(\\d+)\\p{Blank}+(\\d+)(\\p{Space}*)");
+
+	// chars the scanners care about, and a few they must reject (non ASCII digits, letters and spaces).
+	private static final String ALPHABET="0000111222555999 \t \t\n\r\u000B\f\u00A0\u2007aZz-+.,#\u0663\u00E9";
+
+	private static Object oracleColor(String s){
+		try{
+			Matcher m=sRGBpattern.matcher(s);
+			if (!m.matches()){
+				return null;
+			}
+			return new Color(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+					Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+		}catch(RuntimeException e){
+			return e.getClass();
+		}
+	}
+	private static Object scannedColor(String s){
+		try{
+			return ValueScanner.parseRGBA(s);
+		}catch(RuntimeException e){
+			return e.getClass();
+		}
+	}
+	private static Object oraclePair(String s){
+		try{
+			Matcher m=dimensionPattern.matcher(s);
+			if (!m.matches()){
+				throw new IllegalArgumentException();
+			}
+			return Integer.parseInt(m.group(1))+","+Integer.parseInt(m.group(2));
+		}catch(RuntimeException e){
+			return e.getClass();
+		}
+	}
+	private static Object scannedPair(String s){
+		try{
+			long pair=ValueScanner.parseIntPair(s);
+			return ValueScanner.first(pair)+","+ValueScanner.second(pair);
+		}catch(RuntimeException e){
+			return e.getClass();
+		}
+	}
+
+	private static String randomString(Random random){
+		StringBuilder b=new StringBuilder();
+		switch (random.nextInt(4)){
+		case 0: // free text
+			int len=random.nextInt(12);
+			for (int i=0; i<len; i++){
+				b.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			return b.toString();
+		case 1: // letters only (color names)
+			len=random.nextInt(8);
+			for (int i=0; i<len; i++){
+				b.append((char)((random.nextBoolean()?'a':'A')+random.nextInt(26)));
+			}
+			break;
+		default: // numbers separated by blanks: R G B A or W H, then mutated
+			int count=random.nextBoolean()?4:2;
+			for (int i=0; i<count; i++){
+				if (i>0){
+					b.append(random.nextBoolean()?" ":"\t");
+					if (random.nextInt(4)==0){
+						b.append(' ');
+					}
+				}
+				int zeros=random.nextInt(6)==0?random.nextInt(3):0;
+				for (int z=0; z<zeros; z++){
+					b.append('0');
+				}
+				switch (random.nextInt(4)){
+				case 0: b.append(random.nextInt(10)); break;
+				case 1: b.append(random.nextInt(300)); break;
+				case 2: b.append(250+random.nextInt(10)); break;
+				default: b.append(Math.abs(random.nextLong())%100000000000L); break; // int overflow
+				}
+			}
+			if (random.nextInt(3)==0){
+				b.append(random.nextBoolean()?" \n":"\r\f\u000B");
+			}
+			break;
+		}
+		int mutations=random.nextInt(3);
+		for (int m=0; m<mutations && b.length()>0; m++){
+			int at=random.nextInt(b.length());
+			char c=ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+			switch (random.nextInt(3)){
+			case 0: b.setCharAt(at, c); break;
+			case 1: b.insert(at, c); break;
+			default: b.deleteCharAt(at); break;
+			}
+		}
+		return b.toString();
+	}
+
+	private static boolean same(Object a, Object b){
+		return a==null?b==null:a.equals(b);
+	}
+	private static String show(String s){
+		StringBuilder b=new StringBuilder("\"");
+		for (char c: s.toCharArray()){
+			if (c<' ' || c>'~'){
+				b.append(String.format("\\u%04X", (int)c));
+			}else{
+				b.append(c);
+			}
+		}
+		return b.append('"').toString();
+	}
+
+	public static void main(String[] args){
+		long iterations=args.length>0?Long.parseLong(args[0]):1000000;
+		long seed=args.length>1?Long.parseLong(args[1]):System.nanoTime();
+		Random random=new Random(seed);
+		long matched=0;
+		for (long i=0; i<iterations; i++){
+			String s=randomString(random);
+			Object expected=oracleColor(s);
+			Object actual=scannedColor(s);
+			if (!same(expected, actual)){
+				System.err.println("parseRGBA("+show(s)+"): regex "+expected+", scanner "+actual+" (seed "+seed+")");
+				System.exit(1);
+			}
+			expected=oraclePair(s);
+			actual=scannedPair(s);
+			if (!same(expected, actual)){
+				System.err.println("parseIntPair("+show(s)+"): regex "+expected+", scanner "+actual+" (seed "+seed+")");
+				System.exit(1);
+			}
+			if (expected instanceof String){
+				matched++;
+			}
+			if (colorByNamePattern.matcher(s).matches()!=ValueScanner.isColorName(s)){
+				System.err.println("isColorName("+show(s)+") differs (seed "+seed+")");
+				System.exit(1);
+			}
+		}
+		System.out.println("ValueScannerCheck: "+iterations+" strings ("+matched+" int pairs), no difference (seed "+seed+")");
+	}
+}